@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.cluster;
+
+/**
+ * Notice, received from another node, that a user, role or permission has changed and that any local copy of it is
+ * stale. The type is one of the {@link org.commonjava.web.user.model.ChangeRecord} type constants, and the name is
+ * scoped to the given realm.
+ */
+public final class Invalidation
+{
+
+    private final String realm;
+
+    private final String type;
+
+    private final String name;
+
+    public Invalidation( final String realm, final String type, final String name )
+    {
+        this.realm = realm;
+        this.type = type;
+        this.name = name;
+    }
+
+    public String getRealm()
+    {
+        return realm;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "Invalidation [%s:%s/%s]", type, realm, name );
+    }
+
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.Realms;
+
+/**
+ * Broadcasts compact invalidation notices for changed users, roles and permissions to the other nodes of a
+ * deployment, and fires an {@link Invalidation} event for each notice received from them.
+ * <p>
+ * Notices are buffered for a few milliseconds, deduplicated per key and packed into as few packets as possible.
+ * Each notice carries a per-node sequence number; receivers drop any notice for a key that is older than the last
+ * one applied from the same node, so out-of-order delivery cannot resurrect stale state. When too many keys are
+ * tracked, the ones that have been quiet longest are forgotten first.
+ * </p>
+ */
+@Singleton
+public class InvalidationBus
+{
+
+    public static final String NONE = "none";
+
+    public static final String LOOPBACK = "loopback";
+
+    public static final String MULTICAST = "multicast";
+
+    private static final int MAGIC = 0x554d4942;
+
+    private static final byte VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 2;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 20;
+
+    private static final int MAX_TRACKED_KEYS = 100000;
+
+    private static final List<String> TYPES = Arrays.asList( ChangeRecord.USER, ChangeRecord.ROLE,
+                                                             ChangeRecord.PERMISSION );
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final long nodeId = new SecureRandom().nextLong();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentMap<String, Applied> lastApplied = new ConcurrentHashMap<String, Applied>();
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    @Inject
+    private Event<Invalidation> invalidationEventSrc;
+
+    private InvalidationTransport transport;
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    protected void start()
+    {
+        final String type = config.getClusterTransport();
+        try
+        {
+            if ( LOOPBACK.equals( type ) )
+            {
+                transport = new LoopbackTransport();
+            }
+            else if ( MULTICAST.equals( type ) )
+            {
+                transport = new MulticastTransport( config.getClusterGroup(), config.getClusterPort() );
+            }
+            else
+            {
+                logger.info( "Cluster invalidation is disabled." );
+                return;
+            }
+
+            transport.start( new InvalidationTransport.Receiver()
+            {
+                @Override
+                public void received( final byte[] packet, final int length )
+                {
+                    receive( packet, length );
+                }
+            } );
+        }
+        catch ( final IOException e )
+        {
+            logger.error( "Cannot start %s invalidation transport: %s", e, type, e.getMessage() );
+            transport = null;
+            return;
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory()
+        {
+            @Override
+            public Thread newThread( final Runnable r )
+            {
+                final Thread t = new Thread( r, "user-manager-invalidation-flusher" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+
+        flusher.scheduleWithFixedDelay( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+    }
+
+    @PreDestroy
+    protected void stop()
+    {
+        if ( flusher != null )
+        {
+            flusher.shutdown();
+            flush();
+        }
+
+        if ( transport != null )
+        {
+            transport.close();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return transport != null;
+    }
+
+    /**
+     * Queue an invalidation for broadcast. Repeated calls for the same key before the next flush collapse into a
+     * single notice.
+     */
+    public void publish( final String realm, final String type, final String name )
+    {
+        if ( transport == null )
+        {
+            return;
+        }
+
+        pending.put( TYPES.indexOf( type ) + ":" + Realms.key( realm, name ), sequence.incrementAndGet() );
+    }
+
+    void flush()
+    {
+        if ( pending.isEmpty() )
+        {
+            return;
+        }
+
+        try
+        {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream( MulticastTransport.MAX_PACKET_SIZE );
+            final DataOutputStream out = new DataOutputStream( baos );
+            int count = 0;
+            int size = HEADER_SIZE;
+
+            for ( final String key : pending.keySet() )
+            {
+                final Long seq = pending.remove( key );
+                if ( seq == null )
+                {
+                    continue;
+                }
+
+                final int sep = key.indexOf( ':' );
+                final int realmSep = key.indexOf( Realms.SEPARATOR, sep + 1 );
+                final String realm = key.substring( sep + 1, realmSep );
+                final String name = key.substring( realmSep + 1 );
+                final int entrySize = 1 + 8 + 2 + utf8Length( realm ) + 2 + utf8Length( name );
+
+                if ( count > 0 && size + entrySize > MulticastTransport.MAX_PACKET_SIZE )
+                {
+                    send( baos.toByteArray(), count );
+                    baos.reset();
+                    count = 0;
+                    size = HEADER_SIZE;
+                }
+
+                out.writeByte( Integer.parseInt( key.substring( 0, sep ) ) );
+                out.writeLong( seq );
+                out.writeUTF( realm );
+                out.writeUTF( name );
+                count++;
+                size += entrySize;
+            }
+
+            if ( count > 0 )
+            {
+                send( baos.toByteArray(), count );
+            }
+        }
+        catch ( final IOException e )
+        {
+            logger.error( "Failed to broadcast invalidations: %s", e, e.getMessage() );
+        }
+    }
+
+    private void send( final byte[] entries, final int count )
+        throws IOException
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream( HEADER_SIZE + entries.length );
+        final DataOutputStream out = new DataOutputStream( baos );
+        out.writeInt( MAGIC );
+        out.writeByte( VERSION );
+        out.writeLong( nodeId );
+        out.writeShort( count );
+        out.write( entries );
+        out.flush();
+
+        transport.send( baos.toByteArray() );
+    }
+
+    void receive( final byte[] packet, final int length )
+    {
+        try
+        {
+            final DataInputStream in = new DataInputStream( new ByteArrayInputStream( packet, 0, length ) );
+            if ( in.readInt() != MAGIC || in.readByte() != VERSION )
+            {
+                return;
+            }
+
+            final long origin = in.readLong();
+            if ( origin == nodeId )
+            {
+                return;
+            }
+
+            if ( lastApplied.size() > MAX_TRACKED_KEYS )
+            {
+                forgetQuietest();
+            }
+
+            final int count = in.readUnsignedShort();
+            for ( int i = 0; i < count; i++ )
+            {
+                final int type = in.readUnsignedByte();
+                final long seq = in.readLong();
+                final String realm = in.readUTF();
+                final String name = in.readUTF();
+
+                if ( type < TYPES.size() && isNewer( origin + "/" + type + ":" + Realms.key( realm, name ), seq ) )
+                {
+                    invalidationEventSrc.fire( new Invalidation( realm, TYPES.get( type ), name ) );
+                }
+            }
+        }
+        catch ( final IOException e )
+        {
+            logger.error( "Discarding malformed invalidation packet: %s", e, e.getMessage() );
+        }
+    }
+
+    private boolean isNewer( final String key, final long seq )
+    {
+        final Applied applied = new Applied( seq );
+        while ( true )
+        {
+            final Applied last = lastApplied.get( key );
+            if ( last == null )
+            {
+                if ( lastApplied.putIfAbsent( key, applied ) == null )
+                {
+                    return true;
+                }
+            }
+            else if ( last.sequence >= seq )
+            {
+                return false;
+            }
+            else if ( lastApplied.replace( key, last, applied ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop the tenth of tracked keys that have gone longest without a notice. Reordering only spans moments, so
+     * their ordering no longer matters.
+     */
+    private void forgetQuietest()
+    {
+        final long[] times = new long[lastApplied.size()];
+        int count = 0;
+        for ( final Applied applied : lastApplied.values() )
+        {
+            if ( count == times.length )
+            {
+                break;
+            }
+
+            times[count++] = applied.receivedAt;
+        }
+
+        final int keep = MAX_TRACKED_KEYS - MAX_TRACKED_KEYS / 10;
+        if ( count <= keep )
+        {
+            return;
+        }
+
+        Arrays.sort( times, 0, count );
+        final long cutoff = times[count - keep];
+        for ( final Iterator<Applied> it = lastApplied.values()
+                                                      .iterator(); it.hasNext(); )
+        {
+            if ( it.next().receivedAt < cutoff )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private static int utf8Length( final String value )
+        throws UnsupportedEncodingException
+    {
+        return value.getBytes( "UTF-8" ).length;
+    }
+
+    private static final class Applied
+    {
+        private final long sequence;
+
+        private final long receivedAt = System.currentTimeMillis();
+
+        Applied( final long sequence )
+        {
+            this.sequence = sequence;
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.cluster;
+
+import java.io.IOException;
+
+/**
+ * Carries encoded invalidation batches between nodes. Delivery may be lossy and unordered; the
+ * {@link InvalidationBus} restores per-key ordering on receipt.
+ */
+public interface InvalidationTransport
+{
+
+    void start( Receiver receiver )
+        throws IOException;
+
+    void send( byte[] packet )
+        throws IOException;
+
+    void close();
+
+    interface Receiver
+    {
+        void received( byte[] packet, int length );
+    }
+
+}
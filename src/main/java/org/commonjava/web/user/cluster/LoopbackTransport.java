@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process transport connecting every started instance in the same JVM, for running several buses side by side
+ * in tests without touching the network.
+ */
+public class LoopbackTransport
+    implements InvalidationTransport
+{
+
+    private static final List<LoopbackTransport> CONNECTED = new CopyOnWriteArrayList<LoopbackTransport>();
+
+    private Receiver receiver;
+
+    @Override
+    public void start( final Receiver receiver )
+    {
+        this.receiver = receiver;
+        CONNECTED.add( this );
+    }
+
+    @Override
+    public void send( final byte[] packet )
+    {
+        for ( final LoopbackTransport transport : CONNECTED )
+        {
+            transport.receiver.received( packet.clone(), packet.length );
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        CONNECTED.remove( this );
+    }
+
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.cluster;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketException;
+
+import org.commonjava.util.logging.Logger;
+
+/**
+ * UDP multicast transport. Loopback is left enabled, so several nodes on one host see each other's packets, and
+ * the default TTL of 1 keeps traffic on the local network segment.
+ */
+public class MulticastTransport
+    implements InvalidationTransport
+{
+
+    public static final int MAX_PACKET_SIZE = 1400;
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final InetAddress group;
+
+    private final int port;
+
+    private MulticastSocket socket;
+
+    private Thread listener;
+
+    public MulticastTransport( final String group, final int port )
+        throws IOException
+    {
+        this.group = InetAddress.getByName( group );
+        this.port = port;
+    }
+
+    @Override
+    public void start( final Receiver receiver )
+        throws IOException
+    {
+        socket = new MulticastSocket( port );
+        socket.setLoopbackMode( false );
+        socket.setTimeToLive( 1 );
+        socket.joinGroup( group );
+
+        listener = new Thread( "user-manager-invalidation-listener" )
+        {
+            @Override
+            public void run()
+            {
+                final byte[] buffer = new byte[MAX_PACKET_SIZE];
+                while ( !socket.isClosed() )
+                {
+                    final DatagramPacket packet = new DatagramPacket( buffer, buffer.length );
+                    try
+                    {
+                        socket.receive( packet );
+                        receiver.received( packet.getData(), packet.getLength() );
+                    }
+                    catch ( final SocketException e )
+                    {
+                        if ( !socket.isClosed() )
+                        {
+                            logger.error( "Invalidation listener failed: %s", e, e.getMessage() );
+                        }
+                    }
+                    catch ( final IOException e )
+                    {
+                        logger.error( "Failed to receive invalidation packet: %s", e, e.getMessage() );
+                    }
+                    catch ( final RuntimeException e )
+                    {
+                        logger.error( "Failed to process invalidation packet: %s", e, e.getMessage() );
+                    }
+                }
+            }
+        };
+
+        listener.setDaemon( true );
+        listener.start();
+    }
+
+    @Override
+    public void send( final byte[] packet )
+        throws IOException
+    {
+        socket.send( new DatagramPacket( packet, packet.length, group, port ) );
+    }
+
+    @Override
+    public void close()
+    {
+        if ( socket != null )
+        {
+            try
+            {
+                socket.leaveGroup( group );
+            }
+            catch ( final IOException e )
+            {
+                logger.debug( "Failed to leave multicast group: %s", e, e.getMessage() );
+            }
+
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.cluster;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.conf.ManagedTasks;
+import org.commonjava.web.user.data.Deleted;
+import org.commonjava.web.user.data.ReadYourWrites;
+import org.commonjava.web.user.data.Saved;
+import org.commonjava.web.user.data.UserDataBackend;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Applies invalidations received from other nodes by reloading the named entity and replaying it as a local
+ * {@link Saved} event, or as a {@link Deleted} event if it no longer exists. Every local cache and index therefore
+ * refreshes through the same observers it uses for local writes.
+ * <p>
+ * The reloads run one at a time on a {@link ManagedTasks} thread, never on the transport's listener thread, so a
+ * slow database cannot stall the receipt of further notices. Notices for an entity that is still waiting to be
+ * reloaded collapse into the pending reload.
+ * </p>
+ */
+@Singleton
+public class RemoteInvalidationHandler
+{
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final Map<String, Invalidation> pending = new LinkedHashMap<String, Invalidation>();
+
+    private boolean draining;
+
+    @Inject
+    private ManagedTasks tasks;
+
+    @Inject
+    private UserDataBackend backend;
+
+    @Inject
+    @Saved
+    private Event<User> userEventSrc;
+
+    @Inject
+    @Saved
+    private Event<Role> roleEventSrc;
+
+    @Inject
+    @Saved
+    private Event<Permission> permissionEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<User> userDeletedEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<Role> roleDeletedEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<Permission> permissionDeletedEventSrc;
+
+    public void onInvalidation( @Observes final Invalidation invalidation )
+    {
+        synchronized ( pending )
+        {
+            pending.put( invalidation.getType() + ":" + Realms.key( invalidation.getRealm(), invalidation.getName() ),
+                         invalidation );
+            if ( draining )
+            {
+                return;
+            }
+
+            draining = true;
+        }
+
+        try
+        {
+            tasks.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    drain();
+                }
+            } );
+        }
+        catch ( final RuntimeException e )
+        {
+            logger.error( "Cannot schedule reload for %s: %s", e, invalidation, e.getMessage() );
+            synchronized ( pending )
+            {
+                draining = false;
+            }
+        }
+    }
+
+    private void drain()
+    {
+        while ( true )
+        {
+            final Invalidation invalidation;
+            synchronized ( pending )
+            {
+                final Iterator<Invalidation> it = pending.values()
+                                                         .iterator();
+                if ( !it.hasNext() )
+                {
+                    draining = false;
+                    return;
+                }
+
+                invalidation = it.next();
+                it.remove();
+            }
+
+            // look the entity up, and build deletion stand-ins, in the realm it belongs to. The change has just been
+            // committed, so only the primary is sure to have it.
+            final String previous = Realms.enter( invalidation.getRealm() );
+            final AtomicLong seen = ReadYourWrites.enterPrimary();
+            try
+            {
+                apply( invalidation );
+            }
+            catch ( final RuntimeException e )
+            {
+                logger.error( "Failed to apply %s: %s", e, invalidation, e.getMessage() );
+            }
+            finally
+            {
+                ReadYourWrites.restore( seen );
+                Realms.restore( previous );
+            }
+        }
+    }
+
+    private void apply( final Invalidation invalidation )
+    {
+        final String name = invalidation.getName();
+        if ( ChangeRecord.USER.equals( invalidation.getType() ) )
+        {
+            // observers walk the associations, which a detached entity must already have loaded.
+            final User user = backend.fetchUser( name, true, true );
+            if ( user != null )
+            {
+                userEventSrc.fire( user );
+            }
+            else
+            {
+                userDeletedEventSrc.fire( new User( name ) );
+            }
+        }
+        else if ( ChangeRecord.ROLE.equals( invalidation.getType() ) )
+        {
+            final Role role = backend.fetchRole( name, true );
+            if ( role != null )
+            {
+                roleEventSrc.fire( role );
+            }
+            else
+            {
+                roleDeletedEventSrc.fire( new Role( name ) );
+            }
+        }
+        else if ( ChangeRecord.PERMISSION.equals( invalidation.getType() ) )
+        {
+            final Permission permission = backend.getPermission( name );
+            if ( permission != null )
+            {
+                permissionEventSrc.fire( permission );
+            }
+            else
+            {
+                permissionDeletedEventSrc.fire( new Permission( name ) );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.UnavailableSecurityManagerException;
+import org.apache.shiro.authc.AuthenticationException;
+import org.apache.shiro.subject.Subject;
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.shiro.AccessToken;
+
+/**
+ * Logs the request's subject in with the access token of an <code>Authorization: Bearer</code> header, so that
+ * permission checks during the request are answered from the token's claims. Requests without a bearer token pass
+ * through untouched; a token that is invalid, expired or issued for another realm is refused with 401.
+ * <p>
+ * Tokens are only honoured in the realm they were issued for, so web.xml orders this after {@link RealmFilter}. When
+ * no Shiro security manager is configured, tokens are ignored and the request proceeds unauthenticated.
+ * </p>
+ */
+@WebFilter( filterName = "bearer-token", urlPatterns = "/api/*", asyncSupported = true )
+public class BearerTokenFilter
+    implements Filter
+{
+
+    public static final String AUTHORIZATION_HEADER = "Authorization";
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Override
+    public void init( final FilterConfig filterConfig )
+        throws ServletException
+    {
+    }
+
+    @Override
+    public void doFilter( final ServletRequest request, final ServletResponse response, final FilterChain chain )
+        throws IOException, ServletException
+    {
+        AccessToken token = null;
+        if ( request instanceof HttpServletRequest )
+        {
+            final String header = ( (HttpServletRequest) request ).getHeader( AUTHORIZATION_HEADER );
+            token = AccessToken.fromAuthorizationHeader( header );
+        }
+
+        if ( token == null )
+        {
+            chain.doFilter( request, response );
+            return;
+        }
+
+        final Subject subject;
+        try
+        {
+            subject = SecurityUtils.getSubject();
+        }
+        catch ( final UnavailableSecurityManagerException e )
+        {
+            logger.debug( "Ignoring bearer token; no security manager is configured." );
+            chain.doFilter( request, response );
+            return;
+        }
+
+        try
+        {
+            subject.login( token );
+        }
+        catch ( final AuthenticationException e )
+        {
+            logger.info( "Refused bearer token: %s", e.getMessage() );
+
+            final HttpServletResponse resp = (HttpServletResponse) response;
+            resp.setHeader( "WWW-Authenticate", "Bearer error=\"invalid_token\"" );
+            resp.sendError( HttpServletResponse.SC_UNAUTHORIZED );
+            return;
+        }
+
+        try
+        {
+            chain.doFilter( request, response );
+        }
+        finally
+        {
+            // the token is the credential for this request only.
+            subject.logout();
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.lang.reflect.Method;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+/**
+ * The container's default <code>ContextService</code> (Java EE 7 and later), used without requiring this code to be
+ * compiled against that API. It wraps a task so that, on whatever thread runs it, the task has the naming context,
+ * class loader and security context of the thread that wrapped it.
+ */
+public final class ContextServices
+{
+
+    public static final String DEFAULT_CONTEXT_SERVICE = "java:comp/DefaultContextService";
+
+    private final Object service;
+
+    private final Method createProxy;
+
+    private ContextServices( final Object service, final Method createProxy )
+    {
+        this.service = service;
+        this.createProxy = createProxy;
+    }
+
+    /**
+     * @return the container's default context service, or null if it has none
+     */
+    public static ContextServices lookup()
+    {
+        try
+        {
+            final Object service = new InitialContext().lookup( DEFAULT_CONTEXT_SERVICE );
+            return new ContextServices( service, service.getClass()
+                                                        .getMethod( "createContextualProxy", Object.class,
+                                                                    Class.class ) );
+        }
+        catch ( final NamingException e )
+        {
+            return null;
+        }
+        catch ( final NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Capture the current thread's container context for <code>task</code>. Must be called on a container thread.
+     */
+    public Runnable contextual( final Runnable task )
+        throws Exception
+    {
+        return (Runnable) createProxy.invoke( service, task, Runnable.class );
+    }
+
+}
@@ -15,6 +15,32 @@ public class DefaultUserManagerConfig
     implements UserManagerConfiguration
 {
 
+    public static final String DEFAULT_CLUSTER_TRANSPORT = "none";
+
+    public static final String DEFAULT_CLUSTER_GROUP = "239.255.42.99";
+
+    public static final int DEFAULT_CLUSTER_PORT = 45599;
+
+    public static final String DEFAULT_EXECUTION_MODE = "platform";
+
+    public static final int DEFAULT_TOKEN_TTL_SECONDS = 15 * 60;
+
+    public static final String DEFAULT_CACHE_MODE = "none";
+
+    public static final int DEFAULT_CACHE_REFRESH_SECONDS = 30;
+
+    public static final int DEFAULT_CACHE_EXPIRE_SECONDS = 5 * 60;
+
+    public static final int DEFAULT_CACHE_STALE_GRACE_SECONDS = 10 * 60;
+
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 100 * 1000;
+
+    public static final String DEFAULT_AUTHORIZATION_STORE = "heap";
+
+    public static final int DEFAULT_AUTHORIZATION_STORE_MEGABYTES = 64;
+
+    public static final int DEFAULT_CHANGE_RETENTION = 1000 * 1000;
+
     private String adminEmail;
 
     private String adminPassword;
@@ -23,6 +49,40 @@ public class DefaultUserManagerConfig
 
     private String adminLastName;
 
+    private String clusterTransport = DEFAULT_CLUSTER_TRANSPORT;
+
+    private String clusterGroup = DEFAULT_CLUSTER_GROUP;
+
+    private int clusterPort = DEFAULT_CLUSTER_PORT;
+
+    private String executionMode = DEFAULT_EXECUTION_MODE;
+
+    private String tokenSecret;
+
+    private int tokenTtlSeconds = DEFAULT_TOKEN_TTL_SECONDS;
+
+    private String cacheMode = DEFAULT_CACHE_MODE;
+
+    private int cacheRefreshSeconds = DEFAULT_CACHE_REFRESH_SECONDS;
+
+    private int cacheExpireSeconds = DEFAULT_CACHE_EXPIRE_SECONDS;
+
+    private int cacheStaleGraceSeconds = DEFAULT_CACHE_STALE_GRACE_SECONDS;
+
+    private int cacheMaxEntries = DEFAULT_CACHE_MAX_ENTRIES;
+
+    private String authorizationStore = DEFAULT_AUTHORIZATION_STORE;
+
+    private int authorizationStoreMegabytes = DEFAULT_AUTHORIZATION_STORE_MEGABYTES;
+
+    private String readReplicas;
+
+    private String shards;
+
+    private int settledShards;
+
+    private int changeRetention = DEFAULT_CHANGE_RETENTION;
+
     @Override
     public User createInitialAdminUser( final PasswordManager passwordManager )
     {
@@ -55,6 +115,108 @@ public class DefaultUserManagerConfig
         return adminLastName;
     }
 
+    @Override
+    public String getClusterTransport()
+    {
+        return clusterTransport;
+    }
+
+    @Override
+    public String getClusterGroup()
+    {
+        return clusterGroup;
+    }
+
+    @Override
+    public int getClusterPort()
+    {
+        return clusterPort;
+    }
+
+    @Override
+    public String getExecutionMode()
+    {
+        return executionMode;
+    }
+
+    @Override
+    public String getTokenSecret()
+    {
+        return tokenSecret;
+    }
+
+    @Override
+    public int getTokenTtlSeconds()
+    {
+        return tokenTtlSeconds;
+    }
+
+    @Override
+    public String getCacheMode()
+    {
+        return cacheMode;
+    }
+
+    @Override
+    public int getCacheRefreshSeconds()
+    {
+        return cacheRefreshSeconds;
+    }
+
+    @Override
+    public int getCacheExpireSeconds()
+    {
+        return cacheExpireSeconds;
+    }
+
+    @Override
+    public int getCacheStaleGraceSeconds()
+    {
+        return cacheStaleGraceSeconds;
+    }
+
+    @Override
+    public int getCacheMaxEntries()
+    {
+        return cacheMaxEntries;
+    }
+
+    @Override
+    public String getAuthorizationStore()
+    {
+        return authorizationStore;
+    }
+
+    @Override
+    public int getAuthorizationStoreMegabytes()
+    {
+        return authorizationStoreMegabytes;
+    }
+
+    @Override
+    public String getReadReplicas()
+    {
+        return readReplicas;
+    }
+
+    @Override
+    public String getShards()
+    {
+        return shards;
+    }
+
+    @Override
+    public int getSettledShards()
+    {
+        return settledShards;
+    }
+
+    @Override
+    public int getChangeRetention()
+    {
+        return changeRetention;
+    }
+
     @ConfigName( "admin.email" )
     public void setAdminEmail( final String adminEmail )
     {
@@ -78,4 +240,106 @@ public class DefaultUserManagerConfig
     {
         this.adminLastName = adminLastName;
     }
+
+    @ConfigName( "cluster.transport" )
+    public void setClusterTransport( final String clusterTransport )
+    {
+        this.clusterTransport = clusterTransport;
+    }
+
+    @ConfigName( "cluster.group" )
+    public void setClusterGroup( final String clusterGroup )
+    {
+        this.clusterGroup = clusterGroup;
+    }
+
+    @ConfigName( "cluster.port" )
+    public void setClusterPort( final String clusterPort )
+    {
+        this.clusterPort = Integer.parseInt( clusterPort.trim() );
+    }
+
+    @ConfigName( "execution.mode" )
+    public void setExecutionMode( final String executionMode )
+    {
+        this.executionMode = executionMode;
+    }
+
+    @ConfigName( "token.secret" )
+    public void setTokenSecret( final String tokenSecret )
+    {
+        this.tokenSecret = tokenSecret;
+    }
+
+    @ConfigName( "token.ttl" )
+    public void setTokenTtlSeconds( final String tokenTtlSeconds )
+    {
+        this.tokenTtlSeconds = Integer.parseInt( tokenTtlSeconds.trim() );
+    }
+
+    @ConfigName( "cache.mode" )
+    public void setCacheMode( final String cacheMode )
+    {
+        this.cacheMode = cacheMode;
+    }
+
+    @ConfigName( "cache.refresh" )
+    public void setCacheRefreshSeconds( final String cacheRefreshSeconds )
+    {
+        this.cacheRefreshSeconds = Integer.parseInt( cacheRefreshSeconds.trim() );
+    }
+
+    @ConfigName( "cache.expire" )
+    public void setCacheExpireSeconds( final String cacheExpireSeconds )
+    {
+        this.cacheExpireSeconds = Integer.parseInt( cacheExpireSeconds.trim() );
+    }
+
+    @ConfigName( "cache.stale-grace" )
+    public void setCacheStaleGraceSeconds( final String cacheStaleGraceSeconds )
+    {
+        this.cacheStaleGraceSeconds = Integer.parseInt( cacheStaleGraceSeconds.trim() );
+    }
+
+    @ConfigName( "cache.max-entries" )
+    public void setCacheMaxEntries( final String cacheMaxEntries )
+    {
+        this.cacheMaxEntries = Integer.parseInt( cacheMaxEntries.trim() );
+    }
+
+    @ConfigName( "authorization.store" )
+    public void setAuthorizationStore( final String authorizationStore )
+    {
+        this.authorizationStore = authorizationStore;
+    }
+
+    @ConfigName( "authorization.store.megabytes" )
+    public void setAuthorizationStoreMegabytes( final String authorizationStoreMegabytes )
+    {
+        this.authorizationStoreMegabytes = Integer.parseInt( authorizationStoreMegabytes.trim() );
+    }
+
+    @ConfigName( "data.replicas" )
+    public void setReadReplicas( final String readReplicas )
+    {
+        this.readReplicas = readReplicas;
+    }
+
+    @ConfigName( "data.shards" )
+    public void setShards( final String shards )
+    {
+        this.shards = shards;
+    }
+
+    @ConfigName( "data.shards.settled" )
+    public void setSettledShards( final String settledShards )
+    {
+        this.settledShards = Integer.parseInt( settledShards.trim() );
+    }
+
+    @ConfigName( "changes.retain" )
+    public void setChangeRetention( final String changeRetention )
+    {
+        this.changeRetention = Integer.parseInt( changeRetention.trim() );
+    }
 }
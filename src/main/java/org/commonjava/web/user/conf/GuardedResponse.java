@@ -0,0 +1,602 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * The response handed to a request running off the container thread, so that it and the async timeout can't both
+ * write it. Whichever calls {@link #finish(AsyncContext, int)} first completes the request; after that, the
+ * response ignores changes and its output streams fail, since the container may already be reusing the response
+ * it wraps. Writes and completion are serialized on one lock, so a write in progress finishes before completion.
+ */
+final class GuardedResponse
+    extends HttpServletResponseWrapper
+{
+
+    private final ReentrantLock guard = new ReentrantLock();
+
+    private boolean finished;
+
+    private ServletOutputStream out;
+
+    private PrintWriter writer;
+
+    GuardedResponse( final HttpServletResponse response )
+    {
+        super( response );
+    }
+
+    /**
+     * Complete the request, first sending <code>status</code> as an error if it is positive and nothing has been
+     * sent yet.
+     *
+     * @return false if the request was already finished
+     */
+    boolean finish( final AsyncContext ctx, final int status )
+    {
+        guard.lock();
+        try
+        {
+            if ( finished )
+            {
+                return false;
+            }
+
+            finished = true;
+            if ( status > 0 && !isCommitted() )
+            {
+                try
+                {
+                    super.sendError( status );
+                }
+                catch ( final IOException e )
+                {
+                    // the client is gone; completing is all that's left.
+                }
+            }
+
+            ctx.complete();
+            return true;
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+        throws IOException
+    {
+        enterOrFail();
+        try
+        {
+            if ( out == null )
+            {
+                out = new GuardedOutputStream( super.getOutputStream() );
+            }
+
+            return out;
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public PrintWriter getWriter()
+        throws IOException
+    {
+        enterOrFail();
+        try
+        {
+            if ( writer == null )
+            {
+                writer = new PrintWriter( new GuardedWriter( super.getWriter() ) );
+            }
+
+            return writer;
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public void sendError( final int sc, final String msg )
+        throws IOException
+    {
+        enterOrFail();
+        try
+        {
+            super.sendError( sc, msg );
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public void sendError( final int sc )
+        throws IOException
+    {
+        enterOrFail();
+        try
+        {
+            super.sendError( sc );
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public void sendRedirect( final String location )
+        throws IOException
+    {
+        enterOrFail();
+        try
+        {
+            super.sendRedirect( location );
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public void flushBuffer()
+        throws IOException
+    {
+        enterOrFail();
+        try
+        {
+            super.flushBuffer();
+        }
+        finally
+        {
+            guard.unlock();
+        }
+    }
+
+    @Override
+    public void addCookie( final Cookie cookie )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.addCookie( cookie );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setDateHeader( final String name, final long date )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setDateHeader( name, date );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void addDateHeader( final String name, final long date )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.addDateHeader( name, date );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setHeader( final String name, final String value )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setHeader( name, value );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void addHeader( final String name, final String value )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.addHeader( name, value );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setIntHeader( final String name, final int value )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setIntHeader( name, value );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void addIntHeader( final String name, final int value )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.addIntHeader( name, value );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setStatus( final int sc )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setStatus( sc );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus( final int sc, final String sm )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setStatus( sc, sm );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding( final String charset )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setCharacterEncoding( charset );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setContentLength( final int len )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setContentLength( len );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setContentType( final String type )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setContentType( type );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setBufferSize( final int size )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setBufferSize( size );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.resetBuffer();
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void reset()
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.reset();
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void setLocale( final Locale loc )
+    {
+        if ( enter() )
+        {
+            try
+            {
+                super.setLocale( loc );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    /**
+     * Take the lock if the request is still open; the caller must release it.
+     *
+     * @return false, without the lock, if the request has finished
+     */
+    private boolean enter()
+    {
+        guard.lock();
+        if ( finished )
+        {
+            guard.unlock();
+            return false;
+        }
+
+        return true;
+    }
+
+    private void enterOrFail()
+        throws IOException
+    {
+        if ( !enter() )
+        {
+            throw new IOException( "The request has already been answered (timed out)" );
+        }
+    }
+
+    private final class GuardedOutputStream
+        extends ServletOutputStream
+    {
+        private final ServletOutputStream delegate;
+
+        GuardedOutputStream( final ServletOutputStream delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write( final int b )
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.write( b );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len )
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.write( b, off, len );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.flush();
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.close();
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+    private final class GuardedWriter
+        extends Writer
+    {
+        private final Writer delegate;
+
+        GuardedWriter( final Writer delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write( final char[] cbuf, final int off, final int len )
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.write( cbuf, off, len );
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+
+        @Override
+        public void flush()
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.flush();
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+
+        @Override
+        public void close()
+            throws IOException
+        {
+            enterOrFail();
+            try
+            {
+                delegate.close();
+            }
+            finally
+            {
+                guard.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Singleton;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.commonjava.util.logging.Logger;
+
+/**
+ * Runs background work on the container's default managed executor, so that it has the application's naming
+ * context, class loader and access to transactions. Containers that predate managed executors (before Java EE 7)
+ * get a small pool of plain threads instead, which can reach only what an unmanaged thread can.
+ */
+@Singleton
+public class ManagedTasks
+{
+
+    public static final String DEFAULT_EXECUTOR = "java:comp/DefaultManagedExecutorService";
+
+    private static final int FALLBACK_THREADS = 4;
+
+    private final Logger logger = new Logger( getClass() );
+
+    private ExecutorService executor;
+
+    private boolean managed;
+
+    @PostConstruct
+    protected void start()
+    {
+        try
+        {
+            executor = (ExecutorService) new InitialContext().lookup( DEFAULT_EXECUTOR );
+            managed = true;
+        }
+        catch ( final NamingException e )
+        {
+            logger.info( "No managed executor at %s; background tasks will run without container context.",
+                         DEFAULT_EXECUTOR );
+
+            executor = Executors.newFixedThreadPool( FALLBACK_THREADS, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( final Runnable r )
+                {
+                    final Thread t = new Thread( r, "user-manager-tasks" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        }
+    }
+
+    @PreDestroy
+    protected void stop()
+    {
+        // the container owns the lifecycle of its managed executor.
+        if ( !managed )
+        {
+            executor.shutdown();
+        }
+    }
+
+    public boolean isManaged()
+    {
+        return managed;
+    }
+
+    public void execute( final Runnable task )
+    {
+        executor.execute( task );
+    }
+
+    public <T> Future<T> submit( final Callable<T> task )
+    {
+        return executor.submit( task );
+    }
+
+}
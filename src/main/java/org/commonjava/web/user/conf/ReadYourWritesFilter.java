@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+import org.commonjava.web.user.data.ReadYourWrites;
+import org.commonjava.web.user.data.ReplicaRouter;
+
+/**
+ * When reads are spread over replicas, remembers in the HTTP session the highest change-log sequence the client has
+ * written, and requires it of every later read in that session ({@link ReadYourWrites}), so clients always see their
+ * own changes. Requests without a session read whatever replica is next.
+ * <p>
+ * Must run on the thread that executes the request; web.xml orders it after {@link RequestExecutionFilter}.
+ * </p>
+ */
+@WebFilter( filterName = "read-your-writes", urlPatterns = "/api/*", asyncSupported = true )
+public class ReadYourWritesFilter
+    implements Filter
+{
+
+    public static final String SEQUENCE_ATTRIBUTE = ReadYourWritesFilter.class.getName() + ".sequence";
+
+    @Inject
+    private ReplicaRouter replicas;
+
+    @Override
+    public void init( final FilterConfig filterConfig )
+        throws ServletException
+    {
+    }
+
+    @Override
+    public void doFilter( final ServletRequest request, final ServletResponse response, final FilterChain chain )
+        throws IOException, ServletException
+    {
+        if ( !replicas.isEnabled() || !( request instanceof HttpServletRequest ) )
+        {
+            chain.doFilter( request, response );
+            return;
+        }
+
+        // a write needs somewhere to remember its sequence; create the session now, while the cookie can be sent.
+        final HttpServletRequest req = (HttpServletRequest) request;
+        final HttpSession session = req.getSession( isWrite( req.getMethod() ) );
+
+        final long written = sequenceOf( session );
+        final AtomicLong seen = new AtomicLong( written );
+        final AtomicLong previous = ReadYourWrites.enter( seen );
+        try
+        {
+            chain.doFilter( request, response );
+        }
+        finally
+        {
+            ReadYourWrites.restore( previous );
+        }
+
+        if ( session != null && seen.get() > written )
+        {
+            try
+            {
+                session.setAttribute( SEQUENCE_ATTRIBUTE, seen.get() );
+            }
+            catch ( final IllegalStateException e )
+            {
+                // invalidated while the request ran; nothing left to remember it in.
+            }
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    private static long sequenceOf( final HttpSession session )
+    {
+        if ( session == null )
+        {
+            return 0;
+        }
+
+        try
+        {
+            final Object value = session.getAttribute( SEQUENCE_ATTRIBUTE );
+            return value instanceof Long ? (Long) value : 0;
+        }
+        catch ( final IllegalStateException e )
+        {
+            return 0;
+        }
+    }
+
+    private static boolean isWrite( final String method )
+    {
+        return !( "GET".equals( method ) || "HEAD".equals( method ) || "OPTIONS".equals( method ) );
+    }
+
+}
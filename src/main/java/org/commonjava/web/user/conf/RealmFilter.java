@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.commonjava.web.user.model.Realms;
+
+/**
+ * Selects the realm (tenant) a REST request works in, from the <code>X-Realm</code> header or, failing that, the
+ * <code>realm</code> query parameter. Requests naming neither use {@link Realms#DEFAULT}; requests naming an invalid
+ * realm are refused with 400.
+ */
+@WebFilter( filterName = "realm", urlPatterns = "/api/*", asyncSupported = true )
+public class RealmFilter
+    implements Filter
+{
+
+    public static final String REALM_HEADER = "X-Realm";
+
+    public static final String REALM_PARAM = "realm";
+
+    @Override
+    public void init( final FilterConfig filterConfig )
+        throws ServletException
+    {
+    }
+
+    @Override
+    public void doFilter( final ServletRequest request, final ServletResponse response, final FilterChain chain )
+        throws IOException, ServletException
+    {
+        String realm = null;
+        if ( request instanceof HttpServletRequest )
+        {
+            realm = ( (HttpServletRequest) request ).getHeader( REALM_HEADER );
+        }
+
+        if ( realm == null )
+        {
+            realm = request.getParameter( REALM_PARAM );
+        }
+
+        if ( realm == null )
+        {
+            realm = Realms.DEFAULT;
+        }
+        else if ( !Realms.isValid( realm ) )
+        {
+            ( (HttpServletResponse) response ).sendError( HttpServletResponse.SC_BAD_REQUEST, "Invalid realm: "
+                + realm );
+            return;
+        }
+
+        final String previous = Realms.enter( realm );
+        try
+        {
+            chain.doFilter( request, response );
+        }
+        finally
+        {
+            Realms.restore( previous );
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+/**
+ * Activation of a CDI request context on a thread the container didn't start the request on, through the
+ * <code>RequestContextController</code> of CDI 2.0 and later, without requiring this code to be compiled against
+ * that API.
+ */
+public final class RequestContexts
+{
+
+    private static final Method CURRENT = method( "javax.enterprise.inject.spi.CDI", "current" );
+
+    private static final Class<?> CONTROLLER = type( "javax.enterprise.context.control.RequestContextController" );
+
+    private RequestContexts()
+    {
+    }
+
+    public static boolean isSupported()
+    {
+        return CURRENT != null && CONTROLLER != null;
+    }
+
+    /**
+     * Run <code>task</code> inside a request context of its own, which is destroyed when the task ends.
+     */
+    public static void run( final Runnable task )
+        throws Exception
+    {
+        final Object cdi = CURRENT.invoke( null );
+        final Object instance =
+            cdi.getClass()
+               .getMethod( "select", Class.class, Annotation[].class )
+               .invoke( cdi, CONTROLLER, new Annotation[0] );
+
+        final Object controller = instance.getClass()
+                                          .getMethod( "get" )
+                                          .invoke( instance );
+
+        final boolean activated = (Boolean) CONTROLLER.getMethod( "activate" )
+                                                      .invoke( controller );
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            if ( activated )
+            {
+                CONTROLLER.getMethod( "deactivate" )
+                          .invoke( controller );
+            }
+        }
+    }
+
+    private static Method method( final String className, final String name )
+    {
+        final Class<?> type = type( className );
+        if ( type == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return type.getMethod( name );
+        }
+        catch ( final NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
+    private static Class<?> type( final String className )
+    {
+        try
+        {
+            return Class.forName( className );
+        }
+        catch ( final ClassNotFoundException e )
+        {
+            return null;
+        }
+    }
+
+}
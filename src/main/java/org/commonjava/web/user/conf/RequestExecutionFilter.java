@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletResponse;
+
+import org.commonjava.util.logging.Logger;
+
+/**
+ * When <code>execution.mode = virtual</code>, puts each REST request into async mode and runs the rest of the
+ * filter chain (the JAX-RS resource and the JPA round trip behind it) on a virtual thread of its own, returning the
+ * container's request thread to its pool immediately. The virtual thread runs with the request thread's container
+ * context, captured through the default {@link ContextServices context service}, and inside a CDI request context
+ * of its own ({@link RequestContexts}). See {@link VirtualThreads} for what may still pin a carrier thread.
+ * <p>
+ * Otherwise, or when the JVM has no virtual threads (before Java 21), the container has no default context service
+ * (before Java EE 7) or can't activate request contexts (before CDI 2.0), requests run on the container thread as
+ * before. A request still running after {@link #TIMEOUT_SECONDS} is answered with <code>503</code>; the virtual
+ * thread then finds its {@link GuardedResponse response} closed, and its remaining writes fail.
+ * </p>
+ */
+@WebFilter( filterName = "request-execution", urlPatterns = "/api/*", asyncSupported = true )
+public class RequestExecutionFilter
+    implements Filter
+{
+
+    public static final String VIRTUAL_MODE = "virtual";
+
+    /**
+     * Comfortably longer than the longest change-feed poll.
+     */
+    public static final int TIMEOUT_SECONDS = 120;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    private ContextServices contexts;
+
+    private ExecutorService executor;
+
+    @Override
+    public void init( final FilterConfig filterConfig )
+        throws ServletException
+    {
+        if ( !VIRTUAL_MODE.equals( config.getExecutionMode() ) )
+        {
+            return;
+        }
+
+        if ( !VirtualThreads.isSupported() )
+        {
+            logger.info( "Virtual-thread execution requested, but this JVM does not support it. "
+                + "Using container request threads." );
+            return;
+        }
+
+        if ( !RequestContexts.isSupported() )
+        {
+            logger.info( "Virtual-thread execution requested, but this container cannot activate CDI request "
+                + "contexts. Using container request threads." );
+            return;
+        }
+
+        contexts = ContextServices.lookup();
+        if ( contexts == null )
+        {
+            logger.info( "Virtual-thread execution requested, but there is no context service at: %s. "
+                + "Using container request threads.", ContextServices.DEFAULT_CONTEXT_SERVICE );
+            return;
+        }
+
+        executor = VirtualThreads.newPerTaskExecutor();
+        logger.info( "REST requests will execute on virtual threads." );
+        if ( VirtualThreads.pinsInMonitors() )
+        {
+            logger.info( "On this JVM a virtual thread blocked inside synchronized pins its carrier; run with "
+                + "-Djdk.tracePinnedThreads=full to check the JDBC driver." );
+        }
+    }
+
+    @Override
+    public void doFilter( final ServletRequest request, final ServletResponse response, final FilterChain chain )
+        throws IOException, ServletException
+    {
+        if ( executor == null || !request.isAsyncSupported() || !( response instanceof HttpServletResponse ) )
+        {
+            chain.doFilter( request, response );
+            return;
+        }
+
+        final AsyncContext ctx = request.startAsync( request, response );
+        final GuardedResponse guarded = new GuardedResponse( (HttpServletResponse) ctx.getResponse() );
+
+        ctx.setTimeout( TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS ) );
+        ctx.addListener( new AsyncListener()
+        {
+            @Override
+            public void onTimeout( final AsyncEvent event )
+            {
+                if ( guarded.finish( ctx, HttpServletResponse.SC_SERVICE_UNAVAILABLE ) )
+                {
+                    logger.error( "Request timed out after %d seconds.", TIMEOUT_SECONDS );
+                }
+            }
+
+            @Override
+            public void onComplete( final AsyncEvent event )
+            {
+            }
+
+            @Override
+            public void onError( final AsyncEvent event )
+            {
+            }
+
+            @Override
+            public void onStartAsync( final AsyncEvent event )
+            {
+            }
+        } );
+
+        try
+        {
+            // captured here, on the container thread, for the virtual thread to run with.
+            executor.execute( contexts.contextual( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    int status = 0;
+                    try
+                    {
+                        RequestContexts.run( new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                try
+                                {
+                                    chain.doFilter( ctx.getRequest(), guarded );
+                                }
+                                catch ( final IOException e )
+                                {
+                                    throw new IllegalStateException( e );
+                                }
+                                catch ( final ServletException e )
+                                {
+                                    throw new IllegalStateException( e );
+                                }
+                            }
+                        } );
+                    }
+                    catch ( final Exception e )
+                    {
+                        logger.error( "Request failed on virtual thread: %s", e, e.getMessage() );
+                        status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+                    }
+                    finally
+                    {
+                        guarded.finish( ctx, status );
+                    }
+                }
+            } ) );
+        }
+        catch ( final RejectedExecutionException e )
+        {
+            logger.error( "Cannot hand request off to a virtual thread: %s", e, e.getMessage() );
+            guarded.finish( ctx, HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+        }
+        catch ( final Exception e )
+        {
+            logger.error( "Cannot capture the container context of the request: %s", e, e.getMessage() );
+            guarded.finish( ctx, HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        if ( executor != null )
+        {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+}
@@ -8,4 +8,82 @@ public interface UserManagerConfiguration
 
     User createInitialAdminUser( final PasswordManager passwordManager );
 
+    /**
+     * Transport used to broadcast cache invalidations to other nodes: <code>none</code>, <code>loopback</code> or
+     * <code>multicast</code>.
+     */
+    String getClusterTransport();
+
+    String getClusterGroup();
+
+    int getClusterPort();
+
+    /**
+     * How REST requests are executed: <code>platform</code> (on the container's request threads) or
+     * <code>virtual</code> (each request on a virtual thread of its own, on Java 21 and later in a container with a
+     * default context service and CDI 2.0; otherwise as <code>platform</code>).
+     */
+    String getExecutionMode();
+
+    /**
+     * Shared secret used to sign access tokens. If unset, each node generates a random one at startup, so tokens are
+     * only honoured by the node that issued them and do not survive a restart.
+     */
+    String getTokenSecret();
+
+    int getTokenTtlSeconds();
+
+    /**
+     * Caching of role, permission and per-user authorization lookups: <code>none</code> (roles and permissions are
+     * not cached; authorization views are cached until invalidated) or <code>refresh-ahead</code>.
+     */
+    String getCacheMode();
+
+    int getCacheRefreshSeconds();
+
+    int getCacheExpireSeconds();
+
+    /**
+     * How long past expiry an entry may still be served when reloading it fails.
+     */
+    int getCacheStaleGraceSeconds();
+
+    /**
+     * Most entries each lookup cache holds, in every cache mode; the least recently read are evicted beyond it.
+     */
+    int getCacheMaxEntries();
+
+    /**
+     * Where the realm keeps resolved per-user authorization: <code>heap</code> or <code>off-heap</code> (serialized
+     * into a fixed-size direct buffer of {@link #getAuthorizationStoreMegabytes()} MB, evicting oldest first).
+     */
+    String getAuthorizationStore();
+
+    int getAuthorizationStoreMegabytes();
+
+    /**
+     * Comma-separated JNDI names of read-replica datasources (or JDBC URLs of embedded databases, for local testing).
+     * When set, lookups and listings are spread across the replicas and only writes (and reads a replica hasn't caught
+     * up with) go to the primary. Unset by default.
+     */
+    String getReadReplicas();
+
+    /**
+     * Comma-separated JNDI names of the JTA datasources users are sharded across, in shard order. Only read when the
+     * sharded backend is enabled in beans.xml; shard 0 also holds the change log.
+     */
+    String getShards();
+
+    /**
+     * How many of {@link #getShards()} users are currently placed on. Set it to the old shard count when appending a
+     * shard, then rebalance; zero (the default) means all of them.
+     */
+    int getSettledShards();
+
+    /**
+     * How many of the most recent change log entries to keep; older ones are pruned as new changes are logged, and
+     * change feed consumers that fall further behind have to resynchronize. Zero keeps everything.
+     */
+    int getChangeRetention();
+
 }
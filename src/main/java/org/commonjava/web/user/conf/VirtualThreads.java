@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.conf;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual-thread executors on JVMs that provide them (Java 21 and later), without requiring this code to
+ * be compiled against such a JVM.
+ * <p>
+ * A virtual thread that blocks while holding a monitor (inside <code>synchronized</code>) pins its carrier thread
+ * until Java 24. What the request path does while blocked has been kept out of monitors: entities, caches, indexes,
+ * limiters and the change feed use <code>java.util.concurrent</code> locks, and <code>Role.addPermission</code> and
+ * <code>UserDataException.getMessage</code> no longer synchronize. The remaining monitors on that path are outside
+ * this code: the JDBC driver and the container's connection pool (many drivers lock their socket I/O with
+ * <code>synchronized</code>), and <code>SecureRandom</code> in <code>PasswordManager</code>, whose brief read of
+ * the entropy source happens only when a password is generated. On Java 21 to 23, run with
+ * <code>-Djdk.tracePinnedThreads=full</code> to see whether the driver pins; Java 24 and later don't pin on monitors.
+ * </p>
+ */
+public final class VirtualThreads
+{
+
+    /**
+     * The first Java version whose virtual threads don't pin their carrier while blocked in a monitor.
+     */
+    public static final int UNPINNED_MONITORS_VERSION = 24;
+
+    private static final Method NEW_EXECUTOR = lookup();
+
+    private VirtualThreads()
+    {
+    }
+
+    public static boolean isSupported()
+    {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return whether a virtual thread blocked inside <code>synchronized</code> still pins its carrier on this JVM
+     */
+    public static boolean pinsInMonitors()
+    {
+        final String version = System.getProperty( "java.specification.version" );
+        try
+        {
+            return Integer.parseInt( version ) < UNPINNED_MONITORS_VERSION;
+        }
+        catch ( final NumberFormatException e )
+        {
+            // "1.x" versions predate virtual threads altogether.
+            return true;
+        }
+    }
+
+    /**
+     * A new executor that starts one virtual thread per task, or null if this JVM has no virtual threads.
+     */
+    public static ExecutorService newPerTaskExecutor()
+    {
+        if ( NEW_EXECUTOR == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return (ExecutorService) NEW_EXECUTOR.invoke( null );
+        }
+        catch ( final Exception e )
+        {
+            return null;
+        }
+    }
+
+    private static Method lookup()
+    {
+        try
+        {
+            return Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+        }
+        catch ( final NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
+}
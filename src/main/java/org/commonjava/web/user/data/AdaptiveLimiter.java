@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.inject.Singleton;
+
+/**
+ * Latency-driven concurrency limit for calls into the data backend.
+ * <p>
+ * The limit grows additively (by roughly one per limit's worth of fast calls) while observed latency stays near the
+ * best latency seen recently for the same kind of call, and shrinks multiplicatively as soon as latency rises well
+ * above it, i.e. when the database starts queueing. Each {@link Priority} keeps its own baseline, the minimum over
+ * the last one to two {@link #BASELINE_WINDOW_SECONDS}-second windows, so slow listings are not judged against fast
+ * lookups, and a database that has become permanently slower is accepted as normal within two windows.
+ * </p>
+ * <p>
+ * Each priority may only use a fraction of the current limit, so as the limit tightens, listings are refused first,
+ * then admin CRUD, and authentication lookups last. Refused calls fail immediately with {@link OverloadException}
+ * rather than waiting. The caller decides the priority of its calls with {@link Priority#enter(Priority)}; calls made
+ * without one count as {@link Priority#CRUD}.
+ * </p>
+ */
+@Singleton
+public class AdaptiveLimiter
+{
+
+    public enum Priority
+    {
+        AUTH( 1.0 ), CRUD( 0.75 ), LIST( 0.5 );
+
+        private static final ThreadLocal<Priority> CURRENT = new ThreadLocal<Priority>();
+
+        private final double share;
+
+        private Priority( final double share )
+        {
+            this.share = share;
+        }
+
+        public static Priority current()
+        {
+            final Priority priority = CURRENT.get();
+            return priority == null ? CRUD : priority;
+        }
+
+        /**
+         * Make <code>priority</code> the priority of this thread's backend calls.
+         * 
+         * @return the previous priority, to hand to {@link #restore(Priority)}
+         */
+        public static Priority enter( final Priority priority )
+        {
+            final Priority previous = CURRENT.get();
+            CURRENT.set( priority );
+            return previous;
+        }
+
+        public static void restore( final Priority previous )
+        {
+            if ( previous == null )
+            {
+                CURRENT.remove();
+            }
+            else
+            {
+                CURRENT.set( previous );
+            }
+        }
+    }
+
+    private static final double MIN_LIMIT = 4;
+
+    private static final double MAX_LIMIT = 200;
+
+    private static final double INITIAL_LIMIT = 20;
+
+    private static final double TOLERANCE = 2.0;
+
+    private static final double BACKOFF = 0.9;
+
+    public static final int BASELINE_WINDOW_SECONDS = 30;
+
+    private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos( BASELINE_WINDOW_SECONDS );
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong shed = new AtomicLong();
+
+    private final Lock sampleLock = new ReentrantLock();
+
+    private volatile double limit = INITIAL_LIMIT;
+
+    private final long[] windowMin = new long[Priority.values().length];
+
+    private final long[] previousWindowMin = new long[Priority.values().length];
+
+    private long windowStart = System.nanoTime();
+
+    public AdaptiveLimiter()
+    {
+        Arrays.fill( windowMin, Long.MAX_VALUE );
+        Arrays.fill( previousWindowMin, Long.MAX_VALUE );
+    }
+
+    /**
+     * Admit a call of the given priority, or throw {@link OverloadException} if its share of the limit is used up.
+     * 
+     * @return a start timestamp to pass to {@link #release(Priority, long)} when the call completes
+     */
+    public long acquire( final Priority priority )
+    {
+        final double allowed = Math.max( 1, limit * priority.share );
+        while ( true )
+        {
+            final int current = inFlight.get();
+            if ( current >= allowed )
+            {
+                shed.incrementAndGet();
+                throw new OverloadException( "Data backend is saturated (%s in flight, limit %s); shedding %s call.",
+                                             current, (int) limit, priority );
+            }
+
+            if ( inFlight.compareAndSet( current, current + 1 ) )
+            {
+                return System.nanoTime();
+            }
+        }
+    }
+
+    public void release( final Priority priority, final long start )
+    {
+        final long now = System.nanoTime();
+        final long latency = now - start;
+        inFlight.decrementAndGet();
+
+        if ( !sampleLock.tryLock() )
+        {
+            // another completion is adjusting the limit; one sample more or less makes no difference.
+            return;
+        }
+
+        try
+        {
+            if ( now - windowStart > BASELINE_WINDOW_NANOS )
+            {
+                System.arraycopy( windowMin, 0, previousWindowMin, 0, windowMin.length );
+                Arrays.fill( windowMin, Long.MAX_VALUE );
+                windowStart = now;
+            }
+
+            final int i = priority.ordinal();
+            windowMin[i] = Math.min( windowMin[i], latency );
+            final long baselineNanos = Math.min( windowMin[i], previousWindowMin[i] );
+
+            if ( latency > baselineNanos * TOLERANCE )
+            {
+                limit = Math.max( MIN_LIMIT, limit * BACKOFF );
+            }
+            else
+            {
+                limit = Math.min( MAX_LIMIT, limit + 1 / limit );
+            }
+        }
+        finally
+        {
+            sampleLock.unlock();
+        }
+    }
+
+    public int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    public long getShedCount()
+    {
+        return shed.get();
+    }
+
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.conf.ManagedTasks;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+
+/**
+ * Creates the lookup caches according to the configured <code>cache.mode</code>. Their background refreshes run on
+ * the managed executor ({@link ManagedTasks}), at most {@link #MAX_PENDING} at a time; past that, refreshes are
+ * skipped and a later read tries again.
+ */
+@Singleton
+public class CacheRefresher
+{
+
+    public static final String REFRESH_AHEAD = "refresh-ahead";
+
+    public static final int MAX_PENDING = 1000;
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    @Inject
+    private ManagedTasks tasks;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final Executor executor = new Executor()
+    {
+        @Override
+        public void execute( final Runnable refresh )
+        {
+            if ( pending.incrementAndGet() > MAX_PENDING )
+            {
+                pending.decrementAndGet();
+                throw new RejectedExecutionException( "Too many cache refreshes pending." );
+            }
+
+            try
+            {
+                tasks.execute( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            refresh.run();
+                        }
+                        finally
+                        {
+                            pending.decrementAndGet();
+                        }
+                    }
+                } );
+            }
+            catch ( final RuntimeException e )
+            {
+                pending.decrementAndGet();
+                throw e;
+            }
+        }
+    };
+
+    public boolean isRefreshAhead()
+    {
+        return REFRESH_AHEAD.equalsIgnoreCase( config.getCacheMode() );
+    }
+
+    /**
+     * @return a refresh-ahead cache with the configured timings, or, when refresh-ahead is off, one whose entries
+     *         never age and live until invalidated or evicted; either way holding at most
+     *         <code>cache.max-entries</code>
+     */
+    public <V> RefreshAheadCache<V> newCache( final String name )
+    {
+        if ( !isRefreshAhead() )
+        {
+            return new RefreshAheadCache<V>( name, Long.MAX_VALUE, Long.MAX_VALUE, 0, config.getCacheMaxEntries(),
+                                             executor );
+        }
+
+        return new RefreshAheadCache<V>( name, TimeUnit.SECONDS.toMillis( config.getCacheRefreshSeconds() ),
+                                         TimeUnit.SECONDS.toMillis( config.getCacheExpireSeconds() ),
+                                         TimeUnit.SECONDS.toMillis( config.getCacheStaleGraceSeconds() ),
+                                         config.getCacheMaxEntries(), executor );
+    }
+
+}
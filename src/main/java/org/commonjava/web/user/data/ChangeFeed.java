@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.model.ChangeRecord;
+
+/**
+ * Long-poll access to the change log. Readers that are caught up block until the next {@link Saved} or
+ * {@link Deleted} event, or until their wait times out, and then re-read the log from their last sequence.
+ */
+@Singleton
+public class ChangeFeed
+{
+
+    private final Lock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private long generation;
+
+    @Inject
+    private UserDataBackend backend;
+
+    public List<ChangeRecord> getChanges( final long since, final int limit, final long waitMillis )
+        throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + waitMillis;
+        while ( true )
+        {
+            final long observed = currentGeneration();
+
+            final List<ChangeRecord> changes = backend.getChanges( since, limit );
+            final long remaining = deadline - System.currentTimeMillis();
+            if ( !changes.isEmpty() || remaining <= 0 )
+            {
+                return changes;
+            }
+
+            lock.lock();
+            try
+            {
+                if ( generation == observed )
+                {
+                    changed.await( remaining, TimeUnit.MILLISECONDS );
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The highest sequence pruned from the log; readers resuming from below it have missed changes.
+     */
+    public long getPrunedThrough()
+    {
+        return backend.getChangesPrunedThrough();
+    }
+
+    public void onSaved( @Observes @Saved final Object entity )
+    {
+        signal();
+    }
+
+    public void onDeleted( @Observes @Deleted final Object entity )
+    {
+        signal();
+    }
+
+    private long currentGeneration()
+    {
+        lock.lock();
+        try
+        {
+            return generation;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void signal()
+    {
+        lock.lock();
+        try
+        {
+            generation++;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+}
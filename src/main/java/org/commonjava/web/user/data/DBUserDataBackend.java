@@ -16,14 +16,11 @@
  ******************************************************************************/
 package org.commonjava.web.user.data;
 
-import static org.commonjava.web.user.model.GeneralizationUtils.generalizePermissions;
-import static org.commonjava.web.user.model.GeneralizationUtils.generalizeRoles;
-import static org.commonjava.web.user.model.GeneralizationUtils.generalizeUsers;
-
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.Collection;
 import java.util.List;
 
 import javax.enterprise.event.Event;
@@ -33,20 +30,24 @@ import javax.inject.Qualifier;
 import javax.inject.Singleton;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
-import javax.persistence.NoResultException;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceContext;
-import javax.persistence.criteria.CriteriaBuilder;
-import javax.persistence.criteria.CriteriaQuery;
-import javax.persistence.criteria.Root;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
 import javax.transaction.NotSupportedException;
 import javax.transaction.RollbackException;
+import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
 
 import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.cluster.InvalidationBus;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.ChangeRecord.Action;
+import org.commonjava.web.user.model.Page;
 import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
 import org.commonjava.web.user.model.Role;
 import org.commonjava.web.user.model.User;
 
@@ -54,82 +55,156 @@ import org.commonjava.web.user.model.User;
 public class DBUserDataBackend
     implements UserDataBackend
 {
+
     private final Logger logger = new Logger( getClass() );
 
+    private final UserQueries queries = new UserQueries();
+
     @Inject
     @UserRepository
     private EntityManager em;
 
     @Inject
+    @Saved
     private Event<User> userEventSrc;
 
     @Inject
+    @Saved
     private Event<Role> roleEventSrc;
 
     @Inject
+    @Saved
     private Event<Permission> permissionEventSrc;
 
+    @Inject
+    @Deleted
+    private Event<User> userDeletedEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<Role> roleDeletedEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<Permission> permissionDeletedEventSrc;
+
     @Inject
     private UserTransaction tx;
 
+    @Inject
+    private InvalidationBus invalidationBus;
+
+    @Inject
+    private EventDispatcher dispatcher;
+
+    @Inject
+    private ReplicaRouter replicas;
+
+    @Inject
+    private UserManagerConfiguration config;
+
     @Override
     public boolean hasUser( final String username )
     {
-        return em.contains( new User( username ) );
+        return exists( User.class, "username", username );
     }
 
     @Override
     public boolean hasRole( final String name )
     {
-        return em.contains( new Role( name ) );
+        return exists( Role.class, "name", name );
     }
 
     @Override
     public boolean hasPermission( final String name )
     {
-        return em.contains( new Permission( name ) );
+        return exists( Permission.class, "name", name );
     }
 
     @Override
     public List<User> getUsers()
     {
-        final CriteriaBuilder cb = em.getCriteriaBuilder();
-        final CriteriaQuery<User> query = cb.createQuery( User.class );
-        final Root<User> root = query.from( User.class );
-
-        query.select( root )
-             .orderBy( cb.asc( root.get( "lastName" ) ), cb.asc( root.get( "firstName" ) ) );
-
-        return generalizeUsers( em.createQuery( query )
-                                  .getResultList() );
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.users( reader );
+        }
+        finally
+        {
+            release( reader );
+        }
     }
 
     @Override
     public List<Role> getRoles()
     {
-        final CriteriaBuilder cb = em.getCriteriaBuilder();
-        final CriteriaQuery<Role> query = cb.createQuery( Role.class );
-        final Root<Role> root = query.from( Role.class );
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.roles( reader );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
 
-        query.select( root )
-             .orderBy( cb.asc( root.get( "name" ) ) );
+    @Override
+    public List<Permission> getPermissions()
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.permissions( reader );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
 
-        return generalizeRoles( em.createQuery( query )
-                                  .getResultList() );
+    @Override
+    public List<User> getUsers( final Collection<String> usernames )
+    {
+        return getByNames( User.class, "username", usernames );
     }
 
     @Override
-    public List<Permission> getPermissions()
+    public List<Role> getRoles( final Collection<String> names )
     {
-        final CriteriaBuilder cb = em.getCriteriaBuilder();
-        final CriteriaQuery<Permission> query = cb.createQuery( Permission.class );
-        final Root<Permission> root = query.from( Permission.class );
+        return getByNames( Role.class, "name", names );
+    }
 
-        query.select( root )
-             .orderBy( cb.asc( root.get( "name" ) ) );
+    @Override
+    public List<Permission> getPermissions( final Collection<String> names )
+    {
+        return getByNames( Permission.class, "name", names );
+    }
 
-        return generalizePermissions( em.createQuery( query )
-                                        .getResultList() );
+    private boolean exists( final Class<?> type, final String field, final String value )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.exists( reader, type, field, value );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
+
+    private <T> List<T> getByNames( final Class<T> type, final String field, final Collection<String> names )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.byNames( reader, type, field, names );
+        }
+        finally
+        {
+            release( reader );
+        }
     }
 
     @Override
@@ -145,16 +220,35 @@ public class DBUserDataBackend
 
             em.joinTransaction();
 
+            User saved = user;
             boolean success = true;
             try
             {
-                em.persist( user );
+                if ( user.getId() == 0 )
+                {
+                    em.persist( user );
+                }
+                else
+                {
+                    saved = em.merge( user );
+                }
+
+                logChange( new ChangeRecord( saved.getRealm(), ChangeRecord.USER, saved.getUsername(), Action.SAVE ) );
             }
             catch ( final EntityExistsException e )
             {
                 success = false;
                 logger.error( "\n\n\nUser exists: %s\n\n\n", e, user.getUsername() );
             }
+            catch ( final OptimisticLockException e )
+            {
+                if ( autoCommit )
+                {
+                    tx.rollback();
+                }
+
+                throw new StaleDataException( "User has been modified concurrently: %s", e, user.getUsername() );
+            }
 
             if ( autoCommit )
             {
@@ -168,9 +262,12 @@ public class DBUserDataBackend
                 }
             }
 
-            userEventSrc.fire( user );
+            if ( success )
+            {
+                notifyChanged( saved.getRealm(), ChangeRecord.USER, saved.getUsername(), userEventSrc, saved );
+            }
 
-            return user;
+            return saved;
         }
         catch ( final NotSupportedException e )
         {
@@ -182,6 +279,11 @@ public class DBUserDataBackend
         }
         catch ( final RollbackException e )
         {
+            if ( e.getCause() instanceof OptimisticLockException )
+            {
+                throw new StaleDataException( "User has been modified concurrently: %s", e, user.getUsername() );
+            }
+
             throw new UserDataException( "Cannot save user: %s. Error: %s", e, user, e.getMessage() );
         }
         catch ( final HeuristicMixedException e )
@@ -207,16 +309,35 @@ public class DBUserDataBackend
 
             em.joinTransaction();
 
+            Role saved = role;
             boolean success = true;
             try
             {
-                em.persist( role );
+                if ( role.getId() == 0 )
+                {
+                    em.persist( role );
+                }
+                else
+                {
+                    saved = em.merge( role );
+                }
+
+                logChange( new ChangeRecord( saved.getRealm(), ChangeRecord.ROLE, saved.getName(), Action.SAVE ) );
             }
             catch ( final EntityExistsException e )
             {
                 success = false;
                 logger.error( "\n\n\nRole exists: %s\n\n\n", e, role.getName() );
             }
+            catch ( final OptimisticLockException e )
+            {
+                if ( autoCommit )
+                {
+                    tx.rollback();
+                }
+
+                throw new StaleDataException( "Role has been modified concurrently: %s", e, role.getName() );
+            }
 
             if ( autoCommit )
             {
@@ -230,9 +351,12 @@ public class DBUserDataBackend
                 }
             }
 
-            roleEventSrc.fire( role );
+            if ( success )
+            {
+                notifyChanged( saved.getRealm(), ChangeRecord.ROLE, saved.getName(), roleEventSrc, saved );
+            }
 
-            return role;
+            return saved;
         }
         catch ( final NotSupportedException e )
         {
@@ -244,6 +368,11 @@ public class DBUserDataBackend
         }
         catch ( final RollbackException e )
         {
+            if ( e.getCause() instanceof OptimisticLockException )
+            {
+                throw new StaleDataException( "Role has been modified concurrently: %s", e, role.getName() );
+            }
+
             throw new UserDataException( "Cannot save role: %s. Error: %s", e, role, e.getMessage() );
         }
         catch ( final HeuristicMixedException e )
@@ -269,16 +398,36 @@ public class DBUserDataBackend
 
             em.joinTransaction();
 
+            Permission saved = perm;
             boolean success = true;
             try
             {
-                em.persist( perm );
+                if ( perm.getId() == 0 )
+                {
+                    em.persist( perm );
+                }
+                else
+                {
+                    saved = em.merge( perm );
+                }
+
+                logChange( new ChangeRecord( saved.getRealm(), ChangeRecord.PERMISSION, saved.getName(),
+                                             Action.SAVE ) );
             }
             catch ( final EntityExistsException e )
             {
                 success = false;
                 logger.error( "\n\n\nPermission exists: %s\n\n\n", e, perm.getName() );
             }
+            catch ( final OptimisticLockException e )
+            {
+                if ( autoCommit )
+                {
+                    tx.rollback();
+                }
+
+                throw new StaleDataException( "Permission has been modified concurrently: %s", e, perm.getName() );
+            }
 
             if ( autoCommit )
             {
@@ -292,9 +441,12 @@ public class DBUserDataBackend
                 }
             }
 
-            permissionEventSrc.fire( perm );
+            if ( success )
+            {
+                notifyChanged( saved.getRealm(), ChangeRecord.PERMISSION, saved.getName(), permissionEventSrc, saved );
+            }
 
-            return perm;
+            return saved;
         }
         catch ( final NotSupportedException e )
         {
@@ -306,6 +458,11 @@ public class DBUserDataBackend
         }
         catch ( final RollbackException e )
         {
+            if ( e.getCause() instanceof OptimisticLockException )
+            {
+                throw new StaleDataException( "Permission has been modified concurrently: %s", e, perm.getName() );
+            }
+
             throw new UserDataException( "Cannot save permission: %s. Error: %s", e, perm, e.getMessage() );
         }
         catch ( final HeuristicMixedException e )
@@ -321,77 +478,193 @@ public class DBUserDataBackend
     @Override
     public User getUser( final String username )
     {
-        final CriteriaBuilder cb = em.getCriteriaBuilder();
-        final CriteriaQuery<User> query = cb.createQuery( User.class );
-        final Root<User> root = query.from( User.class );
+        return getUserBy( "username", username );
+    }
 
-        query.select( root )
-             .where( cb.equal( root.get( "username" ), username ) );
+    @Override
+    public User findUser( final String username )
+    {
+        return getUserBy( "usernameKey", User.normalize( username ) );
+    }
 
-        User user = null;
+    @Override
+    public User getUserByEmail( final String email )
+    {
+        return getUserBy( "emailKey", User.normalize( email ) );
+    }
+
+    private User getUserBy( final String field, final String value )
+    {
+        final EntityManager reader = reader();
         try
         {
-            // TODO: cleaner way to check for user existence...
-            user = em.createQuery( query )
-                     .getSingleResult();
+            return queries.user( reader, field, value );
         }
-        catch ( final NoResultException e )
+        finally
         {
-            logger.debug( "Cannot find user: %s. Error: %s", e, username, e.getMessage() );
+            release( reader );
         }
-
-        return user;
     }
 
     @Override
     public Permission getPermission( final String permissionName )
     {
-        final CriteriaBuilder cb = em.getCriteriaBuilder();
-        final CriteriaQuery<Permission> query = cb.createQuery( Permission.class );
-        final Root<Permission> root = query.from( Permission.class );
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.permission( reader, permissionName );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
+
+    @Override
+    public Role getRole( final String roleName )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.role( reader, roleName );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
+
+    @Override
+    public User fetchUser( final String username, final boolean roles, final boolean rolePermissions )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.fetchUser( reader, username, roles, rolePermissions );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
 
-        query.select( root )
-             .where( cb.equal( root.get( "name" ), permissionName ) );
+    @Override
+    public Role fetchRole( final String name, final boolean permissions )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.fetchRole( reader, name, permissions );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
 
-        Permission perm = null;
+    @Override
+    public Page<String> getUserRoleNames( final String username, final int start, final int limit )
+    {
+        final EntityManager reader = reader();
         try
         {
-            // TODO: cleaner way to check for user existence...
-            perm = em.createQuery( query )
-                     .getSingleResult();
+            return queries.userRoleNames( reader, username, start, limit );
         }
-        catch ( final NoResultException e )
+        finally
         {
-            logger.debug( "Cannot find permission: %s. Error: %s", e, permissionName, e.getMessage() );
+            release( reader );
         }
+    }
 
-        return perm;
+    @Override
+    public Page<String> getRolePermissionNames( final String roleName, final int start, final int limit )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.rolePermissionNames( reader, roleName, start, limit );
+        }
+        finally
+        {
+            release( reader );
+        }
     }
 
     @Override
-    public Role getRole( final String roleName )
+    public List<String> getRealms()
     {
-        final CriteriaBuilder cb = em.getCriteriaBuilder();
-        final CriteriaQuery<Role> query = cb.createQuery( Role.class );
-        final Root<Role> root = query.from( Role.class );
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.realms( reader );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
 
-        query.select( root )
-             .where( cb.equal( root.get( "name" ), roleName ) );
+    /**
+     * Where lookups go: a replica that has caught up with what the current thread must see, or the primary. Reads
+     * inside a transaction always go to the primary, since they may be about to feed a write.
+     */
+    private EntityManager reader()
+    {
+        if ( !replicas.isEnabled() || inTransaction() )
+        {
+            return em;
+        }
 
-        Role role = null;
+        final EntityManager replica = replicas.open();
+        return replica == null ? em : replica;
+    }
 
+    private void release( final EntityManager reader )
+    {
+        if ( reader != em )
+        {
+            reader.close();
+        }
+    }
+
+    private boolean inTransaction()
+    {
         try
         {
-            // TODO: cleaner way to check for user existence...
-            role = em.createQuery( query )
-                     .getSingleResult();
+            return tx.getStatus() != Status.STATUS_NO_TRANSACTION;
         }
-        catch ( final NoResultException e )
+        catch ( final SystemException e )
         {
-            logger.debug( "Cannot find role: %s. Error: %s", e, roleName, e.getMessage() );
+            return true;
         }
+    }
 
-        return role;
+    @Override
+    public List<ChangeRecord> getChanges( final long since, final int limit )
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.changes( reader, since, limit );
+        }
+        finally
+        {
+            release( reader );
+        }
+    }
+
+    @Override
+    public long getChangesPrunedThrough()
+    {
+        final EntityManager reader = reader();
+        try
+        {
+            return queries.changesPrunedThrough( reader );
+        }
+        finally
+        {
+            release( reader );
+        }
     }
 
     // public void onUserChanged( @Observes( notifyObserver = Reception.IF_EXISTS ) final User user )
@@ -408,63 +681,165 @@ public class DBUserDataBackend
     public void deletePermission( final String name )
         throws UserDataException
     {
-        try
+        delete( ChangeRecord.PERMISSION, name, new Removal()
         {
-            final Permission perm = getPermission( name );
-            if ( perm == null )
+            @Override
+            void remove()
+                throws UserDataException
             {
-                throw new UserDataException( "No such permission: %s", name );
-            }
+                final Permission perm = queries.permission( em, name );
+                if ( perm == null )
+                {
+                    throw new UserDataException( "No such permission: %s", name );
+                }
 
-            em.remove( perm );
-        }
-        catch ( final IllegalArgumentException e )
-        {
-            logger.debug( "Cannot remove permission: %s. Error: %s", e, name, e.getMessage() );
-            throw new UserDataException( "Cannot delete permission: %s. Error: %s", e, name, e.getMessage() );
-        }
+                em.remove( perm );
+                logChange( new ChangeRecord( perm.getRealm(), ChangeRecord.PERMISSION, name, Action.DELETE ) );
+                notifyChanged( perm.getRealm(), ChangeRecord.PERMISSION, name, permissionDeletedEventSrc, perm );
+            }
+        } );
     }
 
     @Override
     public void deleteRole( final String name )
         throws UserDataException
     {
-        try
+        delete( ChangeRecord.ROLE, name, new Removal()
         {
-            final Role role = getRole( name );
-            if ( role == null )
+            @Override
+            void remove()
+                throws UserDataException
             {
-                throw new UserDataException( "No such role: %s", name );
-            }
+                final Role role = queries.role( em, name );
+                if ( role == null )
+                {
+                    throw new UserDataException( "No such role: %s", name );
+                }
 
-            em.remove( role );
-        }
-        catch ( final IllegalArgumentException e )
-        {
-            logger.debug( "Cannot remove role: %s. Error: %s", e, name, e.getMessage() );
-            throw new UserDataException( "Cannot delete role: %s. Error: %s", e, name, e.getMessage() );
-        }
+                em.remove( role );
+                logChange( new ChangeRecord( role.getRealm(), ChangeRecord.ROLE, name, Action.DELETE ) );
+                notifyChanged( role.getRealm(), ChangeRecord.ROLE, name, roleDeletedEventSrc, role );
+            }
+        } );
     }
 
     @Override
     public void deleteUser( final String username )
         throws UserDataException
     {
+        delete( ChangeRecord.USER, username, new Removal()
+        {
+            @Override
+            void remove()
+                throws UserDataException
+            {
+                final User user = queries.user( em, "username", username );
+                if ( user == null )
+                {
+                    throw new UserDataException( "No such user: %s", username );
+                }
+
+                em.remove( user );
+                logChange( new ChangeRecord( user.getRealm(), ChangeRecord.USER, username, Action.DELETE ) );
+                notifyChanged( user.getRealm(), ChangeRecord.USER, username, userDeletedEventSrc, user );
+            }
+        } );
+    }
+
+    /**
+     * Run <code>removal</code> in the caller's transaction or, when there is none, in one of its own: the change log
+     * entry takes a lock on the sequence counter, which needs a transaction to hold it.
+     */
+    private void delete( final String type, final String name, final Removal removal )
+        throws UserDataException
+    {
+        final boolean autoCommit = !inTransaction();
         try
         {
-            final User user = getUser( username );
-            if ( user == null )
+            if ( autoCommit )
             {
-                throw new UserDataException( "No such user: %s", username );
+                tx.begin();
             }
 
-            em.remove( user );
+            em.joinTransaction();
+
+            boolean completed = false;
+            try
+            {
+                removal.remove();
+                completed = true;
+            }
+            catch ( final IllegalArgumentException e )
+            {
+                logger.debug( "Cannot remove %s: %s. Error: %s", e, type, name, e.getMessage() );
+                throw new UserDataException( "Cannot delete %s: %s. Error: %s", e, type, name, e.getMessage() );
+            }
+            finally
+            {
+                if ( autoCommit && !completed )
+                {
+                    tx.rollback();
+                }
+            }
+
+            if ( autoCommit )
+            {
+                tx.commit();
+            }
         }
-        catch ( final IllegalArgumentException e )
+        catch ( final NotSupportedException e )
         {
-            logger.debug( "Cannot remove user: %s. Error: %s", e, username, e.getMessage() );
-            throw new UserDataException( "Cannot delete user: %s. Error: %s", e, username, e.getMessage() );
+            throw new UserDataException( "Cannot delete %s: %s. Error: %s", e, type, name, e.getMessage() );
         }
+        catch ( final SystemException e )
+        {
+            throw new UserDataException( "Cannot delete %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final RollbackException e )
+        {
+            throw new UserDataException( "Cannot delete %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final HeuristicMixedException e )
+        {
+            throw new UserDataException( "Cannot delete %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final HeuristicRollbackException e )
+        {
+            throw new UserDataException( "Cannot delete %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+    }
+
+    /**
+     * Append to the change log, and remember the sequence so this thread's later reads are served from a replica only
+     * once it has caught up with the change.
+     */
+    private void logChange( final ChangeRecord change )
+    {
+        ReadYourWrites.wrote( queries.logChange( em, change, config.getChangeRetention() ) );
+    }
+
+    /**
+     * Broadcast the change to other nodes and fire its local event, once the surrounding transaction (if any) has
+     * committed. Repeated changes to the same entity in quick succession produce a single notification.
+     */
+    private <T> void notifyChanged( final String realm, final String type, final String name,
+                                    final Event<T> source, final T entity )
+    {
+        dispatcher.dispatch( type + ":" + Realms.key( realm, name ), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                invalidationBus.publish( realm, type, name );
+                source.fire( entity );
+            }
+        } );
+    }
+
+    private abstract static class Removal
+    {
+        abstract void remove()
+            throws UserDataException;
     }
 
     public static final class RepositoryProducer
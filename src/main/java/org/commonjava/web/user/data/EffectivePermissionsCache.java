@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Per-user cache of {@link EffectivePermissions}, computed from the user's roles and invalidated when the user, or
+ * any role or permission the user holds, is saved or deleted. It holds at most <code>cache.max-entries</code> users,
+ * evicting the least recently read. By default entries otherwise live until invalidated; in
+ * <code>refresh-ahead</code> cache mode they are also refreshed in the background while in use, and served past
+ * expiry for a grace period if the database cannot be reached.
+ */
+@Singleton
+public class EffectivePermissionsCache
+{
+
+    @Inject
+    private UserDataBackend backend;
+
+    @Inject
+    private CacheRefresher refresher;
+
+    private RefreshAheadCache<EffectivePermissions> cache;
+
+    @PostConstruct
+    public void initialize()
+    {
+        cache = refresher.newCache( "authorization" );
+    }
+
+    /**
+     * @return the effective permissions of <code>username</code> in the current realm
+     */
+    public EffectivePermissions get( final String username )
+    {
+        return cache.get( Realms.key( Realms.current(), username ), new Callable<EffectivePermissions>()
+        {
+            @Override
+            public EffectivePermissions call()
+            {
+                // load roles and permissions up front: a replica's entity manager is closed before compute reads them.
+                return compute( backend.fetchUser( username, true, true ) );
+            }
+        } );
+    }
+
+    public void invalidate( final String realm, final String username )
+    {
+        cache.invalidate( Realms.key( realm, username ) );
+    }
+
+    public void invalidateAll()
+    {
+        cache.invalidateAll();
+    }
+
+    public RefreshAheadCache<EffectivePermissions> getCache()
+    {
+        return cache;
+    }
+
+    public void onUserSaved( @Observes @Saved final User user )
+    {
+        invalidate( user.getRealm(), user.getUsername() );
+    }
+
+    public void onUserDeleted( @Observes @Deleted final User user )
+    {
+        invalidate( user.getRealm(), user.getUsername() );
+    }
+
+    public void onRoleSaved( @Observes @Saved final Role role )
+    {
+        invalidateHolders( role.getRealm(), role.getName(), true );
+    }
+
+    public void onRoleDeleted( @Observes @Deleted final Role role )
+    {
+        invalidateHolders( role.getRealm(), role.getName(), true );
+    }
+
+    public void onPermissionDeleted( @Observes @Deleted final Permission permission )
+    {
+        invalidateHolders( permission.getRealm(), permission.getName(), false );
+    }
+
+    public static EffectivePermissions compute( final User user )
+    {
+        if ( user == null )
+        {
+            return null;
+        }
+
+        final Set<String> roleNames = new TreeSet<String>();
+        final Set<String> permNames = new TreeSet<String>();
+        if ( user.getRoles() != null )
+        {
+            for ( final Role role : user.getRoles() )
+            {
+                roleNames.add( role.getName() );
+                if ( role.getPermissions() != null )
+                {
+                    for ( final Permission permission : role.getPermissions() )
+                    {
+                        permNames.add( permission.getName() );
+                    }
+                }
+            }
+        }
+
+        return new EffectivePermissions( user.getUsername(), new ArrayList<String>( roleNames ),
+                                         new ArrayList<String>( permNames ) );
+    }
+
+    /**
+     * Role and permission changes are rare, so rather than tracking reverse links here we drop every cached entry
+     * that mentions the changed role or permission.
+     */
+    private void invalidateHolders( final String realm, final String name, final boolean isRole )
+    {
+        final String prefix = Realms.key( realm, "" );
+        cache.invalidateWhere( new RefreshAheadCache.Matcher<EffectivePermissions>()
+        {
+            @Override
+            public boolean matches( final String key, final EffectivePermissions perms )
+            {
+                if ( !key.startsWith( prefix ) )
+                {
+                    return false;
+                }
+
+                final List<String> names = isRole ? perms.getRoles() : perms.getPermissions();
+                return Collections.binarySearch( names, name ) > -1;
+            }
+        } );
+    }
+
+}
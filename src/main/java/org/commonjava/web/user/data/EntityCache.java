@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.concurrent.Callable;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+
+/**
+ * Refresh-ahead caches for role and permission lookups, active only when <code>cache.mode</code> is
+ * <code>refresh-ahead</code>. Entries are dropped as soon as the role or permission is saved or deleted, here or on
+ * another node. Entries are keyed by realm as well as name (see {@link Realms#key(String, String)}), so a change in
+ * one realm never drops another realm's entries.
+ */
+@Singleton
+public class EntityCache
+{
+
+    @Inject
+    private CacheRefresher refresher;
+
+    private boolean enabled;
+
+    private RefreshAheadCache<Role> roles;
+
+    private RefreshAheadCache<Permission> permissions;
+
+    @PostConstruct
+    public void initialize()
+    {
+        enabled = refresher.isRefreshAhead();
+        roles = refresher.newCache( "role" );
+        permissions = refresher.newCache( "permission" );
+    }
+
+    public Role getRole( final String name, final Callable<Role> loader )
+    {
+        return enabled ? roles.get( Realms.key( Realms.current(), name ), loader )
+                        : RefreshAheadCache.call( "role", loader );
+    }
+
+    public Permission getPermission( final String name, final Callable<Permission> loader )
+    {
+        return enabled ? permissions.get( Realms.key( Realms.current(), name ), loader )
+                        : RefreshAheadCache.call( "permission", loader );
+    }
+
+    public RefreshAheadCache<?>[] getCaches()
+    {
+        return new RefreshAheadCache<?>[] { roles, permissions };
+    }
+
+    public void onRoleSaved( @Observes @Saved final Role role )
+    {
+        roles.invalidate( Realms.key( role.getRealm(), role.getName() ) );
+    }
+
+    public void onRoleDeleted( @Observes @Deleted final Role role )
+    {
+        roles.invalidate( Realms.key( role.getRealm(), role.getName() ) );
+    }
+
+    public void onPermissionSaved( @Observes @Saved final Permission permission )
+    {
+        permissions.invalidate( Realms.key( permission.getRealm(), permission.getName() ) );
+    }
+
+    public void onPermissionDeleted( @Observes @Deleted final Permission permission )
+    {
+        permissions.invalidate( Realms.key( permission.getRealm(), permission.getName() ) );
+        // roles embed their permissions; only this realm's roles can hold this one.
+        roles.invalidateWhere( RefreshAheadCache.<Role> keyPrefix( Realms.key( permission.getRealm(), "" ) ) );
+    }
+
+}
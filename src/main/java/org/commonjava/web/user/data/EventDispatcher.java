@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.inject.Singleton;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.commonjava.util.logging.Logger;
+
+/**
+ * Delivers change notifications off the write path, and only once the change is durable.
+ * <p>
+ * A notification dispatched inside a JTA transaction is held until that transaction commits and dropped if it ends
+ * any other way; one dispatched inside a transaction that can no longer commit (marked for rollback, say) is dropped
+ * straight away. Only notifications made outside any transaction are delivered without waiting. Committed
+ * notifications are queued on bounded, single-threaded stripes chosen by key, so notifications for one entity are
+ * delivered in order. Notifications for a key that is already waiting are coalesced: only the latest is delivered,
+ * so a bulk operation produces one notification per entity.
+ * </p>
+ */
+@Singleton
+public class EventDispatcher
+{
+
+    private static final int STRIPES = 4;
+
+    private static final int STRIPE_QUEUE_SIZE = 10000;
+
+    private static final String TX_RESOURCE_KEY = EventDispatcher.class.getName() + ".pending";
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final ConcurrentMap<String, Runnable> pending = new ConcurrentHashMap<String, Runnable>();
+
+    private final ThreadPoolExecutor[] stripes = new ThreadPoolExecutor[STRIPES];
+
+    @Resource( lookup = "java:comp/TransactionSynchronizationRegistry" )
+    private TransactionSynchronizationRegistry txRegistry;
+
+    public EventDispatcher()
+    {
+        for ( int i = 0; i < STRIPES; i++ )
+        {
+            final String name = "user-manager-events-" + i;
+
+            // when a stripe is saturated, the writer delivers its own notification: back-pressure, not data loss.
+            stripes[i] =
+                new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS,
+                                        new ArrayBlockingQueue<Runnable>( STRIPE_QUEUE_SIZE ), new ThreadFactory()
+                                        {
+                                            @Override
+                                            public Thread newThread( final Runnable r )
+                                            {
+                                                final Thread t = new Thread( r, name );
+                                                t.setDaemon( true );
+                                                return t;
+                                            }
+                                        }, new ThreadPoolExecutor.CallerRunsPolicy() );
+        }
+    }
+
+    @PreDestroy
+    protected void shutdown()
+    {
+        for ( final ThreadPoolExecutor stripe : stripes )
+        {
+            stripe.shutdown();
+        }
+    }
+
+    /**
+     * Deliver <code>notification</code> after the current transaction commits, or right away if there is none.
+     * A later notification for the same key supersedes one that has not been delivered yet.
+     */
+    public void dispatch( final String key, final Runnable notification )
+    {
+        final int txStatus = txRegistry == null ? Status.STATUS_NO_TRANSACTION : txRegistry.getTransactionStatus();
+        if ( txStatus == Status.STATUS_NO_TRANSACTION )
+        {
+            enqueue( key, notification );
+        }
+        else if ( txStatus != Status.STATUS_ACTIVE )
+        {
+            logger.debug( "Dropping change notification for: %s; its transaction will not commit (status: %s).", key,
+                          txStatus );
+        }
+        else
+        {
+            @SuppressWarnings( "unchecked" )
+            Map<String, Runnable> inTx = (Map<String, Runnable>) txRegistry.getResource( TX_RESOURCE_KEY );
+            if ( inTx == null )
+            {
+                final Map<String, Runnable> held = new LinkedHashMap<String, Runnable>();
+                txRegistry.putResource( TX_RESOURCE_KEY, held );
+                txRegistry.registerInterposedSynchronization( new Synchronization()
+                {
+                    @Override
+                    public void beforeCompletion()
+                    {
+                    }
+
+                    @Override
+                    public void afterCompletion( final int status )
+                    {
+                        if ( status == Status.STATUS_COMMITTED )
+                        {
+                            for ( final Map.Entry<String, Runnable> entry : held.entrySet() )
+                            {
+                                enqueue( entry.getKey(), entry.getValue() );
+                            }
+                        }
+                    }
+                } );
+
+                inTx = held;
+            }
+
+            inTx.remove( key );
+            inTx.put( key, notification );
+        }
+    }
+
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for ( final ThreadPoolExecutor stripe : stripes )
+        {
+            depth += stripe.getQueue()
+                           .size();
+        }
+
+        return depth;
+    }
+
+    private void enqueue( final String key, final Runnable notification )
+    {
+        if ( pending.put( key, notification ) != null )
+        {
+            // a delivery for this key is already queued; it will pick up the latest notification.
+            return;
+        }
+
+        stripes[( key.hashCode() & Integer.MAX_VALUE ) % STRIPES].execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final Runnable latest = pending.remove( key );
+                if ( latest == null )
+                {
+                    return;
+                }
+
+                try
+                {
+                    latest.run();
+                }
+                catch ( final RuntimeException e )
+                {
+                    logger.error( "Change notification for: %s failed: %s", e, key, e.getMessage() );
+                }
+            }
+        } );
+    }
+
+}
@@ -0,0 +1,461 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.Collection;
+import java.util.List;
+
+import javax.decorator.Decorator;
+import javax.decorator.Delegate;
+import javax.inject.Inject;
+
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.Page;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Puts the {@link AdaptiveLimiter} in front of every {@link UserDataBackend} call, at the priority the caller has
+ * entered ({@link Priority#current()}): the Shiro realm enters {@link Priority#AUTH}, REST reads and writes
+ * {@link Priority#CRUD}, and listings and background cache refreshes {@link Priority#LIST}.
+ */
+@Decorator
+public class LimitedUserDataBackend
+    implements UserDataBackend
+{
+
+    @Inject
+    @Delegate
+    private UserDataBackend delegate;
+
+    @Inject
+    private AdaptiveLimiter limiter;
+
+    @Override
+    public void deleteUser( final String username )
+        throws UserDataException
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            delegate.deleteUser( username );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public void deleteRole( final String name )
+        throws UserDataException
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            delegate.deleteRole( name );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public void deletePermission( final String name )
+        throws UserDataException
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            delegate.deletePermission( name );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Role getRole( final String roleName )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getRole( roleName );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Permission getPermission( final String permissionName )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getPermission( permissionName );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public User getUser( final String username )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getUser( username );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public User findUser( final String username )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.findUser( username );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public User getUserByEmail( final String email )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getUserByEmail( email );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public User fetchUser( final String username, final boolean roles, final boolean rolePermissions )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.fetchUser( username, roles, rolePermissions );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Role fetchRole( final String name, final boolean permissions )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.fetchRole( name, permissions );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Page<String> getUserRoleNames( final String username, final int first, final int limit )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getUserRoleNames( username, first, limit );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Page<String> getRolePermissionNames( final String roleName, final int first, final int limit )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getRolePermissionNames( roleName, first, limit );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<User> getUsers( final Collection<String> usernames )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getUsers( usernames );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<Role> getRoles( final Collection<String> names )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getRoles( names );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<Permission> getPermissions( final Collection<String> names )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getPermissions( names );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Permission savePermission( final Permission perm, final boolean autoCommit )
+        throws UserDataException
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.savePermission( perm, autoCommit );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public Role saveRole( final Role role, final boolean autoCommit )
+        throws UserDataException
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.saveRole( role, autoCommit );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public User saveUser( final User user, final boolean autoCommit )
+        throws UserDataException
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.saveUser( user, autoCommit );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<Permission> getPermissions()
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getPermissions();
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getRoles();
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<User> getUsers()
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getUsers();
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public boolean hasPermission( final String name )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.hasPermission( name );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public boolean hasRole( final String name )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.hasRole( name );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public boolean hasUser( final String username )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.hasUser( username );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<String> getRealms()
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getRealms();
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public List<ChangeRecord> getChanges( final long since, final int limit )
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getChanges( since, limit );
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+    @Override
+    public long getChangesPrunedThrough()
+    {
+        final Priority priority = Priority.current();
+        final long start = limiter.acquire( priority );
+        try
+        {
+            return delegate.getChangesPrunedThrough();
+        }
+        finally
+        {
+            limiter.release( priority, start );
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package org.commonjava.web.user.data;
+
+/**
+ * Thrown when work is refused because the service is saturated, rather than queued behind everything else. Callers
+ * should back off and retry.
+ */
+public class OverloadException
+    extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public OverloadException( final String message, final Object... params )
+    {
+        super( String.format( message, params ) );
+    }
+
+}
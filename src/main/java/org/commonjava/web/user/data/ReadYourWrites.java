@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The change-log sequence the current thread's reads must reflect. A read replica may serve a read only once it has
+ * applied every change up to that sequence; otherwise the read goes to the primary.
+ * <p>
+ * The value is held in a shared {@link AtomicLong} rather than copied, so writes made on a bulkhead thread on
+ * behalf of a request raise the requirement the request itself sees afterwards. It is seeded per HTTP session by
+ * {@link org.commonjava.web.user.conf.ReadYourWritesFilter}, which is how a client gets to read its own writes.
+ * </p>
+ */
+public final class ReadYourWrites
+{
+
+    /**
+     * A requirement no replica can meet: reads go to the primary.
+     */
+    public static final long PRIMARY = Long.MAX_VALUE;
+
+    private static final ThreadLocal<AtomicLong> CURRENT = new ThreadLocal<AtomicLong>();
+
+    private ReadYourWrites()
+    {
+    }
+
+    /**
+     * @return the lowest change-log sequence a replica must have applied to serve this thread, zero if any will do
+     */
+    public static long required()
+    {
+        final AtomicLong seen = CURRENT.get();
+        return seen == null ? 0 : seen.get();
+    }
+
+    /**
+     * Record that the current thread committed a change with the given sequence, so its later reads include it.
+     */
+    public static void wrote( final long sequence )
+    {
+        final AtomicLong seen = CURRENT.get();
+        if ( seen == null )
+        {
+            return;
+        }
+
+        long current = seen.get();
+        while ( current < sequence && !seen.compareAndSet( current, sequence ) )
+        {
+            current = seen.get();
+        }
+    }
+
+    /**
+     * Track the current thread's reads and writes in <code>seen</code>.
+     *
+     * @return the previous tracker, to hand to {@link #restore(AtomicLong)}
+     */
+    public static AtomicLong enter( final AtomicLong seen )
+    {
+        final AtomicLong previous = CURRENT.get();
+        CURRENT.set( seen );
+
+        return previous;
+    }
+
+    public static void restore( final AtomicLong previous )
+    {
+        if ( previous == null )
+        {
+            CURRENT.remove();
+        }
+        else
+        {
+            CURRENT.set( previous );
+        }
+    }
+
+    /**
+     * Send the current thread's reads to the primary, whatever it has seen, until {@link #restore(AtomicLong)}.
+     *
+     * @return the previous tracker
+     */
+    public static AtomicLong enterPrimary()
+    {
+        return enter( new AtomicLong( PRIMARY ) );
+    }
+
+}
@@ -0,0 +1,407 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
+import org.commonjava.web.user.model.Realms;
+
+/**
+ * Cache that refreshes entries ahead of expiry instead of letting them lapse.
+ * <ul>
+ * <li>Younger than <code>refreshAfter</code>: served as-is.</li>
+ * <li>Older than <code>refreshAfter</code> but younger than <code>expireAfter</code>: served as-is, and one
+ * background reload is started (stale-while-revalidate). Only entries that are still being read get refreshed, so
+ * hot entries never expire and cold ones just age out.</li>
+ * <li>Older than <code>expireAfter</code>: reloaded on the caller's thread. If that reload throws and the entry is
+ * less than <code>staleGrace</code> past expiry, the old value is served instead (stale-if-error).</li>
+ * </ul>
+ * Null results are not cached. Invalidation removes entries outright, so changed data is never served stale. A load
+ * only stores its result in place of the entry it started from (or of a placeholder it put there for the purpose),
+ * so a load that raced with an invalidation of the same key cannot re-insert what it read, while loads of other keys
+ * are unaffected.
+ * <p>
+ * At most <code>maxEntries</code> are held. Past that, one writer sweeps out the least recently read entries, plus
+ * a tenth of the bound as headroom, so sweeps stay rare.
+ * </p>
+ */
+public final class RefreshAheadCache<V>
+{
+
+    /**
+     * Selects entries for {@link RefreshAheadCache#invalidateWhere(Matcher)}.
+     */
+    public interface Matcher<V>
+    {
+        boolean matches( String key, V value );
+    }
+
+    private static final class Entry<V>
+    {
+        /**
+         * Null for a placeholder marking a load in progress.
+         */
+        private final V value;
+
+        private final long loadedAt;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile long readAt;
+
+        Entry( final V value, final long loadedAt )
+        {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.readAt = loadedAt;
+        }
+    }
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final String name;
+
+    private final long refreshAfterMillis;
+
+    private final long expireAfterMillis;
+
+    private final long staleGraceMillis;
+
+    private final int maxEntries;
+
+    private final Executor refresher;
+
+    private final ConcurrentMap<String, Entry<V>> entries = new ConcurrentHashMap<String, Entry<V>>();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final AtomicLong staleServed = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final Lock evictionLock = new ReentrantLock();
+
+    public RefreshAheadCache( final String name, final long refreshAfterMillis, final long expireAfterMillis,
+                              final long staleGraceMillis, final int maxEntries, final Executor refresher )
+    {
+        this.name = name;
+        this.refreshAfterMillis = refreshAfterMillis;
+        this.expireAfterMillis = Math.max( refreshAfterMillis, expireAfterMillis );
+        this.staleGraceMillis = staleGraceMillis;
+        this.maxEntries = Math.max( 1, maxEntries );
+        this.refresher = refresher;
+    }
+
+    public V get( final String key, final Callable<V> loader )
+    {
+        final Entry<V> entry = entries.get( key );
+        if ( entry == null || entry.value == null )
+        {
+            return load( key, loader );
+        }
+
+        final long now = System.currentTimeMillis();
+        entry.readAt = now;
+
+        final long age = now - entry.loadedAt;
+        if ( age < refreshAfterMillis )
+        {
+            return entry.value;
+        }
+
+        if ( age < expireAfterMillis )
+        {
+            refreshAsync( key, entry, loader );
+            return entry.value;
+        }
+
+        try
+        {
+            return load( key, loader );
+        }
+        catch ( final RuntimeException e )
+        {
+            if ( age < expireAfterMillis + staleGraceMillis && entries.get( key ) == entry )
+            {
+                staleServed.incrementAndGet();
+                logger.error( "%s cache: reload of %s failed; serving value from %s ms ago. Reason: %s", e, name, key,
+                              age, e.getMessage() );
+                return entry.value;
+            }
+
+            throw e;
+        }
+    }
+
+    public void invalidate( final String key )
+    {
+        entries.remove( key );
+    }
+
+    public void invalidateAll()
+    {
+        entries.clear();
+    }
+
+    public void invalidateWhere( final Matcher<V> matcher )
+    {
+        for ( final Iterator<Map.Entry<String, Entry<V>>> it = entries.entrySet()
+                                                                    .iterator(); it.hasNext(); )
+        {
+            final Map.Entry<String, Entry<V>> entry = it.next();
+            final V value = entry.getValue().value;
+
+            // a load in progress can't be matched against what it will read; drop it so the result isn't stored.
+            if ( value == null || matcher.matches( entry.getKey(), value ) )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return a matcher for {@link #invalidateWhere(Matcher)} selecting every key that starts with
+     *         <code>prefix</code>
+     */
+    public static <V> Matcher<V> keyPrefix( final String prefix )
+    {
+        return new Matcher<V>()
+        {
+            @Override
+            public boolean matches( final String key, final V value )
+            {
+                return key.startsWith( prefix );
+            }
+        };
+    }
+
+    private V load( final String key, final Callable<V> loader )
+    {
+        Entry<V> stamp = entries.get( key );
+        if ( stamp == null )
+        {
+            final Entry<V> placeholder = new Entry<V>( null, System.currentTimeMillis() );
+            stamp = entries.putIfAbsent( key, placeholder );
+            if ( stamp == null )
+            {
+                stamp = placeholder;
+            }
+        }
+
+        final V value;
+        try
+        {
+            value = call( loader );
+        }
+        catch ( final RuntimeException e )
+        {
+            if ( stamp.value == null )
+            {
+                entries.remove( key, stamp );
+            }
+
+            throw e;
+        }
+
+        if ( value == null )
+        {
+            entries.remove( key, stamp );
+            return null;
+        }
+
+        // stored only if nothing invalidated the key (removing the stamp) while we were loading.
+        if ( entries.replace( key, stamp, new Entry<V>( value, System.currentTimeMillis() ) )
+            && entries.size() > maxEntries )
+        {
+            evict();
+        }
+
+        return value;
+    }
+
+    /**
+     * Remove the least recently read entries until the cache is a tenth of its bound below it. Only one thread
+     * sweeps at a time; others carry on, the cache briefly over its bound.
+     */
+    private void evict()
+    {
+        if ( !evictionLock.tryLock() )
+        {
+            return;
+        }
+
+        try
+        {
+            final int target = maxEntries - maxEntries / 10;
+            final long[] reads = new long[entries.size()];
+            int count = 0;
+            for ( final Entry<V> entry : entries.values() )
+            {
+                if ( count == reads.length )
+                {
+                    break;
+                }
+
+                reads[count++] = entry.readAt;
+            }
+
+            if ( count <= target )
+            {
+                return;
+            }
+
+            Arrays.sort( reads, 0, count );
+            final long cutoff = reads[count - target - 1];
+
+            for ( final Iterator<Entry<V>> it = entries.values()
+                                                        .iterator(); it.hasNext(); )
+            {
+                if ( it.next().readAt <= cutoff )
+                {
+                    it.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    private void refreshAsync( final String key, final Entry<V> entry, final Callable<V> loader )
+    {
+        if ( !entry.refreshing.compareAndSet( false, true ) )
+        {
+            return;
+        }
+
+        try
+        {
+            // the loader reads from whichever realm is current, so it has to run in this one.
+            refresher.execute( Realms.propagate( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // a refresh only saves a later reader the wait, so it is the first thing to shed.
+                    final Priority previous = Priority.enter( Priority.LIST );
+                    try
+                    {
+                        refreshes.incrementAndGet();
+                        final V value = call( loader );
+                        if ( value == null )
+                        {
+                            entries.remove( key, entry );
+                        }
+                        else
+                        {
+                            entries.replace( key, entry, new Entry<V>( value, System.currentTimeMillis() ) );
+                        }
+                    }
+                    catch ( final RuntimeException e )
+                    {
+                        // keep serving the current value; the next read after expiry retries in the foreground.
+                        logger.error( "%s cache: background refresh of %s failed. Reason: %s", e, name, key,
+                                      e.getMessage() );
+                    }
+                    finally
+                    {
+                        entry.refreshing.set( false );
+                        Priority.restore( previous );
+                    }
+                }
+            } ) );
+        }
+        catch ( final RejectedExecutionException e )
+        {
+            // refresher is saturated; a later read will try again.
+            entry.refreshing.set( false );
+        }
+    }
+
+    /**
+     * Cached values outlive the request that loaded them, so they are always read from the primary.
+     */
+    private V call( final Callable<V> loader )
+    {
+        final AtomicLong seen = ReadYourWrites.enterPrimary();
+        try
+        {
+            return call( name, loader );
+        }
+        finally
+        {
+            ReadYourWrites.restore( seen );
+        }
+    }
+
+    static <V> V call( final String name, final Callable<V> loader )
+    {
+        try
+        {
+            return loader.call();
+        }
+        catch ( final RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( final Exception e )
+        {
+            throw new IllegalStateException( name + " cache load failed: " + e.getMessage(), e );
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long getRefreshCount()
+    {
+        return refreshes.get();
+    }
+
+    public long getStaleServedCount()
+    {
+        return staleServed.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+}
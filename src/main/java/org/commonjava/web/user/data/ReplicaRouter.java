@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.model.ChangeSequence;
+
+/**
+ * Picks a read replica for {@link DBUserDataBackend} lookups, when <code>data.replicas</code> names any. Replicas
+ * are used round-robin, skipping any that has not yet applied the change-log sequence the current thread requires
+ * ({@link ReadYourWrites}); when none has, the read goes to the primary.
+ * <p>
+ * A replica's progress is the replicated {@link ChangeSequence} counter. Sequences are handed out in commit order, so
+ * a replica whose counter has reached N holds every change up to N. It is only queried when a read needs more than
+ * was last seen, and then at most every {@link #RECHECK_MILLIS} ms per replica.
+ * </p>
+ * <p>
+ * An entry of <code>data.replicas</code> starting with <code>jdbc:</code> is taken as the JDBC URL of an embedded
+ * database rather than a datasource name, for trying replicas out locally.
+ * </p>
+ */
+@Singleton
+public class ReplicaRouter
+{
+
+    /**
+     * Persistence unit the replica factories are built from, with the datasource overridden.
+     */
+    public static final String REPLICA_UNIT = "replica";
+
+    private static final String DATASOURCE_PROPERTY = "javax.persistence.nonJtaDataSource";
+
+    private static final String URL_PREFIX = "jdbc:";
+
+    private static final String URL_PROPERTY = "javax.persistence.jdbc.url";
+
+    private static final long RECHECK_MILLIS = 100;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    private final UserQueries queries = new UserQueries();
+
+    private List<Replica> replicas = Collections.emptyList();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicLong replicaReads = new AtomicLong();
+
+    private final AtomicLong primaryReads = new AtomicLong();
+
+    public ReplicaRouter()
+    {
+    }
+
+    ReplicaRouter( final UserManagerConfiguration config )
+    {
+        this.config = config;
+    }
+
+    @PostConstruct
+    public void initialize()
+    {
+        final String names = config.getReadReplicas();
+        if ( names == null || names.trim()
+                                   .length() < 1 )
+        {
+            return;
+        }
+
+        final List<Replica> configured = new ArrayList<Replica>();
+        for ( final String name : names.split( "," ) )
+        {
+            final String datasource = name.trim();
+            if ( datasource.length() < 1 )
+            {
+                continue;
+            }
+
+            final Map<String, String> properties = new HashMap<String, String>();
+            if ( datasource.startsWith( URL_PREFIX ) )
+            {
+                properties.put( DATASOURCE_PROPERTY, "" );
+                properties.put( URL_PROPERTY, datasource );
+            }
+            else
+            {
+                properties.put( DATASOURCE_PROPERTY, datasource );
+            }
+            configured.add( new Replica( datasource, Persistence.createEntityManagerFactory( REPLICA_UNIT,
+                                                                                           properties ) ) );
+        }
+
+        replicas = Collections.unmodifiableList( configured );
+        logger.info( "Reading from %s replica(s): %s", replicas.size(), names );
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        for ( final Replica replica : replicas )
+        {
+            replica.factory.close();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * @return an entity manager on a replica that can serve the current thread, which the caller must close; or null
+     *         to read from the primary
+     */
+    public EntityManager open()
+    {
+        if ( replicas.isEmpty() )
+        {
+            return null;
+        }
+
+        final long required = ReadYourWrites.required();
+        if ( required != ReadYourWrites.PRIMARY )
+        {
+            final int size = replicas.size();
+            final int start = ( next.getAndIncrement() & Integer.MAX_VALUE ) % size;
+            for ( int i = 0; i < size; i++ )
+            {
+                final Replica replica = replicas.get( ( start + i ) % size );
+                if ( replica.hasApplied( required ) )
+                {
+                    replicaReads.incrementAndGet();
+                    return replica.factory.createEntityManager();
+                }
+            }
+        }
+
+        primaryReads.incrementAndGet();
+        return null;
+    }
+
+    public long getReplicaReadCount()
+    {
+        return replicaReads.get();
+    }
+
+    public long getPrimaryReadCount()
+    {
+        return primaryReads.get();
+    }
+
+    private final class Replica
+    {
+        private final String datasource;
+
+        private final EntityManagerFactory factory;
+
+        private volatile long applied;
+
+        private volatile long checkedAt;
+
+        Replica( final String datasource, final EntityManagerFactory factory )
+        {
+            this.datasource = datasource;
+            this.factory = factory;
+        }
+
+        boolean hasApplied( final long sequence )
+        {
+            if ( applied >= sequence )
+            {
+                return true;
+            }
+
+            final long now = System.currentTimeMillis();
+            if ( now - checkedAt < RECHECK_MILLIS )
+            {
+                return false;
+            }
+
+            checkedAt = now;
+            final EntityManager em = factory.createEntityManager();
+            try
+            {
+                final long watermark = queries.changesApplied( em );
+                if ( watermark > applied )
+                {
+                    applied = watermark;
+                }
+            }
+            catch ( final RuntimeException e )
+            {
+                // treat it as lagging; the next check retries.
+                logger.error( "Cannot read progress of replica: %s. Reason: %s", e, datasource, e.getMessage() );
+            }
+            finally
+            {
+                em.close();
+            }
+
+            return applied >= sequence;
+        }
+    }
+
+}
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.conf.ManagedTasks;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.User;
+
+/**
+ * The shards {@link ShardedUserDataBackend} spreads users over (<code>data.shards</code>), and which of them each
+ * user lives on: the jump consistent hash of the FNV-1a hash of the user's realm and normalized username. Appending
+ * a shard to the list therefore only moves the ~1/N of users that now hash to it; nothing moves between old shards.
+ * <p>
+ * Until {@link ShardRebalancer} has moved those users, the map is <em>rebalancing</em>: users are placed by the
+ * full shard count, but may still be found where the settled count (<code>data.shards.settled</code>) put them.
+ * </p>
+ */
+@Singleton
+public class ShardMap
+{
+
+    /**
+     * Persistence unit the shard factories are built from, with the datasource overridden.
+     */
+    public static final String SHARD_UNIT = "shard";
+
+    /**
+     * Holds the reference copy of roles and permissions, and the change log.
+     */
+    public static final int HOME = 0;
+
+    private static final String DATASOURCE_PROPERTY = "javax.persistence.jtaDataSource";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    @Inject
+    private ManagedTasks tasks;
+
+    private List<Shard> shards = Collections.emptyList();
+
+    private volatile int settled;
+
+    @PostConstruct
+    public void initialize()
+    {
+        final String names = config.getShards();
+        if ( names == null || names.trim()
+                                   .length() < 1 )
+        {
+            return;
+        }
+
+        final List<Shard> configured = new ArrayList<Shard>();
+        for ( final String name : names.split( "," ) )
+        {
+            final String datasource = name.trim();
+            if ( datasource.length() < 1 )
+            {
+                continue;
+            }
+
+            final Map<String, String> properties = new HashMap<String, String>();
+            properties.put( DATASOURCE_PROPERTY, datasource );
+            configured.add( new Shard( datasource, Persistence.createEntityManagerFactory( SHARD_UNIT, properties ) ) );
+        }
+
+        shards = Collections.unmodifiableList( configured );
+
+        final int count = config.getSettledShards();
+        settled = count < 1 || count > shards.size() ? shards.size() : count;
+
+        logger.info( "Sharding users over %s datasource(s): %s (%s settled)", shards.size(), names, settled );
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        for ( final Shard shard : shards )
+        {
+            shard.factory.close();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return !shards.isEmpty();
+    }
+
+    public int size()
+    {
+        return shards.size();
+    }
+
+    public String getName( final int shard )
+    {
+        return shards.get( shard ).datasource;
+    }
+
+    /**
+     * @return how many shards users were placed over before the last shard was added
+     */
+    public int getSettled()
+    {
+        return settled;
+    }
+
+    /**
+     * @return whether some users may still live where {@link #getSettled()} shards placed them
+     */
+    public boolean isRebalancing()
+    {
+        return settled < shards.size();
+    }
+
+    /**
+     * Record that every user now lives on the shard {@link #shardOf(String)} picks.
+     */
+    void settle()
+    {
+        settled = shards.size();
+    }
+
+    /**
+     * @return the shard a user of the current realm belongs on
+     */
+    public int shardOf( final String username )
+    {
+        return jump( hash( Realms.key( Realms.current(), User.normalize( username ) ) ), shards.size() );
+    }
+
+    /**
+     * @return the shard a user of the current realm was placed on before rebalancing began; the same as
+     *         {@link #shardOf(String)} when not rebalancing
+     */
+    public int settledShardOf( final String username )
+    {
+        return jump( hash( Realms.key( Realms.current(), User.normalize( username ) ) ), settled );
+    }
+
+    /**
+     * @return a new entity manager on the shard, which the caller must close. It only takes part in a transaction
+     *         once joined to it.
+     */
+    public EntityManager open( final int shard )
+    {
+        return shards.get( shard ).factory.createEntityManager();
+    }
+
+    public <T> T read( final int shard, final ShardRead<T> read )
+    {
+        final EntityManager em = open( shard );
+        try
+        {
+            return read.read( shard, em );
+        }
+        finally
+        {
+            em.close();
+        }
+    }
+
+    /**
+     * Run <code>read</code> against every shard at once on the {@link ManagedTasks} executor, in the current realm.
+     *
+     * @return the results, in shard order
+     */
+    public <T> List<T> readAll( final ShardRead<T> read )
+    {
+        final List<FutureTask<T>> pending = new ArrayList<FutureTask<T>>( shards.size() );
+        for ( int i = 0; i < shards.size(); i++ )
+        {
+            final int shard = i;
+            final FutureTask<T> task = new FutureTask<T>( Realms.propagate( new Callable<T>()
+            {
+                @Override
+                public T call()
+                {
+                    return read( shard, read );
+                }
+            } ) );
+
+            pending.add( task );
+            tasks.execute( task );
+        }
+
+        // run here whatever the executor hasn't started yet, so a busy (or our own) pool never leaves us waiting.
+        for ( final FutureTask<T> task : pending )
+        {
+            task.run();
+        }
+
+        final List<T> results = new ArrayList<T>( pending.size() );
+        try
+        {
+            for ( final FutureTask<T> future : pending )
+            {
+                results.add( future.get() );
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+            throw new IllegalStateException( "Interrupted while reading from shards", e );
+        }
+        catch ( final ExecutionException e )
+        {
+            if ( e.getCause() instanceof RuntimeException )
+            {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new IllegalStateException( "Cannot read from shards: " + e.getCause(), e.getCause() );
+        }
+        finally
+        {
+            for ( final FutureTask<T> future : pending )
+            {
+                future.cancel( true );
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach): maps <code>key</code> to one of <code>buckets</code>, moving only
+     * 1/buckets of all keys when a bucket is appended.
+     */
+    static int jump( final long key, final int buckets )
+    {
+        long k = key;
+        long b = -1;
+        long j = 0;
+        while ( j < buckets )
+        {
+            b = j;
+            k = k * 2862933555777941757L + 1;
+            j = (long) ( ( b + 1 ) * ( (double) ( 1L << 31 ) / (double) ( ( k >>> 33 ) + 1 ) ) );
+        }
+
+        return (int) b;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes: cheap, well spread, and fixed forever, as placements are persistent.
+     */
+    static long hash( final String value )
+    {
+        long hash = FNV_OFFSET_BASIS;
+        for ( final byte b : value.getBytes( UTF8 ) )
+        {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+
+    /**
+     * A lookup run against one shard.
+     */
+    public interface ShardRead<T>
+    {
+        T read( int shard, EntityManager em );
+    }
+
+    private static final class Shard
+    {
+        private final String datasource;
+
+        private final EntityManagerFactory factory;
+
+        Shard( final String datasource, final EntityManagerFactory factory )
+        {
+            this.datasource = datasource;
+            this.factory = factory;
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.event.Event;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.UserTransaction;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.cluster.InvalidationBus;
+import org.commonjava.web.user.conf.ManagedTasks;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.data.ShardMap.ShardRead;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.ChangeRecord.Action;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Moves users onto a newly appended shard. Add the datasource to the end of <code>data.shards</code> with
+ * <code>data.shards.settled</code> set to the old shard count, restart, then start a rebalance; the service stays
+ * up throughout, reading each user from its old shard until it has been moved.
+ * <p>
+ * Each user moves in a transaction of its own: copied to its new shard with that shard's copies of its roles, then
+ * removed from the old one. The move is logged as a save of the user, and announced like one once it commits, since
+ * the user's row (and id) changed. Users saved meanwhile are moved by the save itself. Once every user is in place the
+ * shards are marked settled; <code>data.shards.settled</code> should then be cleared before the next restart.
+ * </p>
+ * <p>
+ * The rebalance runs on the {@link ManagedTasks} executor, so it has the container's transactions available.
+ * </p>
+ */
+@Singleton
+public class ShardRebalancer
+{
+
+    private static final int BATCH_SIZE = 200;
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final UserQueries queries = new UserQueries();
+
+    @Inject
+    private ShardMap shards;
+
+    @Inject
+    private UserTransaction tx;
+
+    @Inject
+    private ManagedTasks tasks;
+
+    @Inject
+    @Saved
+    private Event<User> userEventSrc;
+
+    @Inject
+    private InvalidationBus invalidationBus;
+
+    @Inject
+    private EventDispatcher dispatcher;
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * Set on shutdown; a running rebalance stops after the user it is moving.
+     */
+    private volatile boolean stopped;
+
+    private final AtomicLong moved = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    @PreDestroy
+    protected void shutdown()
+    {
+        stopped = true;
+    }
+
+    public boolean isRunning()
+    {
+        return running.get();
+    }
+
+    public long getMovedCount()
+    {
+        return moved.get();
+    }
+
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Start moving misplaced users in the background.
+     *
+     * @return false if there is nothing to move, or a rebalance is already running
+     */
+    public boolean start()
+    {
+        if ( !shards.isRebalancing() || !running.compareAndSet( false, true ) )
+        {
+            return false;
+        }
+
+        try
+        {
+            tasks.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        rebalance();
+                    }
+                    finally
+                    {
+                        running.set( false );
+                    }
+                }
+            } );
+        }
+        catch ( final RejectedExecutionException e )
+        {
+            running.set( false );
+            logger.error( "Cannot start rebalancing. Reason: %s", e, e.getMessage() );
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private void rebalance()
+    {
+        logger.info( "Rebalancing users from %s to %s shards", shards.getSettled(), shards.size() );
+
+        boolean complete = true;
+        for ( int shard = 0; shard < shards.getSettled(); shard++ )
+        {
+            final List<String> realms = shards.read( shard, new ShardRead<List<String>>()
+            {
+                @Override
+                public List<String> read( final int shard, final EntityManager em )
+                {
+                    return queries.realms( em );
+                }
+            } );
+
+            for ( final String realm : realms )
+            {
+                final String previous = Realms.enter( realm );
+                try
+                {
+                    complete = rebalance( shard ) && complete;
+                }
+                finally
+                {
+                    Realms.restore( previous );
+                }
+            }
+        }
+
+        if ( complete )
+        {
+            shards.settle();
+            logger.info( "All users are on their shards; clear data.shards.settled before the next restart" );
+        }
+        else
+        {
+            logger.info( "Some users could not be moved and are still read from their old shards; rebalance again" );
+        }
+    }
+
+    /**
+     * Move the current realm's misplaced users off <code>shard</code>.
+     *
+     * @return whether all of them were moved
+     */
+    private boolean rebalance( final int shard )
+    {
+        boolean complete = true;
+        int after = 0;
+        List<User> batch;
+        do
+        {
+            final int from = after;
+            batch = shards.read( shard, new ShardRead<List<User>>()
+            {
+                @Override
+                public List<User> read( final int shard, final EntityManager em )
+                {
+                    return queries.usersAfter( em, from, BATCH_SIZE );
+                }
+            } );
+
+            for ( final User user : batch )
+            {
+                after = user.getId();
+
+                final int target = shards.shardOf( user.getUsername() );
+                if ( target != shard )
+                {
+                    complete = move( user.getUsername(), shard, target ) && complete;
+                }
+            }
+        }
+        while ( batch.size() == BATCH_SIZE && !stopped );
+
+        return complete && !stopped;
+    }
+
+    private boolean move( final String username, final int from, final int to )
+    {
+        try
+        {
+            tx.begin();
+
+            final EntityManager source = shards.open( from );
+            final EntityManager target = shards.open( to );
+            final boolean homeOpen = from != ShardMap.HOME && to != ShardMap.HOME;
+            final EntityManager home =
+                homeOpen ? shards.open( ShardMap.HOME ) : from == ShardMap.HOME ? source : target;
+            boolean completed = false;
+            boolean copied = false;
+            try
+            {
+                source.joinTransaction();
+                target.joinTransaction();
+                home.joinTransaction();
+
+                final User user = queries.user( source, "username", username );
+                if ( user != null && queries.user( target, "username", username ) == null )
+                {
+                    final Set<String> names = new HashSet<String>();
+                    if ( user.getRoles() != null )
+                    {
+                        for ( final Role role : user.getRoles() )
+                        {
+                            names.add( role.getName() );
+                        }
+                    }
+
+                    final User copy = new User( username ).updateFrom( user );
+                    copy.setRoles( new HashSet<Role>( queries.byNames( target, Role.class, "name", names ) ) );
+                    if ( copy.getRoles()
+                             .size() != names.size() )
+                    {
+                        throw new IllegalStateException( "Roles missing from shard: " + shards.getName( to ) + ": "
+                            + names );
+                    }
+
+                    target.persist( copy );
+                    source.remove( user );
+
+                    queries.logChange( home, new ChangeRecord( copy.getRealm(), ChangeRecord.USER, username,
+                                                               Action.SAVE ), config.getChangeRetention() );
+                    notifyMoved( copy );
+                    copied = true;
+                }
+                // otherwise deleted, or moved by a save, since the batch was read.
+
+                completed = true;
+            }
+            finally
+            {
+                source.close();
+                target.close();
+                if ( homeOpen )
+                {
+                    home.close();
+                }
+
+                if ( !completed )
+                {
+                    tx.rollback();
+                }
+            }
+
+            tx.commit();
+            if ( copied )
+            {
+                moved.incrementAndGet();
+            }
+
+            return true;
+        }
+        catch ( final NotSupportedException e )
+        {
+            return failed( username, from, to, e );
+        }
+        catch ( final SystemException e )
+        {
+            return failed( username, from, to, e );
+        }
+        catch ( final RollbackException e )
+        {
+            return failed( username, from, to, e );
+        }
+        catch ( final HeuristicMixedException e )
+        {
+            return failed( username, from, to, e );
+        }
+        catch ( final HeuristicRollbackException e )
+        {
+            return failed( username, from, to, e );
+        }
+        catch ( final RuntimeException e )
+        {
+            return failed( username, from, to, e );
+        }
+    }
+
+    /**
+     * Broadcast the move to other nodes and fire the user's saved event, once the move has committed.
+     */
+    private void notifyMoved( final User user )
+    {
+        final String realm = user.getRealm();
+        final String username = user.getUsername();
+        dispatcher.dispatch( ChangeRecord.USER + ":" + Realms.key( realm, username ), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                invalidationBus.publish( realm, ChangeRecord.USER, username );
+                userEventSrc.fire( user );
+            }
+        } );
+    }
+
+    private boolean failed( final String username, final int from, final int to, final Exception e )
+    {
+        failed.incrementAndGet();
+        logger.error( "Cannot move user: %s from shard: %s to: %s. Reason: %s", e, username, shards.getName( from ),
+                      shards.getName( to ), e.getMessage() );
+
+        return false;
+    }
+
+}
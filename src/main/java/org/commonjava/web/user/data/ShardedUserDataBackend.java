@@ -0,0 +1,1121 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.event.Event;
+import javax.enterprise.inject.Alternative;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.UserTransaction;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.cluster.InvalidationBus;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.data.ShardMap.ShardRead;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.ChangeRecord.Action;
+import org.commonjava.web.user.model.EmailClaim;
+import org.commonjava.web.user.model.Page;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Spreads users over the databases named by <code>data.shards</code>, each user on the shard {@link ShardMap} hashes
+ * its username to. Every shard holds a full copy of the roles and permissions, so a user's role joins stay local to
+ * its shard; {@link ShardMap#HOME} holds the reference copy, serves role and permission reads, and keeps the change
+ * log.
+ * <p>
+ * Lookups by username go to one shard. Listings query all shards in parallel and sort the gathered users here, by
+ * last name, first name and username in plain string order; the shards' own collations can differ, so their sorted
+ * results can't simply be merged. A write touching several shards is one JTA transaction, so the shard datasources
+ * must be XA-capable.
+ * </p>
+ * <p>
+ * Email addresses stay unique across shards through an {@link EmailClaim} per address on {@link ShardMap#HOME},
+ * written in the same transaction as the user; lookups by email go through it to the owner's shard.
+ * </p>
+ * <p>
+ * Enable it in the <code>alternatives</code> of beans.xml, in place of {@link DBUserDataBackend}.
+ * </p>
+ */
+@Alternative
+@Singleton
+public class ShardedUserDataBackend
+    implements UserDataBackend
+{
+
+    private static final PersistenceUtil PERSISTENCE = Persistence.getPersistenceUtil();
+
+    private static final Comparator<User> USER_ORDER = new Comparator<User>()
+    {
+        @Override
+        public int compare( final User first, final User second )
+        {
+            int result = compareNullsFirst( first.getLastName(), second.getLastName() );
+            if ( result == 0 )
+            {
+                result = compareNullsFirst( first.getFirstName(), second.getFirstName() );
+            }
+
+            return result == 0 ? first.getUsername()
+                                      .compareTo( second.getUsername() ) : result;
+        }
+    };
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final UserQueries queries = new UserQueries();
+
+    @Inject
+    private ShardMap shards;
+
+    @Inject
+    @Saved
+    private Event<User> userEventSrc;
+
+    @Inject
+    @Saved
+    private Event<Role> roleEventSrc;
+
+    @Inject
+    @Saved
+    private Event<Permission> permissionEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<User> userDeletedEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<Role> roleDeletedEventSrc;
+
+    @Inject
+    @Deleted
+    private Event<Permission> permissionDeletedEventSrc;
+
+    @Inject
+    private UserTransaction tx;
+
+    @Inject
+    private InvalidationBus invalidationBus;
+
+    @Inject
+    private EventDispatcher dispatcher;
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    @PostConstruct
+    public void initialize()
+    {
+        if ( !shards.isEnabled() )
+        {
+            throw new IllegalStateException( "The sharded backend is enabled, but data.shards names no datasources" );
+        }
+    }
+
+    @Override
+    public boolean hasUser( final String username )
+    {
+        return getUser( username ) != null;
+    }
+
+    @Override
+    public boolean hasRole( final String name )
+    {
+        return getRole( name ) != null;
+    }
+
+    @Override
+    public boolean hasPermission( final String name )
+    {
+        return getPermission( name ) != null;
+    }
+
+    @Override
+    public List<User> getUsers()
+    {
+        final List<List<User>> perShard = shards.readAll( new ShardRead<List<User>>()
+        {
+            @Override
+            public List<User> read( final int shard, final EntityManager em )
+            {
+                return queries.users( em );
+            }
+        } );
+
+        final List<User> users = new ArrayList<User>();
+        for ( final List<User> shardUsers : perShard )
+        {
+            users.addAll( shardUsers );
+        }
+
+        Collections.sort( users, USER_ORDER );
+        if ( !shards.isRebalancing() )
+        {
+            return users;
+        }
+
+        // a user moved while the shards were being read can turn up on both.
+        final Set<String> seen = new HashSet<String>( users.size() );
+        for ( final Iterator<User> it = users.iterator(); it.hasNext(); )
+        {
+            if ( !seen.add( it.next()
+                              .getUsername() ) )
+            {
+                it.remove();
+            }
+        }
+
+        return users;
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<List<Role>>()
+        {
+            @Override
+            public List<Role> read( final int shard, final EntityManager em )
+            {
+                return queries.roles( em );
+            }
+        } );
+    }
+
+    @Override
+    public List<Permission> getPermissions()
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<List<Permission>>()
+        {
+            @Override
+            public List<Permission> read( final int shard, final EntityManager em )
+            {
+                return queries.permissions( em );
+            }
+        } );
+    }
+
+    @Override
+    public List<User> getUsers( final Collection<String> usernames )
+    {
+        final List<User> result = getUsers( usernames, false );
+        if ( !shards.isRebalancing() || result.size() == usernames.size() )
+        {
+            return result;
+        }
+
+        final Set<String> missing = new HashSet<String>( usernames );
+        for ( final User user : result )
+        {
+            missing.remove( user.getUsername() );
+        }
+
+        result.addAll( getUsers( missing, true ) );
+        return result;
+    }
+
+    private List<User> getUsers( final Collection<String> usernames, final boolean settled )
+    {
+        final Map<Integer, List<String>> byShard = new HashMap<Integer, List<String>>();
+        for ( final String username : usernames )
+        {
+            final int shard = settled ? shards.settledShardOf( username ) : shards.shardOf( username );
+            if ( settled && shard == shards.shardOf( username ) )
+            {
+                continue;
+            }
+
+            List<String> names = byShard.get( shard );
+            if ( names == null )
+            {
+                names = new ArrayList<String>();
+                byShard.put( shard, names );
+            }
+            names.add( username );
+        }
+
+        final List<User> result = new ArrayList<User>( usernames.size() );
+        if ( byShard.isEmpty() )
+        {
+            return result;
+        }
+
+        final List<List<User>> perShard = shards.readAll( new ShardRead<List<User>>()
+        {
+            @Override
+            public List<User> read( final int shard, final EntityManager em )
+            {
+                final List<String> names = byShard.get( shard );
+                return names == null ? Collections.<User> emptyList()
+                                : queries.byNames( em, User.class, "username", names );
+            }
+        } );
+
+        for ( final List<User> users : perShard )
+        {
+            result.addAll( users );
+        }
+
+        return result;
+    }
+
+    @Override
+    public List<Role> getRoles( final Collection<String> names )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<List<Role>>()
+        {
+            @Override
+            public List<Role> read( final int shard, final EntityManager em )
+            {
+                return queries.byNames( em, Role.class, "name", names );
+            }
+        } );
+    }
+
+    @Override
+    public List<Permission> getPermissions( final Collection<String> names )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<List<Permission>>()
+        {
+            @Override
+            public List<Permission> read( final int shard, final EntityManager em )
+            {
+                return queries.byNames( em, Permission.class, "name", names );
+            }
+        } );
+    }
+
+    @Override
+    public User getUser( final String username )
+    {
+        return readUser( username, new ShardRead<User>()
+        {
+            @Override
+            public User read( final int shard, final EntityManager em )
+            {
+                return queries.user( em, "username", username );
+            }
+        } );
+    }
+
+    @Override
+    public User findUser( final String username )
+    {
+        // placement hashes the normalized name, so every spelling of it lives on the same shard.
+        return readUser( username, new ShardRead<User>()
+        {
+            @Override
+            public User read( final int shard, final EntityManager em )
+            {
+                return queries.user( em, "usernameKey", User.normalize( username ) );
+            }
+        } );
+    }
+
+    @Override
+    public User getUserByEmail( final String email )
+    {
+        if ( email == null )
+        {
+            return null;
+        }
+
+        final String key = User.normalize( email );
+        final EmailClaim claim = shards.read( ShardMap.HOME, new ShardRead<EmailClaim>()
+        {
+            @Override
+            public EmailClaim read( final int shard, final EntityManager em )
+            {
+                return queries.emailClaim( em, key );
+            }
+        } );
+
+        if ( claim != null )
+        {
+            return readUser( claim.getUsername(), new ShardRead<User>()
+            {
+                @Override
+                public User read( final int shard, final EntityManager em )
+                {
+                    return queries.user( em, "emailKey", key );
+                }
+            } );
+        }
+
+        // addresses saved before claims were kept have none; look on every shard.
+        final List<User> found = shards.readAll( new ShardRead<User>()
+        {
+            @Override
+            public User read( final int shard, final EntityManager em )
+            {
+                return queries.user( em, "emailKey", key );
+            }
+        } );
+
+        for ( final User user : found )
+        {
+            if ( user != null )
+            {
+                return user;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Permission getPermission( final String permissionName )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<Permission>()
+        {
+            @Override
+            public Permission read( final int shard, final EntityManager em )
+            {
+                return queries.permission( em, permissionName );
+            }
+        } );
+    }
+
+    @Override
+    public Role getRole( final String roleName )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<Role>()
+        {
+            @Override
+            public Role read( final int shard, final EntityManager em )
+            {
+                return queries.role( em, roleName );
+            }
+        } );
+    }
+
+    @Override
+    public User fetchUser( final String username, final boolean roles, final boolean rolePermissions )
+    {
+        return readUser( username, new ShardRead<User>()
+        {
+            @Override
+            public User read( final int shard, final EntityManager em )
+            {
+                return queries.fetchUser( em, username, roles, rolePermissions );
+            }
+        } );
+    }
+
+    @Override
+    public Role fetchRole( final String name, final boolean permissions )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<Role>()
+        {
+            @Override
+            public Role read( final int shard, final EntityManager em )
+            {
+                return queries.fetchRole( em, name, permissions );
+            }
+        } );
+    }
+
+    @Override
+    public Page<String> getUserRoleNames( final String username, final int start, final int limit )
+    {
+        return readUser( username, new ShardRead<Page<String>>()
+        {
+            @Override
+            public Page<String> read( final int shard, final EntityManager em )
+            {
+                return queries.userRoleNames( em, username, start, limit );
+            }
+        } );
+    }
+
+    @Override
+    public Page<String> getRolePermissionNames( final String roleName, final int start, final int limit )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<Page<String>>()
+        {
+            @Override
+            public Page<String> read( final int shard, final EntityManager em )
+            {
+                return queries.rolePermissionNames( em, roleName, start, limit );
+            }
+        } );
+    }
+
+    @Override
+    public List<String> getRealms()
+    {
+        final List<List<String>> perShard = shards.readAll( new ShardRead<List<String>>()
+        {
+            @Override
+            public List<String> read( final int shard, final EntityManager em )
+            {
+                return queries.realms( em );
+            }
+        } );
+
+        final Set<String> realms = new TreeSet<String>();
+        for ( final List<String> names : perShard )
+        {
+            realms.addAll( names );
+        }
+
+        return new ArrayList<String>( realms );
+    }
+
+    @Override
+    public List<ChangeRecord> getChanges( final long since, final int limit )
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<List<ChangeRecord>>()
+        {
+            @Override
+            public List<ChangeRecord> read( final int shard, final EntityManager em )
+            {
+                return queries.changes( em, since, limit );
+            }
+        } );
+    }
+
+    @Override
+    public long getChangesPrunedThrough()
+    {
+        return shards.read( ShardMap.HOME, new ShardRead<Long>()
+        {
+            @Override
+            public Long read( final int shard, final EntityManager em )
+            {
+                return queries.changesPrunedThrough( em );
+            }
+        } );
+    }
+
+    /**
+     * Read from the user's shard or, while rebalancing and the user isn't there yet, from where it used to live.
+     */
+    private <T> T readUser( final String username, final ShardRead<T> read )
+    {
+        final int shard = shards.shardOf( username );
+        final T result = shards.read( shard, read );
+        if ( result != null || !shards.isRebalancing() )
+        {
+            return result;
+        }
+
+        final int settled = shards.settledShardOf( username );
+        return settled == shard ? null : shards.read( settled, read );
+    }
+
+    @Override
+    public User saveUser( final User user, final boolean autoCommit )
+        throws UserDataException
+    {
+        final String username = user.getUsername();
+        final User result = write( "User", username, autoCommit, new Write<User>()
+        {
+            @Override
+            User write( final Joined joined )
+                throws UserDataException
+            {
+                final int shard = shards.shardOf( username );
+                final EntityManager em = joined.get( shard );
+
+                User existing = queries.user( em, "username", username );
+                EntityManager previous = null;
+                if ( existing == null && shards.isRebalancing() && shards.settledShardOf( username ) != shard )
+                {
+                    previous = joined.get( shards.settledShardOf( username ) );
+                    existing = queries.user( previous, "username", username );
+                }
+
+                if ( user.getId() == 0 && existing != null )
+                {
+                    logger.info( "User exists: %s", username );
+                    return null;
+                }
+
+                if ( user.getId() != 0 && ( existing == null || existing.getVersion() != user.getVersion() ) )
+                {
+                    throw new StaleDataException( "User has been modified concurrently: %s", username );
+                }
+
+                claimEmail( joined, username, existing == null ? null : existing.getEmail(), user.getEmail() );
+
+                // ids and role rows are per shard, so apply the change to the shard's own rows, by name.
+                final boolean replaceRoles = existing == null || PERSISTENCE.isLoaded( user, "roles" );
+                final Set<Role> roles = localRoles( em, shard, replaceRoles ? user : existing );
+
+                User saved;
+                if ( existing == null )
+                {
+                    saved = user;
+                    saved.setRoles( roles );
+                    em.persist( saved );
+                }
+                else if ( previous == null )
+                {
+                    saved = existing.updateFrom( user );
+                    saved.setRoles( roles );
+                }
+                else
+                {
+                    // saved before the rebalancer got to it; move it along.
+                    saved = new User( username ).updateFrom( user );
+                    saved.setRoles( roles );
+                    em.persist( saved );
+                    previous.remove( existing );
+                }
+
+                logChange( joined, new ChangeRecord( saved.getRealm(), ChangeRecord.USER, username, Action.SAVE ) );
+                notifyChanged( saved.getRealm(), ChangeRecord.USER, username, userEventSrc, saved );
+
+                return saved;
+            }
+        } );
+
+        // like the single-database backend, hand back what was given when it already existed.
+        return result == null ? user : result;
+    }
+
+    @Override
+    public Role saveRole( final Role role, final boolean autoCommit )
+        throws UserDataException
+    {
+        final String name = role.getName();
+        final Role result = write( "Role", name, autoCommit, new Write<Role>()
+        {
+            @Override
+            Role write( final Joined joined )
+                throws UserDataException
+            {
+                final EntityManager home = joined.get( ShardMap.HOME );
+                final Role reference = queries.role( home, name );
+                if ( role.getId() == 0 && reference != null )
+                {
+                    logger.info( "Role exists: %s", name );
+                    return null;
+                }
+
+                if ( role.getId() != 0 && ( reference == null || reference.getVersion() != role.getVersion() ) )
+                {
+                    throw new StaleDataException( "Role has been modified concurrently: %s", name );
+                }
+
+                final Role source = reference == null || PERSISTENCE.isLoaded( role, "permissions" ) ? role : reference;
+                final Set<String> permissions = new HashSet<String>();
+                if ( source.getPermissions() != null )
+                {
+                    for ( final Permission permission : source.getPermissions() )
+                    {
+                        permissions.add( permission.getName() );
+                    }
+                }
+
+                Role saved = null;
+                for ( int shard = 0; shard < shards.size(); shard++ )
+                {
+                    final EntityManager em = joined.get( shard );
+                    Role copy = shard == ShardMap.HOME ? reference : queries.role( em, name );
+
+                    final Set<Permission> local = localPermissions( em, shard, permissions );
+                    if ( copy == null )
+                    {
+                        copy = new Role( name, local );
+                        em.persist( copy );
+                    }
+                    else
+                    {
+                        copy.setPermissions( local );
+                    }
+
+                    if ( shard == ShardMap.HOME )
+                    {
+                        saved = copy;
+                    }
+                }
+
+                logChange( joined, new ChangeRecord( saved.getRealm(), ChangeRecord.ROLE, name, Action.SAVE ) );
+                notifyChanged( saved.getRealm(), ChangeRecord.ROLE, name, roleEventSrc, saved );
+
+                return saved;
+            }
+        } );
+
+        return result == null ? role : result;
+    }
+
+    @Override
+    public Permission savePermission( final Permission perm, final boolean autoCommit )
+        throws UserDataException
+    {
+        final String name = perm.getName();
+        final Permission result = write( "Permission", name, autoCommit, new Write<Permission>()
+        {
+            @Override
+            Permission write( final Joined joined )
+                throws UserDataException
+            {
+                final EntityManager home = joined.get( ShardMap.HOME );
+                final Permission reference = queries.permission( home, name );
+                if ( perm.getId() == 0 && reference != null )
+                {
+                    logger.info( "Permission exists: %s", name );
+                    return null;
+                }
+
+                if ( perm.getId() != 0 && ( reference == null || reference.getVersion() != perm.getVersion() ) )
+                {
+                    throw new StaleDataException( "Permission has been modified concurrently: %s", name );
+                }
+
+                Permission saved = reference;
+                for ( int shard = 0; shard < shards.size(); shard++ )
+                {
+                    final EntityManager em = joined.get( shard );
+                    if ( shard == ShardMap.HOME ? reference == null : queries.permission( em, name ) == null )
+                    {
+                        final Permission copy = new Permission();
+                        copy.setName( name );
+                        em.persist( copy );
+
+                        if ( shard == ShardMap.HOME )
+                        {
+                            saved = copy;
+                        }
+                    }
+                }
+
+                logChange( joined, new ChangeRecord( saved.getRealm(), ChangeRecord.PERMISSION, name, Action.SAVE ) );
+                notifyChanged( saved.getRealm(), ChangeRecord.PERMISSION, name, permissionEventSrc, saved );
+
+                return saved;
+            }
+        } );
+
+        return result == null ? perm : result;
+    }
+
+    @Override
+    public void deletePermission( final String name )
+        throws UserDataException
+    {
+        write( "Permission", name, !inTransaction(), new Write<Permission>()
+        {
+            @Override
+            Permission write( final Joined joined )
+                throws UserDataException
+            {
+                Permission reference = null;
+                for ( int shard = 0; shard < shards.size(); shard++ )
+                {
+                    final EntityManager em = joined.get( shard );
+                    final Permission perm = queries.permission( em, name );
+                    if ( shard == ShardMap.HOME )
+                    {
+                        if ( perm == null )
+                        {
+                            throw new UserDataException( "No such permission: %s", name );
+                        }
+
+                        reference = perm;
+                    }
+
+                    if ( perm != null )
+                    {
+                        em.remove( perm );
+                    }
+                }
+
+                logChange( joined, new ChangeRecord( reference.getRealm(), ChangeRecord.PERMISSION, name,
+                                                     Action.DELETE ) );
+                notifyChanged( reference.getRealm(), ChangeRecord.PERMISSION, name, permissionDeletedEventSrc,
+                               reference );
+
+                return reference;
+            }
+        } );
+    }
+
+    @Override
+    public void deleteRole( final String name )
+        throws UserDataException
+    {
+        write( "Role", name, !inTransaction(), new Write<Role>()
+        {
+            @Override
+            Role write( final Joined joined )
+                throws UserDataException
+            {
+                Role reference = null;
+                for ( int shard = 0; shard < shards.size(); shard++ )
+                {
+                    final EntityManager em = joined.get( shard );
+                    final Role role = queries.role( em, name );
+                    if ( shard == ShardMap.HOME )
+                    {
+                        if ( role == null )
+                        {
+                            throw new UserDataException( "No such role: %s", name );
+                        }
+
+                        reference = role;
+                    }
+
+                    if ( role != null )
+                    {
+                        em.remove( role );
+                    }
+                }
+
+                logChange( joined, new ChangeRecord( reference.getRealm(), ChangeRecord.ROLE, name, Action.DELETE ) );
+                notifyChanged( reference.getRealm(), ChangeRecord.ROLE, name, roleDeletedEventSrc, reference );
+
+                return reference;
+            }
+        } );
+    }
+
+    @Override
+    public void deleteUser( final String username )
+        throws UserDataException
+    {
+        write( "User", username, !inTransaction(), new Write<User>()
+        {
+            @Override
+            User write( final Joined joined )
+                throws UserDataException
+            {
+                final int shard = shards.shardOf( username );
+                EntityManager em = joined.get( shard );
+                User user = queries.user( em, "username", username );
+                if ( user == null && shards.isRebalancing() && shards.settledShardOf( username ) != shard )
+                {
+                    em = joined.get( shards.settledShardOf( username ) );
+                    user = queries.user( em, "username", username );
+                }
+
+                if ( user == null )
+                {
+                    throw new UserDataException( "No such user: %s", username );
+                }
+
+                em.remove( user );
+                releaseEmail( joined, username, user.getEmail() );
+                logChange( joined, new ChangeRecord( user.getRealm(), ChangeRecord.USER, username, Action.DELETE ) );
+                notifyChanged( user.getRealm(), ChangeRecord.USER, username, userDeletedEventSrc, user );
+
+                return user;
+            }
+        } );
+    }
+
+    /**
+     * Move the user's claim from its previous email address to <code>email</code>, failing if another user holds the
+     * address on any shard. Concurrent claims of one address collide on the claims' unique index, and all but one
+     * transaction rolls back.
+     */
+    private void claimEmail( final Joined joined, final String username, final String previousEmail,
+                             final String email )
+        throws UserDataException
+    {
+        final String key = User.normalize( email );
+        if ( key != null )
+        {
+            final EntityManager home = joined.get( ShardMap.HOME );
+            final EmailClaim claim = queries.emailClaim( home, key );
+            if ( claim != null && !claim.getUsername()
+                                        .equals( username ) )
+            {
+                throw new UserDataException( "Email address of user: %s is already in use by: %s", username,
+                                             claim.getUsername() );
+            }
+
+            if ( claim == null )
+            {
+                // addresses saved before claims were kept have none; check the shards themselves.
+                for ( int shard = 0; shard < shards.size(); shard++ )
+                {
+                    final User holder = queries.user( joined.get( shard ), "emailKey", key );
+                    if ( holder != null && !holder.getUsername()
+                                                  .equals( username ) )
+                    {
+                        throw new UserDataException( "Email address of user: %s is already in use by: %s",
+                                                     username, holder.getUsername() );
+                    }
+                }
+
+                home.persist( new EmailClaim( key, username ) );
+            }
+        }
+
+        final String previousKey = User.normalize( previousEmail );
+        if ( previousKey != null && !previousKey.equals( key ) )
+        {
+            releaseEmail( joined, username, previousEmail );
+        }
+    }
+
+    private void releaseEmail( final Joined joined, final String username, final String email )
+    {
+        final String key = User.normalize( email );
+        if ( key == null )
+        {
+            return;
+        }
+
+        final EntityManager home = joined.get( ShardMap.HOME );
+        final EmailClaim claim = queries.emailClaim( home, key );
+        if ( claim != null && claim.getUsername()
+                                   .equals( username ) )
+        {
+            home.remove( claim );
+        }
+    }
+
+    /**
+     * The shard's own rows for the roles of <code>user</code>, which may have been loaded from another shard.
+     */
+    private Set<Role> localRoles( final EntityManager em, final int shard, final User user )
+        throws UserDataException
+    {
+        final Set<Role> local = new HashSet<Role>();
+        if ( user.getRoles() == null || user.getRoles()
+                                            .isEmpty() )
+        {
+            return local;
+        }
+
+        final Set<String> names = new HashSet<String>();
+        for ( final Role role : user.getRoles() )
+        {
+            names.add( role.getName() );
+        }
+
+        local.addAll( queries.byNames( em, Role.class, "name", names ) );
+        if ( local.size() != names.size() )
+        {
+            throw new UserDataException( "Roles of user: %s are missing from shard: %s. Expected: %s",
+                                         user.getUsername(), shards.getName( shard ), names );
+        }
+
+        return local;
+    }
+
+    private Set<Permission> localPermissions( final EntityManager em, final int shard, final Set<String> names )
+        throws UserDataException
+    {
+        final Set<Permission> local = new HashSet<Permission>( queries.byNames( em, Permission.class, "name", names ) );
+        if ( local.size() != names.size() )
+        {
+            throw new UserDataException( "Permissions are missing from shard: %s. Expected: %s",
+                                         shards.getName( shard ), names );
+        }
+
+        return local;
+    }
+
+    private void logChange( final Joined joined, final ChangeRecord change )
+    {
+        queries.logChange( joined.get( ShardMap.HOME ), change, config.getChangeRetention() );
+    }
+
+    /**
+     * Broadcast the change to other nodes and fire its local event, once the surrounding transaction has committed.
+     */
+    private <T> void notifyChanged( final String realm, final String type, final String name,
+                                    final Event<T> source, final T entity )
+    {
+        dispatcher.dispatch( type + ":" + Realms.key( realm, name ), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                invalidationBus.publish( realm, type, name );
+                source.fire( entity );
+            }
+        } );
+    }
+
+    private boolean inTransaction()
+    {
+        try
+        {
+            return tx.getStatus() != Status.STATUS_NO_TRANSACTION;
+        }
+        catch ( final SystemException e )
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Run <code>write</code> across the shards it touches, in a transaction of its own when <code>autoCommit</code>
+     * is set, and in the caller's otherwise. A null result means nothing was written.
+     */
+    private <T> T write( final String type, final String name, final boolean autoCommit, final Write<T> write )
+        throws UserDataException
+    {
+        try
+        {
+            if ( autoCommit )
+            {
+                tx.begin();
+            }
+
+            final Joined joined = new Joined();
+            T result = null;
+            boolean completed = false;
+            try
+            {
+                result = write.write( joined );
+                completed = true;
+            }
+            catch ( final OptimisticLockException e )
+            {
+                throw new StaleDataException( "%s has been modified concurrently: %s", e, type, name );
+            }
+            finally
+            {
+                joined.close();
+                if ( !completed )
+                {
+                    // whatever reached the other shards must not commit on its own.
+                    if ( autoCommit )
+                    {
+                        tx.rollback();
+                    }
+                    else
+                    {
+                        tx.setRollbackOnly();
+                    }
+                }
+            }
+
+            if ( autoCommit )
+            {
+                if ( result != null )
+                {
+                    tx.commit();
+                }
+                else
+                {
+                    tx.rollback();
+                }
+            }
+
+            return result;
+        }
+        catch ( final NotSupportedException e )
+        {
+            throw new UserDataException( "Cannot write %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final SystemException e )
+        {
+            throw new UserDataException( "Cannot write %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final RollbackException e )
+        {
+            if ( e.getCause() instanceof OptimisticLockException )
+            {
+                throw new StaleDataException( "%s has been modified concurrently: %s", e, type, name );
+            }
+
+            throw new UserDataException( "Cannot write %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final HeuristicMixedException e )
+        {
+            throw new UserDataException( "Cannot write %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+        catch ( final HeuristicRollbackException e )
+        {
+            throw new UserDataException( "Cannot write %s: %s. Error: %s", e, type, name, e.getMessage() );
+        }
+    }
+
+    private static int compareNullsFirst( final String first, final String second )
+    {
+        if ( first == null )
+        {
+            return second == null ? 0 : -1;
+        }
+
+        return second == null ? 1 : first.compareTo( second );
+    }
+
+    private abstract static class Write<T>
+    {
+        abstract T write( Joined joined )
+            throws UserDataException;
+    }
+
+    /**
+     * The entity managers a write has opened, one per shard, each joined to the current transaction. They are
+     * closed as soon as the write returns; their changes stay pending until the transaction completes.
+     */
+    private final class Joined
+    {
+        private final EntityManager[] open = new EntityManager[shards.size()];
+
+        EntityManager get( final int shard )
+        {
+            if ( open[shard] == null )
+            {
+                final EntityManager em = shards.open( shard );
+                em.joinTransaction();
+                open[shard] = em;
+            }
+
+            return open[shard];
+        }
+
+        void close()
+        {
+            for ( final EntityManager em : open )
+            {
+                if ( em != null )
+                {
+                    em.close();
+                }
+            }
+        }
+    }
+
+}
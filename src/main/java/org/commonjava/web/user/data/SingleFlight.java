@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent loads of the same key into one. The first caller runs the load on its own thread; callers
+ * arriving while it is in flight wait for it and get the same result (or the same exception) instead of issuing
+ * their own. Nothing is cached: once the load completes, the next caller starts a fresh one.
+ * <p>
+ * Joined callers share the returned instance, so it must be treated as read-only.
+ * </p>
+ */
+public final class SingleFlight<V>
+{
+
+    private final String name;
+
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    private final AtomicLong joined = new AtomicLong();
+
+    public SingleFlight( final String name )
+    {
+        this.name = name;
+    }
+
+    public V load( final String key, final Callable<V> loader )
+    {
+        final FutureTask<V> task = new FutureTask<V>( loader );
+        final FutureTask<V> existing = inFlight.putIfAbsent( key, task );
+        if ( existing != null )
+        {
+            joined.incrementAndGet();
+            return await( existing );
+        }
+
+        loads.incrementAndGet();
+        try
+        {
+            task.run();
+            return await( task );
+        }
+        finally
+        {
+            inFlight.remove( key, task );
+        }
+    }
+
+    private V await( final FutureTask<V> task )
+    {
+        boolean interrupted = false;
+        try
+        {
+            while ( true )
+            {
+                try
+                {
+                    return task.get();
+                }
+                catch ( final InterruptedException e )
+                {
+                    // the load is running on another caller's thread; abandoning it here saves nothing.
+                    interrupted = true;
+                }
+                catch ( final ExecutionException e )
+                {
+                    final Throwable cause = e.getCause();
+                    if ( cause instanceof RuntimeException )
+                    {
+                        throw (RuntimeException) cause;
+                    }
+                    else if ( cause instanceof Error )
+                    {
+                        throw (Error) cause;
+                    }
+
+                    throw new IllegalStateException( "Load failed in " + name + ": " + cause.getMessage(), cause );
+                }
+            }
+        }
+        finally
+        {
+            if ( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return how many loads actually reached the backend
+     */
+    public long getLoadCount()
+    {
+        return loads.get();
+    }
+
+    /**
+     * @return how many callers were served by joining a load already in flight, i.e. how many loads were saved
+     */
+    public long getJoinedCount()
+    {
+        return joined.get();
+    }
+
+    public int getInFlightCount()
+    {
+        return inFlight.size();
+    }
+
+}
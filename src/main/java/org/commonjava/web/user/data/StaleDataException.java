@@ -0,0 +1,22 @@
+package org.commonjava.web.user.data;
+
+/**
+ * Thrown when a write is based on a version of a user, role or permission that has since been modified by someone
+ * else.
+ */
+public class StaleDataException
+    extends UserDataException
+{
+    private static final long serialVersionUID = 1L;
+
+    public StaleDataException( final String message, final Throwable cause, final Object... params )
+    {
+        super( message, cause, params );
+    }
+
+    public StaleDataException( final String message, final Object... params )
+    {
+        super( message, params );
+    }
+
+}
@@ -1,7 +1,10 @@
 package org.commonjava.web.user.data;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.Page;
 import org.commonjava.web.user.model.Permission;
 import org.commonjava.web.user.model.Role;
 import org.commonjava.web.user.model.User;
@@ -24,6 +27,37 @@ public interface UserDataBackend
 
     User getUser( final String username );
 
+    /**
+     * Case-insensitive lookup by username, resolved against the normalized username key.
+     */
+    User findUser( final String username );
+
+    /**
+     * Case-insensitive lookup by email address, resolved against the normalized email key.
+     */
+    User getUserByEmail( final String email );
+
+    /**
+     * Load a user along with only the associations asked for, in one query. Associations not asked for are left
+     * unloaded.
+     */
+    User fetchUser( final String username, final boolean roles, final boolean rolePermissions );
+
+    /**
+     * Load a role, fetching its permissions in the same query if asked.
+     */
+    Role fetchRole( final String name, final boolean permissions );
+
+    /**
+     * One page of the names of the roles granted directly to a user, in name order, or null if there's no such user.
+     */
+    Page<String> getUserRoleNames( final String username, final int start, final int limit );
+
+    /**
+     * One page of the names of a role's permissions, in name order, or null if there's no such role.
+     */
+    Page<String> getRolePermissionNames( final String roleName, final int start, final int limit );
+
     Permission savePermission( final Permission perm, final boolean autoCommit )
         throws UserDataException;
 
@@ -39,10 +73,41 @@ public interface UserDataBackend
 
     List<User> getUsers();
 
+    /**
+     * The users with any of the given usernames, in no particular order. Names that don't match are skipped.
+     */
+    List<User> getUsers( Collection<String> usernames );
+
+    /**
+     * The roles with any of the given names, in no particular order. Names that don't match are skipped.
+     */
+    List<Role> getRoles( Collection<String> names );
+
+    /**
+     * The permissions with any of the given names, in no particular order. Names that don't match are skipped.
+     */
+    List<Permission> getPermissions( Collection<String> names );
+
     boolean hasPermission( String name );
 
     boolean hasRole( String name );
 
     boolean hasUser( String username );
 
+    /**
+     * Names of every realm holding at least one user, role or permission. Unlike everything else here, this is not
+     * scoped to the current realm.
+     */
+    List<String> getRealms();
+
+    /**
+     * Entries of the current realm's change log with a sequence greater than <code>since</code>, oldest first.
+     */
+    List<ChangeRecord> getChanges( long since, int limit );
+
+    /**
+     * The highest sequence pruned from the change log. A consumer resuming from below it has missed changes.
+     */
+    long getChangesPrunedThrough();
+
 }
\ No newline at end of file
@@ -9,7 +9,7 @@ public class UserDataException
 
     private final Object[] params;
 
-    private String formattedMessage;
+    private volatile String formattedMessage;
 
     public UserDataException( final String message, final Throwable cause, final Object... params )
     {
@@ -24,7 +24,7 @@ public class UserDataException
     }
 
     @Override
-    public synchronized String getMessage()
+    public String getMessage()
     {
         if ( formattedMessage == null )
         {
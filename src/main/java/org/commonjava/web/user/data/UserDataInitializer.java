@@ -72,4 +72,10 @@ public class UserDataInitializer
         }
     }
 
+    public void initializeIndexes()
+    {
+        logger.info( "Building in-memory user indexes." );
+        dataManager.rebuildIndexes();
+    }
+
 }
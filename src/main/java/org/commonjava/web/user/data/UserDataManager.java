@@ -21,9 +21,12 @@ import static org.commonjava.web.user.model.Permission.DELETE;
 import static org.commonjava.web.user.model.Permission.READ;
 import static org.commonjava.web.user.model.Permission.UPDATE;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
@@ -37,9 +40,16 @@ import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
 
 import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.index.MembershipIndex;
+import org.commonjava.web.user.index.UserPrefixIndex;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Page;
 import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
 import org.commonjava.web.user.model.Role;
 import org.commonjava.web.user.model.User;
+import org.commonjava.web.user.model.UserSummary;
+import org.commonjava.web.user.search.SearchIndex;
 
 @Singleton
 public class UserDataManager
@@ -58,6 +68,27 @@ public class UserDataManager
     @Inject
     private PasswordManager passwordManager;
 
+    @Inject
+    private UserPrefixIndex prefixIndex;
+
+    @Inject
+    private SearchIndex searchIndex;
+
+    @Inject
+    private MembershipIndex membershipIndex;
+
+    @Inject
+    private EffectivePermissionsCache effectivePermissions;
+
+    @Inject
+    private EntityCache entityCache;
+
+    private final SingleFlight<User> userLoads = new SingleFlight<User>( "user" );
+
+    private final SingleFlight<Role> roleLoads = new SingleFlight<Role>( "role" );
+
+    private final SingleFlight<Permission> permissionLoads = new SingleFlight<Permission>( "permission" );
+
     public Permission createPermission( final String name, final boolean autoCommit )
         throws UserDataException
     {
@@ -105,12 +136,23 @@ public class UserDataManager
     public Role updateRole( final Role role, final boolean autoCommit )
         throws UserDataException
     {
-        if ( !backend.hasRole( role.getName() ) )
+        return updateRole( role, null, autoCommit );
+    }
+
+    /**
+     * Update the role, failing with {@link StaleDataException} unless it is still at <code>expectedVersion</code>
+     * (when given) up to the point the change commits.
+     */
+    public Role updateRole( final Role role, final Integer expectedVersion, final boolean autoCommit )
+        throws UserDataException
+    {
+        Role existing = backend.getRole( role.getName() );
+        if ( existing == null )
         {
             throw new UserDataException( "Role doesn't exist: %s", role.getName() );
         }
 
-        Role existing = backend.getRole( role.getName() );
+        checkVersion( "Role", role.getName(), existing.getVersion(), expectedVersion );
         if ( role != existing )
         {
             existing = existing.updateFrom( role );
@@ -147,12 +189,23 @@ public class UserDataManager
     public User updateUser( final User user, final boolean autoCommit )
         throws UserDataException
     {
-        if ( !backend.hasUser( user.getUsername() ) )
+        return updateUser( user, null, autoCommit );
+    }
+
+    /**
+     * Update the user, failing with {@link StaleDataException} unless it is still at <code>expectedVersion</code>
+     * (when given) up to the point the change commits.
+     */
+    public User updateUser( final User user, final Integer expectedVersion, final boolean autoCommit )
+        throws UserDataException
+    {
+        User existing = backend.getUser( user.getUsername() );
+        if ( existing == null )
         {
             throw new UserDataException( "User doesn't exist: %s", user.getUsername() );
         }
 
-        User existing = getUser( user.getUsername() );
+        checkVersion( "User", user.getUsername(), existing.getVersion(), expectedVersion );
         if ( user != existing )
         {
             existing = existing.updateFrom( user );
@@ -161,6 +214,16 @@ public class UserDataManager
         return backend.saveUser( existing, autoCommit );
     }
 
+    private static void checkVersion( final String type, final String name, final int actual,
+                                      final Integer expected )
+        throws StaleDataException
+    {
+        if ( expected != null && expected.intValue() != actual )
+        {
+            throw new StaleDataException( "%s: %s is at version %s, not %s", type, name, actual, expected );
+        }
+    }
+
     @Produces
     @Named
     public List<User> getUsers()
@@ -182,19 +245,135 @@ public class UserDataManager
         return backend.getPermissions();
     }
 
+    /**
+     * Multi-get by username. The users are loaded fresh rather than shared, so callers may modify them.
+     */
+    public List<User> getUsers( final Collection<String> usernames )
+    {
+        return backend.getUsers( usernames );
+    }
+
+    public List<Role> getRoles( final Collection<String> names )
+    {
+        return backend.getRoles( names );
+    }
+
+    public List<Permission> getPermissions( final Collection<String> names )
+    {
+        return backend.getPermissions( names );
+    }
+
+    /**
+     * Concurrent calls for the same username share one backend load, and so the same instance. Don't modify it; use
+     * {@link #getUserForUpdate(String)} to get one of your own.
+     */
     public User getUser( final String username )
     {
-        return backend.getUser( username );
+        return userLoads.load( flightKey( username ), new Callable<User>()
+        {
+            @Override
+            public User call()
+            {
+                return backend.getUser( username );
+            }
+        } );
     }
 
+    /**
+     * A user of the caller's own, with its roles and their permissions loaded, as the default GET representation
+     * has them; entity tags computed from it match the ones clients were given.
+     */
+    public User getUserForUpdate( final String username )
+    {
+        return backend.fetchUser( username, true, true );
+    }
+
+    public User findUser( final String username )
+    {
+        return backend.findUser( username );
+    }
+
+    public User getUserByEmail( final String email )
+    {
+        return backend.getUserByEmail( email );
+    }
+
+    /**
+     * Resolve what a user typed into a login form: an email address if it contains '@', otherwise a username. A login
+     * containing '@' that matches no email address is tried as a username too, since usernames may contain '@'.
+     */
+    public User getUserByLogin( final String login )
+    {
+        if ( login != null && login.indexOf( '@' ) > -1 )
+        {
+            final User user = getUserByEmail( login );
+            if ( user != null )
+            {
+                return user;
+            }
+        }
+
+        return findUser( login );
+    }
+
+    /**
+     * Concurrent calls for the same permission share one backend load, and so the same instance. In
+     * <code>refresh-ahead</code> cache mode the instance may also be cached.
+     */
     public Permission getPermission( final String permissionName )
     {
-        return backend.getPermission( permissionName );
+        return entityCache.getPermission( permissionName, new Callable<Permission>()
+        {
+            @Override
+            public Permission call()
+            {
+                return permissionLoads.load( flightKey( permissionName ), new Callable<Permission>()
+                {
+                    @Override
+                    public Permission call()
+                    {
+                        return backend.getPermission( permissionName );
+                    }
+                } );
+            }
+        } );
     }
 
+    /**
+     * Concurrent calls for the same role share one backend load, and so the same instance, which may also be cached
+     * in <code>refresh-ahead</code> cache mode. Don't modify it; use {@link #getRoleForUpdate(String)} to get one of
+     * your own.
+     */
     public Role getRole( final String roleName )
     {
-        return backend.getRole( roleName );
+        return entityCache.getRole( roleName, new Callable<Role>()
+        {
+            @Override
+            public Role call()
+            {
+                return roleLoads.load( flightKey( roleName ), new Callable<Role>()
+                {
+                    @Override
+                    public Role call()
+                    {
+                        return backend.getRole( roleName );
+                    }
+                } );
+            }
+        } );
+    }
+
+    /**
+     * A role of the caller's own, with its permissions loaded; see {@link #getUserForUpdate(String)}.
+     */
+    public Role getRoleForUpdate( final String roleName )
+    {
+        return backend.fetchRole( roleName, true );
+    }
+
+    public SingleFlight<?>[] getLookupStats()
+    {
+        return new SingleFlight<?>[] { userLoads, roleLoads, permissionLoads };
     }
 
     public Map<String, Permission> createCRUDPermissions( final String namespace, final String name,
@@ -271,4 +450,101 @@ public class UserDataManager
         backend.deleteUser( username );
     }
 
+    public List<UserSummary> searchUsers( final String prefix, final int limit )
+    {
+        return prefixIndex.search( Realms.current(), prefix, limit );
+    }
+
+    public EffectivePermissions getEffectivePermissions( final String username )
+    {
+        return effectivePermissions.get( username );
+    }
+
+    /**
+     * Load a user with just the associations a response is going to show. Not shared with other callers, unlike
+     * {@link #getUser(String)}.
+     */
+    public User fetchUser( final String username, final boolean roles, final boolean rolePermissions )
+    {
+        return backend.fetchUser( username, roles, rolePermissions );
+    }
+
+    public Role fetchRole( final String roleName, final boolean permissions )
+    {
+        return backend.fetchRole( roleName, permissions );
+    }
+
+    public Page<String> getUserRoleNames( final String username, final int start, final int limit )
+    {
+        return backend.getUserRoleNames( username, start, limit );
+    }
+
+    public Page<String> getRolePermissionNames( final String roleName, final int start, final int limit )
+    {
+        return backend.getRolePermissionNames( roleName, start, limit );
+    }
+
+    /**
+     * Members of the role in name order: <code>limit</code> of them, <code>start</code> names past the name
+     * <code>after</code> (or the beginning, when null). Page through with <code>after</code>; deep offsets cost
+     * O(start).
+     */
+    public Page<String> getRoleMembers( final String roleName, final String after, final int start, final int limit )
+    {
+        return membershipIndex.getRoleMembers( Realms.current(), roleName, after, start, limit );
+    }
+
+    /**
+     * Users granted the permission, paged like {@link #getRoleMembers(String, String, int, int)}.
+     */
+    public Page<String> getPermissionHolders( final String permissionName, final String after, final int start,
+                                              final int limit )
+    {
+        return membershipIndex.getPermissionHolders( Realms.current(), permissionName, after, start, limit );
+    }
+
+    /**
+     * Rebuild the in-memory indexes of every realm, from the primary: they are kept current from change events, so
+     * they must not start out behind.
+     */
+    public void rebuildIndexes()
+    {
+        final AtomicLong seen = ReadYourWrites.enterPrimary();
+        try
+        {
+            for ( final String realm : backend.getRealms() )
+            {
+                final String previous = Realms.enter( realm );
+                try
+                {
+                    final List<User> users = backend.getUsers();
+                    prefixIndex.rebuild( realm, users );
+                    final List<Role> roles = backend.getRoles();
+                    searchIndex.rebuild( realm, users, roles, backend.getPermissions() );
+                    membershipIndex.rebuild( realm, users, roles );
+                }
+                finally
+                {
+                    Realms.restore( previous );
+                }
+            }
+        }
+        finally
+        {
+            ReadYourWrites.restore( seen );
+        }
+    }
+
+    /**
+     * Concurrent loads are only shared between callers in the same realm that need the same replica progress, so
+     * nobody is handed a result older than their own writes.
+     */
+    private static String flightKey( final String name )
+    {
+        final String key = Realms.key( Realms.current(), name );
+        final long required = ReadYourWrites.required();
+
+        return required == 0 ? key : key + '@' + required;
+    }
+
 }
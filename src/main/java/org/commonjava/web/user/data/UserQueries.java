@@ -0,0 +1,524 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import static org.commonjava.web.user.model.GeneralizationUtils.generalizePermissions;
+import static org.commonjava.web.user.model.GeneralizationUtils.generalizeRoles;
+import static org.commonjava.web.user.model.GeneralizationUtils.generalizeUsers;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.NoResultException;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Fetch;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.ChangeSequence;
+import org.commonjava.web.user.model.EmailClaim;
+import org.commonjava.web.user.model.Page;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * The criteria queries behind the JPA backends, run against whichever entity manager the caller picked: the
+ * primary, a read replica or a shard. Every query is confined to the current realm ({@link Realms#current()}).
+ */
+final class UserQueries
+{
+    /**
+     * Names per <code>IN</code> list in multi-gets; keeps statements well under the bind-parameter limits of the
+     * databases we run on.
+     */
+    private static final int IN_CHUNK_SIZE = 500;
+
+    /**
+     * How many changes pass between prunes of the change log.
+     */
+    private static final int PRUNE_INTERVAL = 1000;
+
+    private final Logger logger = new Logger( getClass() );
+
+    List<User> users( final EntityManager source )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<User> query = cb.createQuery( User.class );
+        final Root<User> root = query.from( User.class );
+        fetchAssociations( root, User.class );
+
+        query.select( root )
+             .distinct( true )
+             .where( inCurrentRealm( cb, root ) )
+             .orderBy( cb.asc( root.get( "lastName" ) ), cb.asc( root.get( "firstName" ) ) );
+
+        return generalizeUsers( source.createQuery( query )
+                                      .getResultList() );
+    }
+
+    /**
+     * @return up to <code>limit</code> users with ids above <code>afterId</code>, in id order, for walking a whole
+     *         table a batch at a time
+     */
+    List<User> usersAfter( final EntityManager source, final int afterId, final int limit )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<User> query = cb.createQuery( User.class );
+        final Root<User> root = query.from( User.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ), cb.greaterThan( root.<Integer> get( "id" ), afterId ) )
+             .orderBy( cb.asc( root.get( "id" ) ) );
+
+        return source.createQuery( query )
+                     .setMaxResults( limit )
+                     .getResultList();
+    }
+
+    List<Role> roles( final EntityManager source )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Role> query = cb.createQuery( Role.class );
+        final Root<Role> root = query.from( Role.class );
+        fetchAssociations( root, Role.class );
+
+        query.select( root )
+             .distinct( true )
+             .where( inCurrentRealm( cb, root ) )
+             .orderBy( cb.asc( root.get( "name" ) ) );
+
+        return generalizeRoles( source.createQuery( query )
+                                      .getResultList() );
+    }
+
+    List<Permission> permissions( final EntityManager source )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Permission> query = cb.createQuery( Permission.class );
+        final Root<Permission> root = query.from( Permission.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ) )
+             .orderBy( cb.asc( root.get( "name" ) ) );
+
+        return generalizePermissions( source.createQuery( query )
+                                            .getResultList() );
+    }
+
+    <T> List<T> byNames( final EntityManager source, final Class<T> type, final String field,
+                         final Collection<String> names )
+    {
+        final List<T> result = new ArrayList<T>( names.size() );
+        if ( names.isEmpty() )
+        {
+            return result;
+        }
+
+        final List<String> all = new ArrayList<String>( names );
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        for ( int from = 0; from < all.size(); from += IN_CHUNK_SIZE )
+        {
+            final List<String> chunk = all.subList( from, Math.min( from + IN_CHUNK_SIZE, all.size() ) );
+
+            final CriteriaQuery<T> query = cb.createQuery( type );
+            final Root<T> root = query.from( type );
+            fetchAssociations( root, type );
+            query.select( root )
+                 .distinct( true )
+                 .where( inCurrentRealm( cb, root ), root.get( field )
+                                                         .in( chunk ) );
+
+            result.addAll( source.createQuery( query )
+                                 .getResultList() );
+        }
+
+        return result;
+    }
+
+    /**
+     * Fetch-joins what the list and batch endpoints write for each item: a user's roles and their permissions, or a
+     * role's permissions. The joins repeat the root once per association row, so queries using this must be
+     * distinct.
+     */
+    private static void fetchAssociations( final Root<?> root, final Class<?> type )
+    {
+        if ( User.class.isAssignableFrom( type ) )
+        {
+            root.fetch( "roles", JoinType.LEFT )
+                .fetch( "permissions", JoinType.LEFT );
+        }
+        else if ( Role.class.isAssignableFrom( type ) )
+        {
+            root.fetch( "permissions", JoinType.LEFT );
+        }
+    }
+
+    /**
+     * @return whether a <code>type</code> whose <code>field</code> equals <code>value</code> exists, counted rather
+     *         than loaded
+     */
+    boolean exists( final EntityManager source, final Class<?> type, final String field, final String value )
+    {
+        if ( value == null )
+        {
+            return false;
+        }
+
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Long> query = cb.createQuery( Long.class );
+        final Root<?> root = query.from( type );
+
+        query.select( cb.count( root ) )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( field ), value ) );
+
+        return source.createQuery( query )
+                     .getSingleResult() > 0;
+    }
+
+    User user( final EntityManager source, final String field, final String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<User> query = cb.createQuery( User.class );
+        final Root<User> root = query.from( User.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( field ), value ) );
+
+        User user = null;
+        try
+        {
+            // TODO: cleaner way to check for user existence...
+            user = source.createQuery( query )
+                         .getSingleResult();
+        }
+        catch ( final NoResultException e )
+        {
+            logger.debug( "Cannot find user with %s: %s. Error: %s", e, field, value, e.getMessage() );
+        }
+
+        return user;
+    }
+
+    EmailClaim emailClaim( final EntityManager source, final String emailKey )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<EmailClaim> query = cb.createQuery( EmailClaim.class );
+        final Root<EmailClaim> root = query.from( EmailClaim.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "emailKey" ), emailKey ) );
+
+        final List<EmailClaim> claims = source.createQuery( query )
+                                              .getResultList();
+
+        return claims.isEmpty() ? null : claims.get( 0 );
+    }
+
+    Permission permission( final EntityManager source, final String permissionName )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Permission> query = cb.createQuery( Permission.class );
+        final Root<Permission> root = query.from( Permission.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "name" ), permissionName ) );
+
+        Permission perm = null;
+        try
+        {
+            // TODO: cleaner way to check for user existence...
+            perm = source.createQuery( query )
+                         .getSingleResult();
+        }
+        catch ( final NoResultException e )
+        {
+            logger.debug( "Cannot find permission: %s. Error: %s", e, permissionName, e.getMessage() );
+        }
+
+        return perm;
+    }
+
+    Role role( final EntityManager source, final String roleName )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Role> query = cb.createQuery( Role.class );
+        final Root<Role> root = query.from( Role.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "name" ), roleName ) );
+
+        Role role = null;
+
+        try
+        {
+            // TODO: cleaner way to check for user existence...
+            role = source.createQuery( query )
+                         .getSingleResult();
+        }
+        catch ( final NoResultException e )
+        {
+            logger.debug( "Cannot find role: %s. Error: %s", e, roleName, e.getMessage() );
+        }
+
+        return role;
+    }
+
+    User fetchUser( final EntityManager source, final String username, final boolean roles,
+                    final boolean rolePermissions )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<User> query = cb.createQuery( User.class );
+        final Root<User> root = query.from( User.class );
+
+        if ( roles )
+        {
+            final Fetch<User, Role> roleFetch = root.fetch( "roles", JoinType.LEFT );
+            if ( rolePermissions )
+            {
+                roleFetch.fetch( "permissions", JoinType.LEFT );
+            }
+        }
+
+        // the fetch joins repeat the user once per role (and permission); distinct collapses them.
+        query.select( root )
+             .distinct( true )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "username" ), username ) );
+
+        final List<User> users = source.createQuery( query )
+                                       .getResultList();
+
+        return users.isEmpty() ? null : users.get( 0 );
+    }
+
+    Role fetchRole( final EntityManager source, final String name, final boolean permissions )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Role> query = cb.createQuery( Role.class );
+        final Root<Role> root = query.from( Role.class );
+
+        if ( permissions )
+        {
+            root.fetch( "permissions", JoinType.LEFT );
+        }
+
+        query.select( root )
+             .distinct( true )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "name" ), name ) );
+
+        final List<Role> roles = source.createQuery( query )
+                                       .getResultList();
+
+        return roles.isEmpty() ? null : roles.get( 0 );
+    }
+
+    Page<String> userRoleNames( final EntityManager source, final String username, final int start, final int limit )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+
+        final CriteriaQuery<Long> count = cb.createQuery( Long.class );
+        final Root<User> countRoot = count.from( User.class );
+        final Join<User, Role> countJoin = countRoot.join( "roles" );
+        count.select( cb.count( countJoin ) )
+             .where( inCurrentRealm( cb, countRoot ), cb.equal( countRoot.get( "username" ), username ) );
+
+        final int total = source.createQuery( count )
+                                .getSingleResult()
+                                .intValue();
+        if ( total == 0 )
+        {
+            return user( source, "username", username ) == null ? null
+                            : new Page<String>( start, 0, Collections.<String> emptyList() );
+        }
+
+        final CriteriaQuery<String> query = cb.createQuery( String.class );
+        final Root<User> root = query.from( User.class );
+        final Join<User, Role> join = root.join( "roles" );
+        query.select( join.<String> get( "name" ) )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "username" ), username ) )
+             .orderBy( cb.asc( join.get( "name" ) ) );
+
+        return new Page<String>( start, total, source.createQuery( query )
+                                                     .setFirstResult( start )
+                                                     .setMaxResults( limit )
+                                                     .getResultList() );
+    }
+
+    Page<String> rolePermissionNames( final EntityManager source, final String roleName, final int start,
+                                      final int limit )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+
+        final CriteriaQuery<Long> count = cb.createQuery( Long.class );
+        final Root<Role> countRoot = count.from( Role.class );
+        final Join<Role, Permission> countJoin = countRoot.join( "permissions" );
+        count.select( cb.count( countJoin ) )
+             .where( inCurrentRealm( cb, countRoot ), cb.equal( countRoot.get( "name" ), roleName ) );
+
+        final int total = source.createQuery( count )
+                                .getSingleResult()
+                                .intValue();
+        if ( total == 0 )
+        {
+            return role( source, roleName ) == null ? null
+                            : new Page<String>( start, 0, Collections.<String> emptyList() );
+        }
+
+        final CriteriaQuery<String> query = cb.createQuery( String.class );
+        final Root<Role> root = query.from( Role.class );
+        final Join<Role, Permission> join = root.join( "permissions" );
+        query.select( join.<String> get( "name" ) )
+             .where( inCurrentRealm( cb, root ), cb.equal( root.get( "name" ), roleName ) )
+             .orderBy( cb.asc( join.get( "name" ) ) );
+
+        return new Page<String>( start, total, source.createQuery( query )
+                                                     .setFirstResult( start )
+                                                     .setMaxResults( limit )
+                                                     .getResultList() );
+    }
+
+    /**
+     * @return every realm holding a user, role or permission, in all realms, sorted
+     */
+    List<String> realms( final EntityManager source )
+    {
+        final Set<String> realms = new TreeSet<String>();
+        realms.addAll( realms( source, User.class ) );
+        realms.addAll( realms( source, Role.class ) );
+        realms.addAll( realms( source, Permission.class ) );
+
+        return new ArrayList<String>( realms );
+    }
+
+    private List<String> realms( final EntityManager source, final Class<?> type )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<String> query = cb.createQuery( String.class );
+        final Root<?> root = query.from( type );
+        query.select( root.<String> get( "realm" ) )
+             .distinct( true );
+
+        return source.createQuery( query )
+                     .getResultList();
+    }
+
+    List<ChangeRecord> changes( final EntityManager source, final long since, final int limit )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<ChangeRecord> query = cb.createQuery( ChangeRecord.class );
+        final Root<ChangeRecord> root = query.from( ChangeRecord.class );
+
+        query.select( root )
+             .where( inCurrentRealm( cb, root ), cb.greaterThan( root.<Long> get( "sequence" ), since ) )
+             .orderBy( cb.asc( root.get( "sequence" ) ) );
+
+        return source.createQuery( query )
+                     .setMaxResults( limit )
+                     .getResultList();
+    }
+
+    /**
+     * Number and persist a change record. The counter row stays locked until the caller's transaction ends, so
+     * concurrent writers take their numbers in the order they commit. Every {@link #PRUNE_INTERVAL} changes, records
+     * more than <code>retain</code> sequences old are deleted (zero keeps everything).
+     */
+    long logChange( final EntityManager target, final ChangeRecord change, final int retain )
+    {
+        ChangeSequence counter = target.find( ChangeSequence.class, ChangeSequence.ID, LockModeType.PESSIMISTIC_WRITE );
+        if ( counter == null )
+        {
+            // first change since the counter was introduced; carry on from the generated sequences. Concurrent first
+            // writers collide on the counter's primary key here, and all but one roll back.
+            counter = new ChangeSequence( lastChange( target ) );
+            target.persist( counter );
+            target.flush();
+        }
+
+        change.setSequence( counter.next() );
+        target.persist( change );
+
+        final long sequence = change.getSequence();
+        if ( retain > 0 && sequence > retain && sequence % PRUNE_INTERVAL == 0 )
+        {
+            final long horizon = sequence - retain;
+            final int pruned = target.createQuery( "DELETE FROM ChangeRecord c WHERE c.sequence <= :horizon" )
+                                     .setParameter( "horizon", horizon )
+                                     .executeUpdate();
+
+            counter.setPrunedThrough( horizon );
+            logger.info( "Pruned %d change records through sequence: %d", pruned, horizon );
+        }
+
+        return sequence;
+    }
+
+    /**
+     * The highest sequence that has been pruned from the change log; every change after it is still there.
+     */
+    long changesPrunedThrough( final EntityManager source )
+    {
+        final ChangeSequence counter = source.find( ChangeSequence.class, ChangeSequence.ID );
+        return counter == null ? 0 : counter.getPrunedThrough();
+    }
+
+    /**
+     * The sequence of the last change the database has applied. Sequences are assigned in commit order, so every change
+     * up to it is applied too (though it may since have been pruned).
+     */
+    long changesApplied( final EntityManager source )
+    {
+        final ChangeSequence counter = source.find( ChangeSequence.class, ChangeSequence.ID );
+        return counter == null ? lastChange( source ) : counter.getCurrent();
+    }
+
+    private long lastChange( final EntityManager source )
+    {
+        final CriteriaBuilder cb = source.getCriteriaBuilder();
+        final CriteriaQuery<Long> query = cb.createQuery( Long.class );
+        final Root<ChangeRecord> root = query.from( ChangeRecord.class );
+
+        query.select( cb.max( root.<Long> get( "sequence" ) ) );
+
+        final Long last = source.createQuery( query )
+                                .getSingleResult();
+
+        return last == null ? 0 : last;
+    }
+
+    private static Predicate inCurrentRealm( final CriteriaBuilder cb, final Root<?> root )
+    {
+        return cb.equal( root.get( "realm" ), Realms.current() );
+    }
+
+}
@@ -0,0 +1,469 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.data.Deleted;
+import org.commonjava.web.user.data.Saved;
+import org.commonjava.web.user.model.Page;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Reverse index from permission to roles, and from role to users, maintained incrementally from the data
+ * backend's {@link Saved} and {@link Deleted} events. Member sets are sorted, so holder listings can be paged by
+ * merging the member sets of every granting role without materializing them.
+ * <p>
+ * Every map is keyed by {@link Realms#key(String, String)}, so realms share the structure but never each other's
+ * entries; the member sets themselves hold bare names.
+ * </p>
+ */
+@Singleton
+public class MembershipIndex
+{
+
+    private final ConcurrentMap<String, NavigableSet<String>> rolesByPermission =
+        new ConcurrentHashMap<String, NavigableSet<String>>();
+
+    private final ConcurrentMap<String, Set<String>> permissionsByRole = new ConcurrentHashMap<String, Set<String>>();
+
+    private final ConcurrentMap<String, NavigableSet<String>> usersByRole =
+        new ConcurrentHashMap<String, NavigableSet<String>>();
+
+    private final ConcurrentMap<String, Set<String>> rolesByUser = new ConcurrentHashMap<String, Set<String>>();
+
+    private final NavigableSet<String> wildcardPermissions = new ConcurrentSkipListSet<String>();
+
+    private final Lock writeLock = new ReentrantLock();
+
+    public void onUserSaved( @Observes @Saved final User user )
+    {
+        final Set<String> roles = new HashSet<String>();
+        if ( user.getRoles() != null )
+        {
+            for ( final Role role : user.getRoles() )
+            {
+                roles.add( role.getName() );
+            }
+        }
+
+        final String realm = user.getRealm();
+        writeLock.lock();
+        try
+        {
+            final Set<String> old = rolesByUser.put( Realms.key( realm, user.getUsername() ), roles );
+            unlink( usersByRole, realm, old, roles, user.getUsername() );
+            link( usersByRole, realm, roles, user.getUsername() );
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    public void onUserDeleted( @Observes @Deleted final User user )
+    {
+        writeLock.lock();
+        try
+        {
+            final Set<String> old = rolesByUser.remove( Realms.key( user.getRealm(), user.getUsername() ) );
+            unlink( usersByRole, user.getRealm(), old, Collections.<String> emptySet(), user.getUsername() );
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    public void onRoleSaved( @Observes @Saved final Role role )
+    {
+        final Set<String> perms = new HashSet<String>();
+        if ( role.getPermissions() != null )
+        {
+            for ( final Permission perm : role.getPermissions() )
+            {
+                perms.add( perm.getName() );
+            }
+        }
+
+        final String realm = role.getRealm();
+        writeLock.lock();
+        try
+        {
+            final Set<String> old = permissionsByRole.put( Realms.key( realm, role.getName() ), perms );
+            unlink( rolesByPermission, realm, old, perms, role.getName() );
+            link( rolesByPermission, realm, perms, role.getName() );
+            pruneWildcards( realm, old );
+
+            for ( final String perm : perms )
+            {
+                if ( perm.endsWith( Permission.WILDCARD ) )
+                {
+                    wildcardPermissions.add( Realms.key( realm, perm ) );
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    public void onRoleDeleted( @Observes @Deleted final Role role )
+    {
+        final String realm = role.getRealm();
+        writeLock.lock();
+        try
+        {
+            final Set<String> old = permissionsByRole.remove( Realms.key( realm, role.getName() ) );
+            unlink( rolesByPermission, realm, old, Collections.<String> emptySet(), role.getName() );
+            pruneWildcards( realm, old );
+
+            final Set<String> members = usersByRole.remove( Realms.key( realm, role.getName() ) );
+            if ( members != null )
+            {
+                for ( final String username : members )
+                {
+                    final String userKey = Realms.key( realm, username );
+                    final Set<String> roles = rolesByUser.get( userKey );
+                    if ( roles != null )
+                    {
+                        rolesByUser.put( userKey, without( roles, role.getName() ) );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    public void onPermissionDeleted( @Observes @Deleted final Permission permission )
+    {
+        final String realm = permission.getRealm();
+        writeLock.lock();
+        try
+        {
+            wildcardPermissions.remove( Realms.key( realm, permission.getName() ) );
+
+            final Set<String> roles = rolesByPermission.remove( Realms.key( realm, permission.getName() ) );
+            if ( roles != null )
+            {
+                for ( final String role : roles )
+                {
+                    final String roleKey = Realms.key( realm, role );
+                    final Set<String> perms = permissionsByRole.get( roleKey );
+                    if ( perms != null )
+                    {
+                        permissionsByRole.put( roleKey, without( perms, permission.getName() ) );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replace everything indexed for the given realm; the users and roles are expected to belong to it.
+     */
+    public void rebuild( final String realm, final Collection<User> users, final Collection<Role> roles )
+    {
+        final String prefix = Realms.key( realm, "" );
+        writeLock.lock();
+        try
+        {
+            removePrefixed( rolesByPermission, prefix );
+            removePrefixed( permissionsByRole, prefix );
+            removePrefixed( usersByRole, prefix );
+            removePrefixed( rolesByUser, prefix );
+            wildcardPermissions.subSet( prefix, prefix + Character.MAX_VALUE )
+                               .clear();
+
+            for ( final Role role : roles )
+            {
+                onRoleSaved( role );
+            }
+
+            for ( final User user : users )
+            {
+                onUserSaved( user );
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Names of all roles that grant the given permission, either directly or through a wildcard permission that
+     * implies it.
+     */
+    public Set<String> getGrantingRoles( final String realm, final String permission )
+    {
+        final Set<String> roles = new HashSet<String>();
+        final Set<String> direct = rolesByPermission.get( Realms.key( realm, permission ) );
+        if ( direct != null )
+        {
+            roles.addAll( direct );
+        }
+
+        final String prefix = Realms.key( realm, "" );
+        final Permission target = new Permission( permission );
+        for ( final String wildcard : wildcardPermissions.subSet( prefix, prefix + Character.MAX_VALUE ) )
+        {
+            if ( new Permission( wildcard.substring( prefix.length() ) ).implies( target ) )
+            {
+                final Set<String> granting = rolesByPermission.get( wildcard );
+                if ( granting != null )
+                {
+                    roles.addAll( granting );
+                }
+            }
+        }
+
+        return roles;
+    }
+
+    public Set<String> getRoles( final String realm, final String username )
+    {
+        final Set<String> roles = rolesByUser.get( Realms.key( realm, username ) );
+        return roles == null ? Collections.<String> emptySet() : Collections.unmodifiableSet( roles );
+    }
+
+    /**
+     * @see #page(String, Collection, String, int, int)
+     */
+    public Page<String> getRoleMembers( final String realm, final String role, final String after, final int start,
+                                        final int limit )
+    {
+        return page( realm, Collections.singleton( role ), after, start, limit );
+    }
+
+    /**
+     * @see #page(String, Collection, String, int, int)
+     */
+    public Page<String> getPermissionHolders( final String realm, final String permission, final String after,
+                                              final int start, final int limit )
+    {
+        return page( realm, getGrantingRoles( realm, permission ), after, start, limit );
+    }
+
+    /**
+     * Merge the sorted member sets of the given roles, skipping duplicates, and return <code>limit</code> usernames
+     * of the merged order, starting <code>start</code> names past <code>after</code> (or past the beginning, when
+     * null). Each member set is entered directly after the cursor, so paging by passing the last name of the
+     * previous page as <code>after</code> costs the same at any depth; only <code>start</code> is walked. The total
+     * is not counted, to keep deep pages cheap.
+     */
+    private Page<String> page( final String realm, final Collection<String> roles, final String after,
+                               final int start, final int limit )
+    {
+        final PriorityQueue<PeekingIterator> queue = new PriorityQueue<PeekingIterator>( 11, HEAD_ORDER );
+        for ( final String role : roles )
+        {
+            final NavigableSet<String> members = usersByRole.get( Realms.key( realm, role ) );
+            if ( members != null && !members.isEmpty() )
+            {
+                final PeekingIterator it =
+                    new PeekingIterator( after == null ? members.iterator() : members.tailSet( after, false )
+                                                                                     .iterator() );
+                if ( it.peek() != null )
+                {
+                    queue.add( it );
+                }
+            }
+        }
+
+        final List<String> items = new ArrayList<String>();
+        String last = null;
+        int position = 0;
+        while ( !queue.isEmpty() && items.size() < limit )
+        {
+            final PeekingIterator it = queue.poll();
+            final String username = it.next();
+            if ( it.peek() != null )
+            {
+                queue.add( it );
+            }
+
+            if ( username.equals( last ) )
+            {
+                continue;
+            }
+
+            last = username;
+            if ( position++ >= start )
+            {
+                items.add( username );
+            }
+        }
+
+        return new Page<String>( start, -1, items );
+    }
+
+    /**
+     * Forget wildcard permissions among <code>perms</code> that no role grants any more, so holder lookups stop
+     * testing them. Call with the write lock held.
+     */
+    private void pruneWildcards( final String realm, final Set<String> perms )
+    {
+        if ( perms == null )
+        {
+            return;
+        }
+
+        for ( final String perm : perms )
+        {
+            final String key = Realms.key( realm, perm );
+            if ( perm.endsWith( Permission.WILDCARD ) && !rolesByPermission.containsKey( key ) )
+            {
+                wildcardPermissions.remove( key );
+            }
+        }
+    }
+
+    /**
+     * Copy-on-write removal, since the forward sets are read without locking.
+     */
+    private static Set<String> without( final Set<String> values, final String value )
+    {
+        final Set<String> result = new HashSet<String>( values );
+        result.remove( value );
+
+        return result;
+    }
+
+    private static void removePrefixed( final ConcurrentMap<String, ?> map, final String prefix )
+    {
+        for ( final Iterator<String> it = map.keySet()
+                                             .iterator(); it.hasNext(); )
+        {
+            if ( it.next()
+                   .startsWith( prefix ) )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private static void link( final ConcurrentMap<String, NavigableSet<String>> reverse, final String realm,
+                              final Set<String> keys, final String member )
+    {
+        for ( final String name : keys )
+        {
+            final String key = Realms.key( realm, name );
+            NavigableSet<String> members = reverse.get( key );
+            if ( members == null )
+            {
+                members = new ConcurrentSkipListSet<String>();
+                reverse.put( key, members );
+            }
+
+            members.add( member );
+        }
+    }
+
+    private static void unlink( final ConcurrentMap<String, NavigableSet<String>> reverse, final String realm,
+                                final Set<String> oldKeys, final Set<String> newKeys, final String member )
+    {
+        if ( oldKeys == null )
+        {
+            return;
+        }
+
+        for ( final String name : oldKeys )
+        {
+            if ( newKeys.contains( name ) )
+            {
+                continue;
+            }
+
+            final String key = Realms.key( realm, name );
+            final NavigableSet<String> members = reverse.get( key );
+            if ( members != null )
+            {
+                members.remove( member );
+                if ( members.isEmpty() )
+                {
+                    reverse.remove( key );
+                }
+            }
+        }
+    }
+
+    private static final Comparator<PeekingIterator> HEAD_ORDER = new Comparator<PeekingIterator>()
+    {
+        @Override
+        public int compare( final PeekingIterator first, final PeekingIterator second )
+        {
+            return first.peek()
+                        .compareTo( second.peek() );
+        }
+    };
+
+    private static final class PeekingIterator
+    {
+        private final Iterator<String> delegate;
+
+        private String head;
+
+        PeekingIterator( final Iterator<String> delegate )
+        {
+            this.delegate = delegate;
+            this.head = delegate.hasNext() ? delegate.next() : null;
+        }
+
+        String peek()
+        {
+            return head;
+        }
+
+        String next()
+        {
+            final String result = head;
+            head = delegate.hasNext() ? delegate.next() : null;
+
+            return result;
+        }
+    }
+
+}
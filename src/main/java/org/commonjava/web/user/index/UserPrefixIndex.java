@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.data.Deleted;
+import org.commonjava.web.user.data.Saved;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.User;
+import org.commonjava.web.user.model.UserSummary;
+
+/**
+ * In-memory prefix index over username, first name, last name and email. Terms are kept in a sorted, concurrent
+ * skip list keyed by <code>realm + '/' + term + '\0' + username</code>, so a prefix query is a range scan within one
+ * realm that stops as soon as enough distinct users have been found. Reads are lock-free; writers serialize on a
+ * single lock, since user changes are rare compared to lookups.
+ * <p>
+ * It follows the {@link Saved} and {@link Deleted} events, which only fire once a change has committed, so it never
+ * holds data a write was refused or rolled back with.
+ * </p>
+ */
+@Singleton
+public class UserPrefixIndex
+{
+
+    private static final char SEPARATOR = '\u0000';
+
+    private final ConcurrentSkipListMap<String, UserSummary> entries =
+        new ConcurrentSkipListMap<String, UserSummary>();
+
+    private final ConcurrentMap<String, Set<String>> keysByUser = new ConcurrentHashMap<String, Set<String>>();
+
+    private final Lock writeLock = new ReentrantLock();
+
+    public void onUserSaved( @Observes @Saved final User user )
+    {
+        add( user );
+    }
+
+    public void onUserDeleted( @Observes @Deleted final User user )
+    {
+        remove( user.getRealm(), user.getUsername() );
+    }
+
+    public void add( final User user )
+    {
+        if ( user == null || user.getUsername() == null )
+        {
+            return;
+        }
+
+        final String realm = user.getRealm();
+        final UserSummary summary = new UserSummary( user );
+        final Set<String> keys = new HashSet<String>();
+        for ( final String term : terms( summary ) )
+        {
+            keys.add( Realms.key( realm, term ) + SEPARATOR + summary.getUsername() );
+        }
+
+        writeLock.lock();
+        try
+        {
+            for ( final String key : keys )
+            {
+                entries.put( key, summary );
+            }
+
+            final Set<String> old = keysByUser.put( Realms.key( realm, summary.getUsername() ), keys );
+            if ( old != null )
+            {
+                for ( final String key : old )
+                {
+                    if ( !keys.contains( key ) )
+                    {
+                        entries.remove( key );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    public void remove( final String realm, final String username )
+    {
+        writeLock.lock();
+        try
+        {
+            final Set<String> old = keysByUser.remove( Realms.key( realm, username ) );
+            if ( old != null )
+            {
+                for ( final String key : old )
+                {
+                    entries.remove( key );
+                }
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Replace everything indexed for the given realm; the users are expected to belong to it.
+     */
+    public void rebuild( final String realm, final Collection<User> users )
+    {
+        final String prefix = Realms.key( realm, "" );
+        writeLock.lock();
+        try
+        {
+            entries.subMap( prefix, true, prefix + Character.MAX_VALUE, false )
+                   .clear();
+            for ( final Iterator<String> it = keysByUser.keySet()
+                                                        .iterator(); it.hasNext(); )
+            {
+                if ( it.next()
+                       .startsWith( prefix ) )
+                {
+                    it.remove();
+                }
+            }
+
+            for ( final User user : users )
+            {
+                add( user );
+            }
+        }
+        finally
+        {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Return up to <code>limit</code> distinct users of the realm having a username, first name, last name or email
+     * that starts with the given prefix (case-insensitive).
+     */
+    public List<UserSummary> search( final String realm, final String prefix, final int limit )
+    {
+        final String term = User.normalize( prefix );
+        if ( term == null || term.length() < 1 || limit < 1 )
+        {
+            return Collections.emptyList();
+        }
+
+        final String from = Realms.key( realm, term );
+        final ConcurrentNavigableMap<String, UserSummary> range =
+            entries.subMap( from, true, from + Character.MAX_VALUE, false );
+
+        final Map<String, UserSummary> found = new LinkedHashMap<String, UserSummary>();
+        for ( final UserSummary summary : range.values() )
+        {
+            if ( !found.containsKey( summary.getUsername() ) )
+            {
+                found.put( summary.getUsername(), summary );
+                if ( found.size() >= limit )
+                {
+                    break;
+                }
+            }
+        }
+
+        return new ArrayList<UserSummary>( found.values() );
+    }
+
+    public int size()
+    {
+        return keysByUser.size();
+    }
+
+    private static Set<String> terms( final UserSummary summary )
+    {
+        final Set<String> terms = new HashSet<String>();
+        addTerm( terms, summary.getUsername() );
+        addTerm( terms, summary.getFirstName() );
+        addTerm( terms, summary.getLastName() );
+        addTerm( terms, summary.getEmail() );
+
+        return terms;
+    }
+
+    private static void addTerm( final Set<String> terms, final String value )
+    {
+        final String term = User.normalize( value );
+        if ( term != null && term.length() > 0 )
+        {
+            terms.add( term );
+        }
+    }
+
+}
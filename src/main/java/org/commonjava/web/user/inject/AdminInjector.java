@@ -40,6 +40,8 @@ public class AdminInjector
             logger.error( "Failed to initialize admin-level access: %s", e, e.getMessage() );
         }
 
+        initializer.initializeIndexes();
+
         finished = true;
     }
 
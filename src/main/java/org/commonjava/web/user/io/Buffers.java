@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+/**
+ * Per-thread output buffers for the writers in this package, so serializing a response doesn't allocate a fresh one.
+ * A thread must finish (flush) one writer before starting another.
+ */
+final class Buffers
+{
+
+    static final int SIZE = 8192;
+
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[SIZE];
+        }
+    };
+
+    private Buffers()
+    {
+    }
+
+    static byte[] get()
+    {
+        return BUFFERS.get();
+    }
+
+}
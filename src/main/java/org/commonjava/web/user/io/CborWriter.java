@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal CBOR (RFC 7049) encoder covering what the REST representations need: indefinite-length maps and arrays,
+ * text strings, integers, booleans and null. Output goes through a per-thread reusable buffer (see {@link Buffers}),
+ * and strings are UTF-8 encoded straight into it, so writing a large listing allocates almost nothing per value. Any CBOR library can decode the
+ * result.
+ */
+public final class CborWriter
+    implements StructuredWriter
+{
+
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final int MAJOR_UNSIGNED = 0;
+
+    private static final int MAJOR_NEGATIVE = 1;
+
+    private static final int MAJOR_TEXT = 3;
+
+    private static final int START_MAP = 0xBF;
+
+    private static final int START_ARRAY = 0x9F;
+
+    private static final int BREAK = 0xFF;
+
+    private static final int FALSE = 0xF4;
+
+    private static final int TRUE = 0xF5;
+
+    private static final int NULL = 0xF6;
+
+    private static final int BUFFER_SIZE = Buffers.SIZE;
+
+    private final OutputStream out;
+
+    private final byte[] buffer = Buffers.get();
+
+    private int pos;
+
+    public CborWriter( final OutputStream out )
+    {
+        this.out = out;
+    }
+
+    @Override
+    public void startObject()
+        throws IOException
+    {
+        writeByte( START_MAP );
+    }
+
+    @Override
+    public void startArray()
+        throws IOException
+    {
+        writeByte( START_ARRAY );
+    }
+
+    @Override
+    public void end()
+        throws IOException
+    {
+        writeByte( BREAK );
+    }
+
+    @Override
+    public void name( final FieldName name )
+        throws IOException
+    {
+        writeBytes( name.cbor() );
+    }
+
+    @Override
+    public void value( final String value )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            nullValue();
+            return;
+        }
+
+        final int length = utf8Length( value );
+        if ( length > BUFFER_SIZE - 9 )
+        {
+            writeBytes( encodeText( value ) );
+            return;
+        }
+
+        ensure( 9 + length );
+        pos = header( buffer, pos, MAJOR_TEXT, length );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            final char c = value.charAt( i );
+            if ( c < 0x80 )
+            {
+                buffer[pos++] = (byte) c;
+            }
+            else if ( c < 0x800 )
+            {
+                buffer[pos++] = (byte) ( 0xC0 | ( c >> 6 ) );
+                buffer[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < value.length()
+                && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+            {
+                final int cp = Character.toCodePoint( c, value.charAt( ++i ) );
+                buffer[pos++] = (byte) ( 0xF0 | ( cp >> 18 ) );
+                buffer[pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+                buffer[pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+                buffer[pos++] = (byte) ( 0x80 | ( cp & 0x3F ) );
+            }
+            else
+            {
+                buffer[pos++] = (byte) ( 0xE0 | ( c >> 12 ) );
+                buffer[pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                buffer[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+            }
+        }
+    }
+
+    @Override
+    public void value( final long value )
+        throws IOException
+    {
+        ensure( 9 );
+        if ( value >= 0 )
+        {
+            pos = header( buffer, pos, MAJOR_UNSIGNED, value );
+        }
+        else
+        {
+            pos = header( buffer, pos, MAJOR_NEGATIVE, -1 - value );
+        }
+    }
+
+    @Override
+    public void value( final boolean value )
+        throws IOException
+    {
+        writeByte( value ? TRUE : FALSE );
+    }
+
+    @Override
+    public void nullValue()
+        throws IOException
+    {
+        writeByte( NULL );
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        if ( pos > 0 )
+        {
+            out.write( buffer, 0, pos );
+            pos = 0;
+        }
+
+        out.flush();
+    }
+
+    static byte[] encodeText( final String value )
+    {
+        final byte[] utf8 = value.getBytes( UTF8 );
+        final byte[] header = new byte[9];
+        final int headerLength = header( header, 0, MAJOR_TEXT, utf8.length );
+
+        final byte[] encoded = new byte[headerLength + utf8.length];
+        System.arraycopy( header, 0, encoded, 0, headerLength );
+        System.arraycopy( utf8, 0, encoded, headerLength, utf8.length );
+        return encoded;
+    }
+
+    /**
+     * Write a major type and argument (length or value) at <code>offset</code>, using the shortest form.
+     *
+     * @return the offset after the header
+     */
+    private static int header( final byte[] target, final int offset, final int major, final long argument )
+    {
+        int p = offset;
+        final int type = major << 5;
+        if ( argument < 24 )
+        {
+            target[p++] = (byte) ( type | (int) argument );
+        }
+        else if ( argument < 0x100 )
+        {
+            target[p++] = (byte) ( type | 24 );
+            target[p++] = (byte) argument;
+        }
+        else if ( argument < 0x10000 )
+        {
+            target[p++] = (byte) ( type | 25 );
+            target[p++] = (byte) ( argument >> 8 );
+            target[p++] = (byte) argument;
+        }
+        else if ( argument < 0x100000000L )
+        {
+            target[p++] = (byte) ( type | 26 );
+            for ( int shift = 24; shift >= 0; shift -= 8 )
+            {
+                target[p++] = (byte) ( argument >> shift );
+            }
+        }
+        else
+        {
+            target[p++] = (byte) ( type | 27 );
+            for ( int shift = 56; shift >= 0; shift -= 8 )
+            {
+                target[p++] = (byte) ( argument >> shift );
+            }
+        }
+
+        return p;
+    }
+
+    private static int utf8Length( final String value )
+    {
+        int length = 0;
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            final char c = value.charAt( i );
+            if ( c < 0x80 )
+            {
+                length++;
+            }
+            else if ( c < 0x800 )
+            {
+                length += 2;
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < value.length()
+                && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+            {
+                length += 4;
+                i++;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    private void writeByte( final int b )
+        throws IOException
+    {
+        ensure( 1 );
+        buffer[pos++] = (byte) b;
+    }
+
+    private void writeBytes( final byte[] bytes )
+        throws IOException
+    {
+        if ( bytes.length > BUFFER_SIZE )
+        {
+            drain();
+            out.write( bytes );
+            return;
+        }
+
+        ensure( bytes.length );
+        System.arraycopy( bytes, 0, buffer, pos, bytes.length );
+        pos += bytes.length;
+    }
+
+    private void ensure( final int needed )
+        throws IOException
+    {
+        if ( pos + needed > BUFFER_SIZE )
+        {
+            drain();
+        }
+    }
+
+    private void drain()
+        throws IOException
+    {
+        out.write( buffer, 0, pos );
+        pos = 0;
+    }
+
+}
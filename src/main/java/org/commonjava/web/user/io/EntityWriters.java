@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+import java.io.IOException;
+
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
+
+import org.commonjava.web.common.model.Listing;
+import org.commonjava.web.user.model.BatchResult;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Hand-written serializers for the entities returned by the REST resources, in the same shape the default JSON
+ * binding produced, minus the password digest. Field names are encoded once up front (see {@link FieldName}), and
+ * fields are written by direct getter calls rather than reflection.
+ * <p>
+ * What gets written is controlled by a {@link Projection}. Associations (a user's roles, a role's permissions) are
+ * written only when the projection expands them and the persistence provider has already loaded them, so
+ * serializing a detached entity can't trigger a lazy load. Callers that want an association must fetch it: the
+ * single-entity endpoints fetch what the request expands, and the list and batch queries fetch every association,
+ * so their output (JSON or CBOR alike) keeps the nested roles and permissions the default binding wrote.
+ * </p>
+ */
+public final class EntityWriters
+{
+
+    private static final PersistenceUtil PERSISTENCE = Persistence.getPersistenceUtil();
+
+    private static final FieldName ID = FieldName.of( "id" );
+
+    private static final FieldName VERSION = FieldName.of( "version" );
+
+    private static final FieldName NAME = FieldName.of( "name" );
+
+    private static final FieldName USERNAME = FieldName.of( "username" );
+
+    private static final FieldName FIRST_NAME = FieldName.of( "firstName" );
+
+    private static final FieldName LAST_NAME = FieldName.of( "lastName" );
+
+    private static final FieldName EMAIL = FieldName.of( "email" );
+
+    private static final FieldName ROLES = FieldName.of( "roles" );
+
+    private static final FieldName PERMISSIONS = FieldName.of( "permissions" );
+
+    private static final FieldName ITEMS = FieldName.of( "items" );
+
+    private static final FieldName MISSING = FieldName.of( "missing" );
+
+    private EntityWriters()
+    {
+    }
+
+    /**
+     * @return whether {@link #write(StructuredWriter, Object)} knows how to write instances of <code>type</code>
+     */
+    public static boolean isSupported( final Class<?> type )
+    {
+        return User.class.isAssignableFrom( type ) || Role.class.isAssignableFrom( type )
+            || Permission.class.isAssignableFrom( type ) || Listing.class.isAssignableFrom( type )
+            || BatchResult.class.isAssignableFrom( type )
+            || Projected.class.isAssignableFrom( type );
+    }
+
+    public static void write( final StructuredWriter w, final Object value )
+        throws IOException
+    {
+        if ( value instanceof Projected )
+        {
+            final Projected<?> projected = (Projected<?>) value;
+            write( w, projected.getValue(), projected.getProjection() );
+        }
+        else
+        {
+            write( w, value, Projection.ALL );
+        }
+    }
+
+    public static void write( final StructuredWriter w, final Object value, final Projection projection )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            w.nullValue();
+        }
+        else if ( value instanceof User )
+        {
+            writeUser( w, (User) value, projection );
+        }
+        else if ( value instanceof Role )
+        {
+            writeRole( w, (Role) value, projection );
+        }
+        else if ( value instanceof Permission )
+        {
+            writePermission( w, (Permission) value, projection );
+        }
+        else if ( value instanceof Listing )
+        {
+            writeListing( w, (Listing<?>) value, projection );
+        }
+        else if ( value instanceof BatchResult )
+        {
+            writeBatchResult( w, (BatchResult<?>) value, projection );
+        }
+        else
+        {
+            w.value( value.toString() );
+        }
+    }
+
+    public static void writeUser( final StructuredWriter w, final User user, final Projection projection )
+        throws IOException
+    {
+        w.startObject();
+        if ( projection.includes( ID.getName() ) )
+        {
+            w.name( ID );
+            w.value( user.getId() );
+        }
+        if ( projection.includes( VERSION.getName() ) )
+        {
+            w.name( VERSION );
+            w.value( user.getVersion() );
+        }
+        w.name( USERNAME );
+        w.value( user.getUsername() );
+        if ( projection.includes( FIRST_NAME.getName() ) )
+        {
+            w.name( FIRST_NAME );
+            w.value( user.getFirstName() );
+        }
+        if ( projection.includes( LAST_NAME.getName() ) )
+        {
+            w.name( LAST_NAME );
+            w.value( user.getLastName() );
+        }
+        if ( projection.includes( EMAIL.getName() ) )
+        {
+            w.name( EMAIL );
+            w.value( user.getEmail() );
+        }
+
+        if ( expand( user, ROLES, projection ) && user.getRoles() != null )
+        {
+            final Projection nested = projection.nested( ROLES.getName() );
+            w.name( ROLES );
+            w.startArray();
+            for ( final Role role : user.getRoles() )
+            {
+                writeRole( w, role, nested );
+            }
+            w.end();
+        }
+
+        w.end();
+    }
+
+    public static void writeRole( final StructuredWriter w, final Role role, final Projection projection )
+        throws IOException
+    {
+        w.startObject();
+        if ( projection.includes( ID.getName() ) )
+        {
+            w.name( ID );
+            w.value( role.getId() );
+        }
+        if ( projection.includes( VERSION.getName() ) )
+        {
+            w.name( VERSION );
+            w.value( role.getVersion() );
+        }
+        w.name( NAME );
+        w.value( role.getName() );
+
+        if ( expand( role, PERMISSIONS, projection ) && role.getPermissions() != null )
+        {
+            final Projection nested = projection.nested( PERMISSIONS.getName() );
+            w.name( PERMISSIONS );
+            w.startArray();
+            for ( final Permission permission : role.getPermissions() )
+            {
+                writePermission( w, permission, nested );
+            }
+            w.end();
+        }
+
+        w.end();
+    }
+
+    public static void writePermission( final StructuredWriter w, final Permission permission,
+                                        final Projection projection )
+        throws IOException
+    {
+        w.startObject();
+        if ( projection.includes( ID.getName() ) )
+        {
+            w.name( ID );
+            w.value( permission.getId() );
+        }
+        if ( projection.includes( VERSION.getName() ) )
+        {
+            w.name( VERSION );
+            w.value( permission.getVersion() );
+        }
+        w.name( NAME );
+        w.value( permission.getName() );
+        w.end();
+    }
+
+    /**
+     * Listing items are written with the given projection, so <code>fields=</code> applies to each item.
+     */
+    public static void writeListing( final StructuredWriter w, final Listing<?> listing, final Projection projection )
+        throws IOException
+    {
+        w.startObject();
+        w.name( ITEMS );
+        w.startArray();
+        if ( listing.getItems() != null )
+        {
+            for ( final Object item : listing.getItems() )
+            {
+                write( w, item, projection );
+            }
+        }
+        w.end();
+        w.end();
+    }
+
+    public static void writeBatchResult( final StructuredWriter w, final BatchResult<?> result,
+                                         final Projection projection )
+        throws IOException
+    {
+        w.startObject();
+        w.name( ITEMS );
+        w.startArray();
+        for ( final Object item : result.getItems() )
+        {
+            write( w, item, projection );
+        }
+        w.end();
+        w.name( MISSING );
+        w.startArray();
+        for ( final String name : result.getMissing() )
+        {
+            w.value( name );
+        }
+        w.end();
+        w.end();
+    }
+
+    private static boolean expand( final Object entity, final FieldName association, final Projection projection )
+    {
+        return projection.expands( association.getName() ) && PERSISTENCE.isLoaded( entity, association.getName() );
+    }
+
+}
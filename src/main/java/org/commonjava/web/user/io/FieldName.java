@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+/**
+ * A field name whose encoded forms are computed once, so writers copy bytes instead of encoding the same names on
+ * every response.
+ */
+public final class FieldName
+{
+
+    private final String name;
+
+    private final byte[] cbor;
+
+    private final byte[] json;
+
+    private FieldName( final String name )
+    {
+        this.name = name;
+        this.cbor = CborWriter.encodeText( name );
+        this.json = JsonWriter.encodeName( name );
+    }
+
+    public static FieldName of( final String name )
+    {
+        return new FieldName( name );
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    byte[] cbor()
+    {
+        return cbor;
+    }
+
+    byte[] json()
+    {
+        return json;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streaming JSON encoder writing UTF-8 through a per-thread reusable buffer (see {@link Buffers}). Field names are
+ * copied from their pre-encoded form, and strings are escaped and encoded in a single pass with no intermediate
+ * objects.
+ */
+public final class JsonWriter
+    implements StructuredWriter
+{
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes( UTF8 );
+
+    private static final byte[] NULL = "null".getBytes( UTF8 );
+
+    private static final byte[] TRUE = "true".getBytes( UTF8 );
+
+    private static final byte[] FALSE = "false".getBytes( UTF8 );
+
+    private static final int MAX_DEPTH = 64;
+
+    private final OutputStream out;
+
+    private final byte[] buffer = Buffers.get();
+
+    private int pos;
+
+    /**
+     * Per nesting level: whether the next element needs a comma before it.
+     */
+    private final boolean[] needsComma = new boolean[MAX_DEPTH];
+
+    /**
+     * Per nesting level: the bracket that closes it.
+     */
+    private final byte[] closers = new byte[MAX_DEPTH];
+
+    private int depth;
+
+    /**
+     * Set after a field name, so the value that follows doesn't get a comma.
+     */
+    private boolean afterName;
+
+    public JsonWriter( final OutputStream out )
+    {
+        this.out = out;
+    }
+
+    @Override
+    public void startObject()
+        throws IOException
+    {
+        open( '{' );
+    }
+
+    @Override
+    public void startArray()
+        throws IOException
+    {
+        open( '[' );
+    }
+
+    @Override
+    public void end()
+        throws IOException
+    {
+        writeByte( closers[--depth] );
+    }
+
+    @Override
+    public void name( final FieldName name )
+        throws IOException
+    {
+        separate();
+        writeBytes( name.json() );
+        afterName = true;
+    }
+
+    @Override
+    public void value( final String value )
+        throws IOException
+    {
+        if ( value == null )
+        {
+            nullValue();
+            return;
+        }
+
+        separate();
+        writeByte( '"' );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            final char c = value.charAt( i );
+            ensure( 6 );
+            if ( c == '"' || c == '\\' )
+            {
+                buffer[pos++] = '\\';
+                buffer[pos++] = (byte) c;
+            }
+            else if ( c < 0x20 )
+            {
+                buffer[pos++] = '\\';
+                buffer[pos++] = 'u';
+                buffer[pos++] = '0';
+                buffer[pos++] = '0';
+                buffer[pos++] = HEX[c >> 4];
+                buffer[pos++] = HEX[c & 0xF];
+            }
+            else if ( c < 0x80 )
+            {
+                buffer[pos++] = (byte) c;
+            }
+            else if ( c < 0x800 )
+            {
+                buffer[pos++] = (byte) ( 0xC0 | ( c >> 6 ) );
+                buffer[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+            }
+            else if ( Character.isHighSurrogate( c ) && i + 1 < value.length()
+                && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+            {
+                final int cp = Character.toCodePoint( c, value.charAt( ++i ) );
+                buffer[pos++] = (byte) ( 0xF0 | ( cp >> 18 ) );
+                buffer[pos++] = (byte) ( 0x80 | ( ( cp >> 12 ) & 0x3F ) );
+                buffer[pos++] = (byte) ( 0x80 | ( ( cp >> 6 ) & 0x3F ) );
+                buffer[pos++] = (byte) ( 0x80 | ( cp & 0x3F ) );
+            }
+            else
+            {
+                buffer[pos++] = (byte) ( 0xE0 | ( c >> 12 ) );
+                buffer[pos++] = (byte) ( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                buffer[pos++] = (byte) ( 0x80 | ( c & 0x3F ) );
+            }
+        }
+        writeByte( '"' );
+    }
+
+    @Override
+    public void value( final long value )
+        throws IOException
+    {
+        separate();
+        if ( value == Long.MIN_VALUE )
+        {
+            writeBytes( Long.toString( value ).getBytes( UTF8 ) );
+            return;
+        }
+
+        ensure( 20 );
+        long v = value;
+        if ( v < 0 )
+        {
+            buffer[pos++] = '-';
+            v = -v;
+        }
+
+        final int start = pos;
+        do
+        {
+            buffer[pos++] = (byte) ( '0' + ( v % 10 ) );
+            v /= 10;
+        }
+        while ( v > 0 );
+
+        // digits were written least significant first.
+        for ( int i = start, j = pos - 1; i < j; i++, j-- )
+        {
+            final byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+
+    @Override
+    public void value( final boolean value )
+        throws IOException
+    {
+        separate();
+        writeBytes( value ? TRUE : FALSE );
+    }
+
+    @Override
+    public void nullValue()
+        throws IOException
+    {
+        separate();
+        writeBytes( NULL );
+    }
+
+    @Override
+    public void flush()
+        throws IOException
+    {
+        if ( pos > 0 )
+        {
+            out.write( buffer, 0, pos );
+            pos = 0;
+        }
+
+        out.flush();
+    }
+
+    static byte[] encodeName( final String name )
+    {
+        return ( '"' + name + "\":" ).getBytes( UTF8 );
+    }
+
+    private void open( final char opener )
+        throws IOException
+    {
+        separate();
+        if ( depth == MAX_DEPTH )
+        {
+            throw new IOException( "JSON nested deeper than " + MAX_DEPTH + " levels" );
+        }
+
+        writeByte( opener );
+        closers[depth] = (byte) ( opener == '{' ? '}' : ']' );
+        needsComma[depth] = false;
+        depth++;
+    }
+
+    /**
+     * Emit the comma between elements, unless this is the first element at its level or the value of a field.
+     */
+    private void separate()
+        throws IOException
+    {
+        if ( afterName )
+        {
+            afterName = false;
+            return;
+        }
+
+        if ( depth > 0 )
+        {
+            if ( needsComma[depth - 1] )
+            {
+                writeByte( ',' );
+            }
+            needsComma[depth - 1] = true;
+        }
+    }
+
+    private void writeByte( final int b )
+        throws IOException
+    {
+        ensure( 1 );
+        buffer[pos++] = (byte) b;
+    }
+
+    private void writeBytes( final byte[] bytes )
+        throws IOException
+    {
+        if ( bytes.length > Buffers.SIZE )
+        {
+            drain();
+            out.write( bytes );
+            return;
+        }
+
+        ensure( bytes.length );
+        System.arraycopy( bytes, 0, buffer, pos, bytes.length );
+        pos += bytes.length;
+    }
+
+    private void ensure( final int needed )
+        throws IOException
+    {
+        if ( pos + needed > Buffers.SIZE )
+        {
+            drain();
+        }
+    }
+
+    private void drain()
+        throws IOException
+    {
+        out.write( buffer, 0, pos );
+        pos = 0;
+    }
+
+}
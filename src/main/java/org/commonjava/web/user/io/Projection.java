@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which parts of an entity to write: a sparse fieldset (<code>fields=</code>) restricting the scalar fields of the
+ * top-level entity, and the associations to expand (<code>expand=</code>), where a dotted path such as
+ * <code>roles.permissions</code> expands an association of the nested entities. The entity's identifying field
+ * (username or name) is always written.
+ */
+public final class Projection
+{
+
+    /**
+     * All fields, and whatever associations are already loaded.
+     */
+    public static final Projection ALL = new Projection( null, null );
+
+    /**
+     * All scalar fields, no associations.
+     */
+    public static final Projection NONE = new Projection( null, Collections.<String> emptySet() );
+
+    private final Set<String> fields;
+
+    private final Set<String> expand;
+
+    private Projection( final Set<String> fields, final Set<String> expand )
+    {
+        this.fields = fields;
+        this.expand = expand;
+    }
+
+    /**
+     * @param fields comma-separated field names, or null for all fields
+     * @param expand comma-separated association paths, or null for whatever is already loaded
+     */
+    public static Projection of( final String fields, final String expand )
+    {
+        return new Projection( split( fields ), split( expand ) );
+    }
+
+    public boolean includes( final String field )
+    {
+        return fields == null || fields.contains( field );
+    }
+
+    public boolean expands( final String association )
+    {
+        return expand == null || expand.contains( association );
+    }
+
+    /**
+     * @return the projection for entities reached through <code>association</code>: all their fields, and the
+     *         expansions nested under it
+     */
+    public Projection nested( final String association )
+    {
+        if ( expand == null )
+        {
+            return ALL;
+        }
+
+        final String prefix = association + ".";
+        final Set<String> nested = new HashSet<String>();
+        for ( final String path : expand )
+        {
+            if ( path.startsWith( prefix ) )
+            {
+                nested.add( path.substring( prefix.length() ) );
+            }
+        }
+
+        return new Projection( null, nested );
+    }
+
+    private static Set<String> split( final String list )
+    {
+        if ( list == null )
+        {
+            return null;
+        }
+
+        final Set<String> values = new HashSet<String>();
+        for ( final String value : list.split( "," ) )
+        {
+            final String trimmed = value.trim();
+            if ( trimmed.length() > 0 )
+            {
+                values.add( trimmed );
+            }
+        }
+
+        return values;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.io;
+
+import java.io.IOException;
+
+/**
+ * Streaming writer for the object/array/value structure shared by the response encodings. Calls must nest properly:
+ * inside an object, each value is preceded by {@link #name(FieldName)}; every start is matched by {@link #end()}.
+ */
+public interface StructuredWriter
+{
+
+    void startObject()
+        throws IOException;
+
+    void startArray()
+        throws IOException;
+
+    void end()
+        throws IOException;
+
+    void name( FieldName name )
+        throws IOException;
+
+    void value( String value )
+        throws IOException;
+
+    void value( long value )
+        throws IOException;
+
+    void value( boolean value )
+        throws IOException;
+
+    void nullValue()
+        throws IOException;
+
+    /**
+     * Write out anything still buffered. Does not close the underlying stream.
+     */
+    void flush()
+        throws IOException;
+
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.model;
+
+import java.util.List;
+
+/**
+ * A batch of (subject, permission) questions for <code>POST /authz/check</code>. Answers come back in the same
+ * order, as {@link AuthorizationDecisions}.
+ */
+public class AuthorizationChecks
+{
+
+    private List<Check> checks;
+
+    public List<Check> getChecks()
+    {
+        return checks;
+    }
+
+    public void setChecks( final List<Check> checks )
+    {
+        this.checks = checks;
+    }
+
+    public static class Check
+    {
+
+        private String subject;
+
+        private String permission;
+
+        public Check()
+        {
+        }
+
+        public Check( final String subject, final String permission )
+        {
+            this.subject = subject;
+            this.permission = permission;
+        }
+
+        public String getSubject()
+        {
+            return subject;
+        }
+
+        public void setSubject( final String subject )
+        {
+            this.subject = subject;
+        }
+
+        public String getPermission()
+        {
+            return permission;
+        }
+
+        public void setPermission( final String permission )
+        {
+            this.permission = permission;
+        }
+
+    }
+
+}
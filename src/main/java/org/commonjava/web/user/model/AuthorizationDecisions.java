@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.model;
+
+/**
+ * Answers to a batch of {@link AuthorizationChecks}, one bit per check: bit <code>i</code> (bit <code>i % 8</code>,
+ * least significant first, of byte <code>i / 8</code>) is set if check <code>i</code> is allowed. The bytes are
+ * base64-encoded in <code>decisions</code>, which keeps thousands of answers to a few hundred characters.
+ */
+public final class AuthorizationDecisions
+{
+
+    private final int count;
+
+    private final int allowed;
+
+    private final String decisions;
+
+    public AuthorizationDecisions( final int count, final int allowed, final String decisions )
+    {
+        this.count = count;
+        this.allowed = allowed;
+        this.decisions = decisions;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public int getAllowed()
+    {
+        return allowed;
+    }
+
+    public String getDecisions()
+    {
+        return decisions;
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.commonjava.web.user.model;
+
+import java.util.List;
+
+/**
+ * The answer to a multi-get: the entities that were found, and the requested names that weren't.
+ */
+public final class BatchResult<T>
+{
+
+    private final List<T> items;
+
+    private final List<String> missing;
+
+    public BatchResult( final List<T> items, final List<String> missing )
+    {
+        this.items = items;
+        this.missing = missing;
+    }
+
+    public List<T> getItems()
+    {
+        return items;
+    }
+
+    public List<String> getMissing()
+    {
+        return missing;
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.commonjava.web.user.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * One entry in the durable change log. Records are written in the same transaction as the change they describe,
+ * and take their sequence numbers from {@link ChangeSequence} in commit order, so consumers can resume from the last
+ * sequence they saw without missing a change that committed late.
+ */
+@Entity
+@Table( name = "changes" )
+public class ChangeRecord
+{
+
+    public enum Action
+    {
+        SAVE, DELETE;
+    }
+
+    public static final String USER = "user";
+
+    public static final String ROLE = "role";
+
+    public static final String PERMISSION = "permission";
+
+    @Id
+    private long sequence;
+
+    @Column( nullable = false )
+    private String realm;
+
+    @Column( nullable = false )
+    private String type;
+
+    @Column( nullable = false )
+    private String name;
+
+    @Enumerated( EnumType.STRING )
+    @Column( nullable = false )
+    private Action action;
+
+    private long timestamp;
+
+    public ChangeRecord()
+    {
+    }
+
+    public ChangeRecord( final String realm, final String type, final String name, final Action action )
+    {
+        this.realm = realm;
+        this.type = type;
+        this.name = name;
+        this.action = action;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    public void setSequence( final long sequence )
+    {
+        this.sequence = sequence;
+    }
+
+    public String getRealm()
+    {
+        return realm;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Action getAction()
+    {
+        return action;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "ChangeRecord@%d [%s %s:%s/%s]", sequence, action, type, realm, name );
+    }
+
+}
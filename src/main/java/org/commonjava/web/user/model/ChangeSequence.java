@@ -0,0 +1,61 @@
+package org.commonjava.web.user.model;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * The single row that hands out {@link ChangeRecord} sequence numbers. Writers lock it for the rest of their
+ * transaction when they take a number, so numbers are assigned in commit order and a reader that has seen sequence
+ * N has already seen everything below it. It also remembers how far the log has been pruned.
+ */
+@Entity
+@Table( name = "change_sequence" )
+public class ChangeSequence
+{
+
+    public static final int ID = 1;
+
+    @Id
+    private int id = ID;
+
+    private long current;
+
+    private long prunedThrough;
+
+    public ChangeSequence()
+    {
+    }
+
+    public ChangeSequence( final long current )
+    {
+        this.current = current;
+    }
+
+    public long next()
+    {
+        return ++current;
+    }
+
+    public long getCurrent()
+    {
+        return current;
+    }
+
+    public long getPrunedThrough()
+    {
+        return prunedThrough;
+    }
+
+    public void setPrunedThrough( final long prunedThrough )
+    {
+        this.prunedThrough = prunedThrough;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "ChangeSequence [current=%d, prunedThrough=%d]", current, prunedThrough );
+    }
+
+}
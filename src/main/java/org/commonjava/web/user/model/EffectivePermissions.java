@@ -0,0 +1,86 @@
+package org.commonjava.web.user.model;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flattened view of everything a user is authorized for: role names and permission names, both sorted, plus a
+ * version stamp derived from their content. Clients can keep a local copy and revalidate it cheaply by comparing
+ * versions.
+ */
+public final class EffectivePermissions
+{
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String username;
+
+    private final List<String> roles;
+
+    private final List<String> permissions;
+
+    private final String version;
+
+    public EffectivePermissions( final String username, final List<String> roles, final List<String> permissions )
+    {
+        this.username = username;
+        this.roles = Collections.unmodifiableList( roles );
+        this.permissions = Collections.unmodifiableList( permissions );
+        this.version = computeVersion( roles, permissions );
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public List<String> getRoles()
+    {
+        return roles;
+    }
+
+    public List<String> getPermissions()
+    {
+        return permissions;
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    private static String computeVersion( final List<String> roles, final List<String> permissions )
+    {
+        long hash = FNV_OFFSET;
+        hash = hash( hash, roles );
+        hash = ( hash ^ '|' ) * FNV_PRIME;
+        hash = hash( hash, permissions );
+
+        return Long.toHexString( hash );
+    }
+
+    private static long hash( final long seed, final List<String> values )
+    {
+        long hash = seed;
+        for ( final String value : values )
+        {
+            for ( int i = 0; i < value.length(); i++ )
+            {
+                hash = ( hash ^ value.charAt( i ) ) * FNV_PRIME;
+            }
+
+            hash = ( hash ^ ',' ) * FNV_PRIME;
+        }
+
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "EffectivePermissions [%s, version=%s]", username, version );
+    }
+
+}
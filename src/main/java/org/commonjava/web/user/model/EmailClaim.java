@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Which user holds an email address, kept on the home shard when users are sharded. Users are placed by username,
+ * so each shard's unique index on the email key only covers its own users; this table's index covers them all.
+ */
+@Entity
+@Table( name = "email_claims", uniqueConstraints = { @UniqueConstraint( columnNames = { "realm", "emailKey" } ) } )
+public class EmailClaim
+{
+
+    @Id
+    @GeneratedValue
+    private int id;
+
+    @Column( nullable = false, updatable = false )
+    private String realm = Realms.current();
+
+    @Column( nullable = false, updatable = false )
+    private String emailKey;
+
+    @Column( nullable = false )
+    private String username;
+
+    public EmailClaim()
+    {
+    }
+
+    public EmailClaim( final String emailKey, final String username )
+    {
+        this.emailKey = emailKey;
+        this.username = username;
+    }
+
+    public String getRealm()
+    {
+        return realm;
+    }
+
+    public String getEmailKey()
+    {
+        return emailKey;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "EmailClaim [realm=%s, emailKey=%s, username=%s]", realm, emailKey, username );
+    }
+
+}
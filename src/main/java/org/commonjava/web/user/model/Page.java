@@ -0,0 +1,40 @@
+package org.commonjava.web.user.model;
+
+import java.util.List;
+
+/**
+ * One page of a larger, ordered result. <code>total</code> is the size of the complete result, or -1 when it is
+ * too expensive to count.
+ */
+public final class Page<T>
+{
+
+    private final int start;
+
+    private final int total;
+
+    private final List<T> items;
+
+    public Page( final int start, final int total, final List<T> items )
+    {
+        this.start = start;
+        this.total = total;
+        this.items = items;
+    }
+
+    public int getStart()
+    {
+        return start;
+    }
+
+    public int getTotal()
+    {
+        return total;
+    }
+
+    public List<T> getItems()
+    {
+        return items;
+    }
+
+}
@@ -7,11 +7,13 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
 
 import org.hibernate.validator.constraints.NotBlank;
 
 @Entity
-@Table( name = "perms" )
+@Table( name = "perms", uniqueConstraints = @UniqueConstraint( columnNames = { "realm", "name" } ) )
 public class Permission
     implements org.apache.shiro.authz.Permission
 
@@ -35,8 +37,13 @@ public class Permission
     @GeneratedValue
     private int id;
 
+    @Version
+    private int version;
+
+    @Column( nullable = false, updatable = false )
+    private String realm = Realms.current();
+
     @NotBlank
-    @Column( unique = true )
     private String name;
 
     public Permission()
@@ -58,6 +65,21 @@ public class Permission
         this.id = id;
     }
 
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion( final int version )
+    {
+        this.version = version;
+    }
+
+    public String getRealm()
+    {
+        return realm;
+    }
+
     public String getName()
     {
         return name;
@@ -103,12 +125,20 @@ public class Permission
     @Override
     public boolean implies( final org.apache.shiro.authz.Permission p )
     {
-        if ( name.endsWith( WILDCARD ) && ( p instanceof Permission ) )
+        if ( !( p instanceof Permission ) )
         {
-            Permission perm = (Permission) p;
-            String prefix = name.substring( 0, name.length() - WILDCARD.length() );
+            return false;
+        }
 
-            String permName = perm.getName();
+        final String permName = ( (Permission) p ).getName();
+        if ( name.equals( permName ) )
+        {
+            return true;
+        }
+
+        if ( name.endsWith( WILDCARD ) )
+        {
+            final String prefix = name.substring( 0, name.length() - WILDCARD.length() );
             return permName.length() > prefix.length() && permName.startsWith( prefix );
         }
 
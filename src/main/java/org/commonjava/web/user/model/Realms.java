@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.model;
+
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * The realm (tenant) the current thread is working in. Users, roles and permissions belong to exactly one realm;
+ * names are only unique within it, and every lookup, listing, cache and index is scoped to the current realm.
+ * <p>
+ * The realm is set per request by {@link org.commonjava.web.user.conf.RealmFilter} and defaults to
+ * {@link #DEFAULT}. Work handed to another thread must carry it along with {@link #propagate(Callable)}.
+ * </p>
+ */
+public final class Realms
+{
+
+    public static final String DEFAULT = "default";
+
+    /**
+     * Separates the realm from the name in {@link #key(String, String)}. Realm names can't contain it.
+     */
+    public static final char SEPARATOR = '/';
+
+    private static final Pattern NAME = Pattern.compile( "[A-Za-z0-9][A-Za-z0-9_.-]{0,63}" );
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<String>();
+
+    private Realms()
+    {
+    }
+
+    public static String current()
+    {
+        final String realm = CURRENT.get();
+        return realm == null ? DEFAULT : realm;
+    }
+
+    /**
+     * Switch the current thread to <code>realm</code>.
+     *
+     * @return the previous setting, to hand to {@link #restore(String)}
+     */
+    public static String enter( final String realm )
+    {
+        final String previous = CURRENT.get();
+        CURRENT.set( realm );
+
+        return previous;
+    }
+
+    public static void restore( final String previous )
+    {
+        if ( previous == null )
+        {
+            CURRENT.remove();
+        }
+        else
+        {
+            CURRENT.set( previous );
+        }
+    }
+
+    public static boolean isValid( final String realm )
+    {
+        return realm != null && NAME.matcher( realm )
+                                    .matches();
+    }
+
+    /**
+     * A key for <code>name</code> that is unique across realms, for caches and indexes shared between them.
+     */
+    public static String key( final String realm, final String name )
+    {
+        return realm + SEPARATOR + name;
+    }
+
+    /**
+     * Wrap <code>task</code> to run in the realm that is current now, on whatever thread ends up running it.
+     */
+    public static <T> Callable<T> propagate( final Callable<T> task )
+    {
+        final String realm = current();
+        return new Callable<T>()
+        {
+            @Override
+            public T call()
+                throws Exception
+            {
+                final String previous = enter( realm );
+                try
+                {
+                    return task.call();
+                }
+                finally
+                {
+                    restore( previous );
+                }
+            }
+        };
+    }
+
+    public static Runnable propagate( final Runnable task )
+    {
+        final String realm = current();
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                final String previous = enter( realm );
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    restore( previous );
+                }
+            }
+        };
+    }
+
+}
@@ -11,11 +11,13 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
 
 import org.hibernate.validator.constraints.NotBlank;
 
 @Entity
-@Table( name = "roles" )
+@Table( name = "roles", uniqueConstraints = @UniqueConstraint( columnNames = { "realm", "name" } ) )
 public class Role
 {
 
@@ -27,8 +29,13 @@ public class Role
     @GeneratedValue
     private int id;
 
+    @Version
+    private int version;
+
+    @Column( nullable = false, updatable = false )
+    private String realm = Realms.current();
+
     @NotBlank
-    @Column( unique = true )
     private String name;
 
     @ManyToMany
@@ -60,6 +67,21 @@ public class Role
         this.id = id;
     }
 
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion( final int version )
+    {
+        this.version = version;
+    }
+
+    public String getRealm()
+    {
+        return realm;
+    }
+
     public String getName()
     {
         return name;
@@ -70,7 +92,7 @@ public class Role
         this.name = name;
     }
 
-    public synchronized void addPermission( final Permission permission )
+    public void addPermission( final Permission permission )
     {
         if ( permissions == null )
         {
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.model;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a signed access token asserts about its holder: who they are and in which realm, which roles they had, and
+ * their effective permissions, as of when it was issued. Times are in seconds since the epoch.
+ */
+public final class TokenClaims
+    implements Serializable
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final String realm;
+
+    private final String username;
+
+    private final List<String> roles;
+
+    private final List<String> permissions;
+
+    private final long issued;
+
+    private final long expires;
+
+    public TokenClaims( final String realm, final String username, final List<String> roles,
+                        final List<String> permissions, final long issued, final long expires )
+    {
+        this.realm = realm;
+        this.username = username;
+        this.roles = Collections.unmodifiableList( roles );
+        this.permissions = Collections.unmodifiableList( permissions );
+        this.issued = issued;
+        this.expires = expires;
+    }
+
+    public String getRealm()
+    {
+        return realm;
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public List<String> getRoles()
+    {
+        return roles;
+    }
+
+    public List<String> getPermissions()
+    {
+        return permissions;
+    }
+
+    public long getIssued()
+    {
+        return issued;
+    }
+
+    public long getExpires()
+    {
+        return expires;
+    }
+
+    public boolean isExpired( final long nowSeconds )
+    {
+        return nowSeconds >= expires;
+    }
+
+    @Override
+    public String toString()
+    {
+        return username;
+    }
+
+}
@@ -17,6 +17,7 @@
 package org.commonjava.web.user.model;
 
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Set;
 
 import javax.persistence.Column;
@@ -24,7 +25,11 @@ import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.ManyToMany;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
 
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.SimpleAuthenticationInfo;
@@ -33,7 +38,9 @@ import org.hibernate.validator.constraints.Length;
 import org.hibernate.validator.constraints.NotBlank;
 
 @Entity
-@Table( name = "users" )
+@Table( name = "users", uniqueConstraints = { @UniqueConstraint( columnNames = { "realm", "username" } ),
+    @UniqueConstraint( columnNames = { "realm", "usernameKey" } ),
+    @UniqueConstraint( columnNames = { "realm", "emailKey" } ) } )
 public class User
 {
 
@@ -43,19 +50,29 @@ public class User
 
     public static final String NOT_SPECIFIED = "";
 
-    private static final String DEFAULT_REALM = "default";
-
     @Id
     @GeneratedValue
     private int id;
 
-    private final String realm = DEFAULT_REALM;
+    @Version
+    private int version;
+
+    /**
+     * The {@link Realms realm} this user belongs to; usernames and emails are unique within it.
+     */
+    @Column( nullable = false, updatable = false )
+    private String realm = Realms.current();
 
     @Length( min = 4, max = 15 )
     @NotBlank
-    @Column( unique = true )
     private String username;
 
+    /**
+     * Normalized shadow of {@link #username}, used for case-insensitive lookups via its unique index.
+     */
+    @Column( nullable = false )
+    private String usernameKey;
+
     @NotBlank
     private String passwordDigest;
 
@@ -69,6 +86,11 @@ public class User
     @NotBlank
     private String email;
 
+    /**
+     * Normalized shadow of {@link #email}, used for lookups by email via its unique index.
+     */
+    private String emailKey;
+
     @ManyToMany
     private Set<Role> roles;
 
@@ -79,8 +101,8 @@ public class User
     public User( final String username, final String email, final String firstName,
                  final String lastName, final String passwordDigest )
     {
-        this.username = username;
-        this.email = email;
+        setUsername( username );
+        setEmail( email );
         this.firstName = firstName;
         this.lastName = lastName;
         this.passwordDigest = passwordDigest;
@@ -88,7 +110,12 @@ public class User
 
     public User( final String username )
     {
-        this.username = username;
+        setUsername( username );
+    }
+
+    public String getRealm()
+    {
+        return realm;
     }
 
     public String getUsername()
@@ -99,6 +126,7 @@ public class User
     public void setUsername( final String username )
     {
         this.username = username;
+        this.usernameKey = normalize( username );
     }
 
     public String getPasswordDigest()
@@ -139,6 +167,7 @@ public class User
     public void setEmail( final String email )
     {
         this.email = email;
+        this.emailKey = normalize( email );
     }
 
     public void addRole( final Role role )
@@ -171,6 +200,16 @@ public class User
         this.id = id;
     }
 
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion( final int version )
+    {
+        this.version = version;
+    }
+
     @Override
     public int hashCode()
     {
@@ -203,6 +242,28 @@ public class User
         return true;
     }
 
+    @PrePersist
+    @PreUpdate
+    protected void updateLookupKeys()
+    {
+        usernameKey = normalize( username );
+        emailKey = normalize( email );
+    }
+
+    /**
+     * Normalize a username or email address into the form stored in the lookup-key columns.
+     */
+    public static String normalize( final String value )
+    {
+        if ( value == null )
+        {
+            return null;
+        }
+
+        return value.trim()
+                    .toLowerCase( Locale.ENGLISH );
+    }
+
     public static AuthenticationInfo getAuthenticationInfo( final User user )
     {
         return new SimpleAuthenticationInfo( user.getUsername(), user.getPasswordDigest(),
@@ -211,10 +272,14 @@ public class User
 
     public User updateFrom( final User user )
     {
-        this.email = user.getEmail();
+        setEmail( user.getEmail() );
         this.firstName = user.getFirstName();
         this.lastName = user.getLastName();
         this.passwordDigest = user.getPasswordDigest();
+        if ( user.getRoles() != null )
+        {
+            this.roles = user.getRoles();
+        }
 
         return this;
     }
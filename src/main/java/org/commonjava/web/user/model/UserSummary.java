@@ -0,0 +1,52 @@
+package org.commonjava.web.user.model;
+
+/**
+ * Lightweight, immutable view of a {@link User} containing only the fields needed to identify it, used for
+ * autocomplete and search results that are served without touching the database.
+ */
+public final class UserSummary
+{
+
+    private final String username;
+
+    private final String firstName;
+
+    private final String lastName;
+
+    private final String email;
+
+    public UserSummary( final User user )
+    {
+        this.username = user.getUsername();
+        this.firstName = user.getFirstName();
+        this.lastName = user.getLastName();
+        this.email = user.getEmail();
+    }
+
+    public String getUsername()
+    {
+        return username;
+    }
+
+    public String getFirstName()
+    {
+        return firstName;
+    }
+
+    public String getLastName()
+    {
+        return lastName;
+    }
+
+    public String getEmail()
+    {
+        return email;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "UserSummary [%s]", username );
+    }
+
+}
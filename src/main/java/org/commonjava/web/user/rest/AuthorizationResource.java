@@ -0,0 +1,124 @@
+package org.commonjava.web.user.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.xml.bind.JAXBElement;
+
+import org.apache.shiro.codec.Base64;
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
+import org.commonjava.web.user.data.UserDataManager;
+import org.commonjava.web.user.model.AuthorizationChecks;
+import org.commonjava.web.user.model.AuthorizationChecks.Check;
+import org.commonjava.web.user.model.AuthorizationDecisions;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.shiro.PermissionMatcher;
+
+/**
+ * Batch authorization decisions for gateways fanning one request out to many checks. Checks are grouped by subject,
+ * so each user's effective permissions are resolved (normally from cache) once per batch however many checks name
+ * them. Unknown subjects are denied everything.
+ * <p>
+ * Decisions sit on the callers' own request path, so they resolve permissions at login priority and bypass the CRUD
+ * bulkheads rather than queueing behind administrative traffic.
+ * </p>
+ */
+@Path( "/authz" )
+@RequestScoped
+// @RequiresAuthentication
+public class AuthorizationResource
+{
+
+    private static final int MAX_CHECKS = 10000;
+
+    @Inject
+    private UserDataManager dataManager;
+
+    @POST
+    @Path( "check" )
+    @Consumes( { MediaType.APPLICATION_JSON } )
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Response check( final JAXBElement<AuthorizationChecks> element )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final List<Check> checks = element.getValue()
+                                          .getChecks();
+        if ( checks == null || checks.isEmpty() )
+        {
+            return Response.ok( new AuthorizationDecisions( 0, 0, "" ) ).build();
+        }
+
+        if ( checks.size() > MAX_CHECKS )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "At most " + MAX_CHECKS
+                                                                     + " checks per request" ).build();
+        }
+
+        final Map<String, List<Integer>> bySubject = new LinkedHashMap<String, List<Integer>>();
+        for ( int i = 0; i < checks.size(); i++ )
+        {
+            final Check check = checks.get( i );
+            if ( check == null || check.getSubject() == null || check.getPermission() == null )
+            {
+                continue;
+            }
+
+            List<Integer> indexes = bySubject.get( check.getSubject() );
+            if ( indexes == null )
+            {
+                indexes = new ArrayList<Integer>();
+                bySubject.put( check.getSubject(), indexes );
+            }
+
+            indexes.add( i );
+        }
+
+        final byte[] bits = new byte[( checks.size() + 7 ) / 8];
+        int allowed = 0;
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
+        {
+            for ( final Map.Entry<String, List<Integer>> entry : bySubject.entrySet() )
+            {
+                final EffectivePermissions effective = dataManager.getEffectivePermissions( entry.getKey() );
+                if ( effective == null )
+                {
+                    continue;
+                }
+
+                final PermissionMatcher matcher = new PermissionMatcher( effective );
+                for ( final Integer index : entry.getValue() )
+                {
+                    if ( matcher.isPermitted( checks.get( index )
+                                                    .getPermission() ) )
+                    {
+                        bits[index >> 3] |= 1 << ( index & 7 );
+                        allowed++;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            Priority.restore( priority );
+        }
+
+        return Response.ok( new AuthorizationDecisions( checks.size(), allowed, Base64.encodeToString( bits ) ) )
+                       .header( "Cache-Control", "no-store" ).build();
+    }
+
+}
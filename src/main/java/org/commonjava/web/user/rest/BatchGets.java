@@ -0,0 +1,95 @@
+package org.commonjava.web.user.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.commonjava.web.user.model.BatchResult;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Bookkeeping shared by the <code>batch-get</code> endpoints: de-duplicating the requested names and working out
+ * which of them weren't found.
+ */
+final class BatchGets
+{
+
+    static final int MAX_NAMES = 1000;
+
+    private BatchGets()
+    {
+    }
+
+    /**
+     * @return the distinct non-null names, in request order
+     */
+    static Set<String> distinct( final Iterable<String> names )
+    {
+        final Set<String> result = new LinkedHashSet<String>();
+        if ( names != null )
+        {
+            for ( final String name : names )
+            {
+                if ( name != null )
+                {
+                    result.add( name );
+                }
+            }
+        }
+
+        return result;
+    }
+
+    static BatchResult<User> ofUsers( final Set<String> requested, final List<User> found )
+    {
+        final Set<String> names = new HashSet<String>();
+        for ( final User user : found )
+        {
+            names.add( user.getUsername() );
+        }
+
+        return new BatchResult<User>( found, missing( requested, names ) );
+    }
+
+    static BatchResult<Role> ofRoles( final Set<String> requested, final List<Role> found )
+    {
+        final Set<String> names = new HashSet<String>();
+        for ( final Role role : found )
+        {
+            names.add( role.getName() );
+        }
+
+        return new BatchResult<Role>( found, missing( requested, names ) );
+    }
+
+    static BatchResult<Permission> ofPermissions( final Set<String> requested, final List<Permission> found )
+    {
+        final Set<String> names = new HashSet<String>();
+        for ( final Permission permission : found )
+        {
+            names.add( permission.getName() );
+        }
+
+        return new BatchResult<Permission>( found, missing( requested, names ) );
+    }
+
+    private static List<String> missing( final Set<String> requested, final Collection<String> found )
+    {
+        final List<String> missing = new ArrayList<String>();
+        for ( final String name : requested )
+        {
+            if ( !found.contains( name ) )
+            {
+                missing.add( name );
+            }
+        }
+
+        return missing;
+    }
+
+}
@@ -0,0 +1,134 @@
+package org.commonjava.web.user.rest;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.commonjava.web.user.data.OverloadException;
+import org.commonjava.web.user.data.UserDataException;
+
+/**
+ * A bounded number of concurrent executions, with a bounded number of callers allowed to wait for one, reserved for
+ * one class of data-layer work. When both are used up, new work is refused immediately with an
+ * {@link OverloadException} instead of waiting, so one class of work cannot take the threads and connections another
+ * class needs.
+ * <p>
+ * Work runs on the caller's own (container-managed) thread. Only the wait for a slot can time out; once work has
+ * started it always runs to completion, so an {@link OverloadException} (and the retry it invites) always means
+ * nothing was done.
+ * </p>
+ * <p>
+ * Since a waiting caller holds its request thread, the wait is meant to be short: long enough to ride out a burst,
+ * not to queue behind slow work. A bulkhead that is still full after <code>timeoutMillis</code> refuses the work.
+ * </p>
+ */
+public final class Bulkhead
+{
+
+    private final String name;
+
+    private final int concurrency;
+
+    private final int queueSize;
+
+    private final long timeoutMillis;
+
+    private final Semaphore permits;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public Bulkhead( final String name, final int concurrency, final int queueSize, final long timeoutMillis )
+    {
+        this.name = name;
+        this.concurrency = concurrency;
+        this.queueSize = queueSize;
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore( concurrency, true );
+    }
+
+    public <T> T execute( final Callable<T> task )
+        throws UserDataException
+    {
+        acquire();
+        try
+        {
+            return task.call();
+        }
+        catch ( final UserDataException e )
+        {
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            throw e;
+        }
+        catch ( final Exception e )
+        {
+            throw new UserDataException( "%s task failed: %s", e, name, e.getMessage() );
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getActiveCount()
+    {
+        return concurrency - permits.availablePermits();
+    }
+
+    public int getQueueDepth()
+    {
+        return waiting.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    private void acquire()
+    {
+        if ( permits.tryAcquire() )
+        {
+            return;
+        }
+
+        if ( waiting.incrementAndGet() > queueSize )
+        {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new OverloadException( "The %s bulkhead is full.", name );
+        }
+
+        try
+        {
+            if ( !permits.tryAcquire( timeoutMillis, TimeUnit.MILLISECONDS ) )
+            {
+                rejected.incrementAndGet();
+                throw new OverloadException( "Timed out waiting for the %s bulkhead.", name );
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+
+            throw new OverloadException( "Interrupted waiting for the %s bulkhead.", name );
+        }
+        finally
+        {
+            waiting.decrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.commonjava.web.user.rest;
+
+import java.util.concurrent.Callable;
+
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
+import org.commonjava.web.user.data.UserDataException;
+
+/**
+ * Separate {@link Bulkhead}s for the three classes of work the REST resources hand to the data layer: single-entity
+ * reads, writes, and bulk listings. Slow admin listings can only ever occupy the small bulk pool, leaving the read
+ * pool (and the authentication path, which does not go through a bulkhead at all) free. Work in the bulk pool also
+ * calls the backend at {@link Priority#LIST}, so the adaptive limiter sheds it before anything else.
+ * <p>
+ * A caller waits at most {@link #TIMEOUT_MILLIS} for a slot, on its own request thread, and is then refused with
+ * <code>503</code>. Waiting longer would let a saturated bulkhead tie up the container's request threads, which is
+ * what the bulkheads are there to prevent.
+ * </p>
+ */
+@Singleton
+public class Bulkheads
+{
+
+    /**
+     * How long a caller may queue for a slot.
+     */
+    public static final long TIMEOUT_MILLIS = 50;
+
+    private final Bulkhead reads = new Bulkhead( "read", 32, 64, TIMEOUT_MILLIS );
+
+    private final Bulkhead writes = new Bulkhead( "write", 8, 32, TIMEOUT_MILLIS );
+
+    private final Bulkhead bulk = new Bulkhead( "bulk", 4, 8, TIMEOUT_MILLIS );
+
+    public <T> T read( final Lookup<T> lookup )
+    {
+        return lookup( reads, Priority.CRUD, lookup );
+    }
+
+    public <T> T bulk( final Lookup<T> lookup )
+    {
+        return lookup( bulk, Priority.LIST, lookup );
+    }
+
+    public <T> T write( final Update<T> update )
+        throws UserDataException
+    {
+        return writes.execute( new Callable<T>()
+        {
+            @Override
+            public T call()
+                throws UserDataException
+            {
+                final Priority previous = Priority.enter( Priority.CRUD );
+                try
+                {
+                    return update.update();
+                }
+                finally
+                {
+                    Priority.restore( previous );
+                }
+            }
+        } );
+    }
+
+    public Bulkhead[] getBulkheads()
+    {
+        return new Bulkhead[] { reads, writes, bulk };
+    }
+
+    private static <T> T lookup( final Bulkhead bulkhead, final Priority priority, final Lookup<T> lookup )
+    {
+        try
+        {
+            return bulkhead.execute( new Callable<T>()
+            {
+                @Override
+                public T call()
+                {
+                    final Priority previous = Priority.enter( priority );
+                    try
+                    {
+                        return lookup.lookup();
+                    }
+                    finally
+                    {
+                        Priority.restore( previous );
+                    }
+                }
+            } );
+        }
+        catch ( final UserDataException e )
+        {
+            // lookups declare no checked exceptions, so this cannot happen.
+            throw new IllegalStateException( e );
+        }
+    }
+
+    public interface Lookup<T>
+    {
+        T lookup();
+    }
+
+    public interface Update<T>
+    {
+        T update()
+            throws UserDataException;
+    }
+
+}
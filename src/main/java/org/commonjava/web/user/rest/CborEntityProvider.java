@@ -0,0 +1,27 @@
+package org.commonjava.web.user.rest;
+
+import java.io.OutputStream;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.ext.Provider;
+
+import org.commonjava.web.user.io.CborWriter;
+import org.commonjava.web.user.io.StructuredWriter;
+
+/**
+ * Writes users, roles, permissions and listings of them as CBOR when the client asks for
+ * <code>application/cbor</code>.
+ */
+@Provider
+@Produces( CborWriter.MEDIA_TYPE )
+public class CborEntityProvider
+    extends StructuredEntityProvider
+{
+
+    @Override
+    protected StructuredWriter newWriter( final OutputStream out )
+    {
+        return new CborWriter( out );
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.commonjava.web.user.rest;
+
+import java.util.List;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.common.model.Listing;
+import org.commonjava.web.user.data.ChangeFeed;
+import org.commonjava.web.user.model.ChangeRecord;
+
+@Path( "/changes" )
+@RequestScoped
+// @RequiresAuthentication
+public class ChangeResource
+{
+
+    public static final String LAST_SEQUENCE_HEADER = "Last-Sequence";
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int MAX_WAIT_SECONDS = 60;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private ChangeFeed changeFeed;
+
+    /**
+     * Long-poll the change log. Returns changes after <code>since</code> immediately if there are any, otherwise
+     * waits up to <code>wait</code> seconds for the next one. Clients resume from the <code>Last-Sequence</code>
+     * header of the previous response. A client that has fallen behind the retained log gets <code>410 Gone</code>
+     * with the sequence it must resynchronize past.
+     */
+    @GET
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Response getChanges( @QueryParam( "since" )
+    @DefaultValue( "0" )
+    final long since, @QueryParam( "limit" )
+    @DefaultValue( "100" )
+    final int limit, @QueryParam( "wait" )
+    @DefaultValue( "0" )
+    final int wait )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final long prunedThrough = changeFeed.getPrunedThrough();
+        if ( since < prunedThrough )
+        {
+            logger.info( "Changes since: %s have been pruned through: %s", since, prunedThrough );
+            return Response.status( Status.GONE ).header( LAST_SEQUENCE_HEADER, prunedThrough ).build();
+        }
+
+        final List<ChangeRecord> changes;
+        try
+        {
+            changes =
+                changeFeed.getChanges( since, Math.min( limit, MAX_PAGE_SIZE ),
+                                       Math.min( wait, MAX_WAIT_SECONDS ) * 1000L );
+        }
+        catch ( final InterruptedException e )
+        {
+            logger.info( "Interrupted while waiting for changes since: %s", since );
+            Thread.currentThread()
+                  .interrupt();
+
+            return Response.status( Status.SERVICE_UNAVAILABLE ).build();
+        }
+
+        final long last = changes.isEmpty() ? since : changes.get( changes.size() - 1 ).getSequence();
+
+        return Response.ok( new Listing<ChangeRecord>( changes ) ).header( LAST_SEQUENCE_HEADER, last ).build();
+    }
+
+}
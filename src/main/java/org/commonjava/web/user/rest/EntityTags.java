@@ -0,0 +1,131 @@
+package org.commonjava.web.user.rest;
+
+import java.util.Collection;
+
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceUtil;
+import javax.ws.rs.core.EntityTag;
+
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Strong entity tags derived from the JPA version columns. A representation includes its nested roles and
+ * permissions, so their versions are folded into the tag as well. Set members are combined order-independently.
+ * Associations that weren't loaded aren't in the representation either, so they're left out rather than loaded.
+ */
+final class EntityTags
+{
+
+    private static final long PRIME = 0x100000001b3L;
+
+    private static final PersistenceUtil PERSISTENCE = Persistence.getPersistenceUtil();
+
+    private EntityTags()
+    {
+    }
+
+    static EntityTag of( final Permission permission )
+    {
+        return tag( hash( permission ) );
+    }
+
+    static EntityTag of( final Role role )
+    {
+        return tag( hash( role ) );
+    }
+
+    static EntityTag of( final User user )
+    {
+        return tag( hash( user ) );
+    }
+
+    static EntityTag ofPermissions( final Collection<Permission> permissions )
+    {
+        long hash = permissions.size();
+        for ( final Permission permission : permissions )
+        {
+            hash = hash * PRIME + hash( permission );
+        }
+
+        return tag( hash );
+    }
+
+    static EntityTag ofRoles( final Collection<Role> roles )
+    {
+        long hash = roles.size();
+        for ( final Role role : roles )
+        {
+            hash = hash * PRIME + hash( role );
+        }
+
+        return tag( hash );
+    }
+
+    static EntityTag ofUsers( final Collection<User> users )
+    {
+        long hash = users.size();
+        for ( final User user : users )
+        {
+            hash = hash * PRIME + hash( user );
+        }
+
+        return tag( hash );
+    }
+
+    static long hash( final Permission permission )
+    {
+        return mix( permission.getId(), permission.getVersion() );
+    }
+
+    static long hash( final Role role )
+    {
+        long hash = mix( role.getId(), role.getVersion() );
+        if ( PERSISTENCE.isLoaded( role, "permissions" ) && role.getPermissions() != null )
+        {
+            long members = 0;
+            for ( final Permission permission : role.getPermissions() )
+            {
+                members += hash( permission );
+            }
+
+            hash = hash * PRIME + members;
+        }
+
+        return hash;
+    }
+
+    static long hash( final User user )
+    {
+        long hash = mix( user.getId(), user.getVersion() );
+        if ( PERSISTENCE.isLoaded( user, "roles" ) && user.getRoles() != null )
+        {
+            long members = 0;
+            for ( final Role role : user.getRoles() )
+            {
+                members += hash( role );
+            }
+
+            hash = hash * PRIME + members;
+        }
+
+        return hash;
+    }
+
+    private static long mix( final int id, final int version )
+    {
+        long hash = ( (long) id << 32 ) | ( version & 0xffffffffL );
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    private static EntityTag tag( final long hash )
+    {
+        return new EntityTag( Long.toHexString( hash ) );
+    }
+
+}
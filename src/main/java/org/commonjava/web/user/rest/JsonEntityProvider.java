@@ -0,0 +1,28 @@
+package org.commonjava.web.user.rest;
+
+import java.io.OutputStream;
+
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+
+import org.commonjava.web.user.io.JsonWriter;
+import org.commonjava.web.user.io.StructuredWriter;
+
+/**
+ * Writes users, roles, permissions and listings of them as JSON with the hand-written serializers, taking
+ * precedence over the container's reflective binding for those types.
+ */
+@Provider
+@Produces( MediaType.APPLICATION_JSON )
+public class JsonEntityProvider
+    extends StructuredEntityProvider
+{
+
+    @Override
+    protected StructuredWriter newWriter( final OutputStream out )
+    {
+        return new JsonWriter( out );
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.commonjava.web.user.rest;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.data.OverloadException;
+
+@Provider
+public class OverloadExceptionMapper
+    implements ExceptionMapper<OverloadException>
+{
+
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Override
+    public Response toResponse( final OverloadException e )
+    {
+        logger.debug( "Shedding request: %s", e.getMessage() );
+
+        return Response.status( Status.SERVICE_UNAVAILABLE )
+                       .header( "Retry-After", RETRY_AFTER_SECONDS )
+                       .header( "Reason", e.getMessage() )
+                       .build();
+    }
+
+}
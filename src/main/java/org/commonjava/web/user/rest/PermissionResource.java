@@ -1,24 +1,39 @@
 package org.commonjava.web.user.rest;
 
+import java.util.List;
+import java.util.Set;
+
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
+import javax.xml.bind.JAXBElement;
 
 import org.commonjava.util.logging.Logger;
 import org.commonjava.web.common.model.Listing;
+import org.commonjava.web.common.model.MappingArray;
 import org.commonjava.web.user.data.UserDataException;
 import org.commonjava.web.user.data.UserDataManager;
+import org.commonjava.web.user.io.CborWriter;
+import org.commonjava.web.user.model.Page;
 import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.rest.Bulkheads.Lookup;
+import org.commonjava.web.user.rest.Bulkheads.Update;
 
 @Path( "/permissions" )
 @RequestScoped
@@ -26,37 +41,126 @@ import org.commonjava.web.user.model.Permission;
 public class PermissionResource
 {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final Logger logger = new Logger( getClass() );
 
     @Inject
     private UserDataManager dataManager;
 
+    @Inject
+    private Bulkheads bulkheads;
+
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private Request request;
+
     @GET
     @Path( "list" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response listPermissions()
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( Permission.NAMESPACE, Permission.ADMIN ) );
+
+        final List<Permission> permissions = bulkheads.bulk( new Lookup<List<Permission>>()
+        {
+            @Override
+            public List<Permission> lookup()
+            {
+                return dataManager.getPermissions();
+            }
+        } );
+        final EntityTag tag = EntityTags.ofPermissions( permissions );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( new Listing<Permission>( permissions ) ).tag( tag ).build();
+    }
+
+    @POST
+    @Path( "batch-get" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response batchGetPermissions( final JAXBElement<MappingArray> element )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( Permission.NAMESPACE, Permission.ADMIN ) );
+
+        final Set<String> names = BatchGets.distinct( element.getValue() );
+        if ( names.size() > BatchGets.MAX_NAMES )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "At most " + BatchGets.MAX_NAMES
+                                                                     + " names per request" ).build();
+        }
+
+        final List<Permission> permissions = bulkheads.bulk( new Lookup<List<Permission>>()
+        {
+            @Override
+            public List<Permission> lookup()
+            {
+                return dataManager.getPermissions( names );
+            }
+        } );
+
+        return Response.ok( BatchGets.ofPermissions( names, permissions ) ).build();
+    }
+
+    @GET
+    @Path( "{name}/holders" )
     @Produces( { MediaType.APPLICATION_JSON } )
-    public Listing<Permission> listPermissions()
+    public Page<String> getHolders( @PathParam( "name" )
+    final String name, @QueryParam( "after" )
+    final String after, @QueryParam( "start" )
+    @DefaultValue( "0" )
+    final int start, @QueryParam( "limit" )
+    @DefaultValue( "100" )
+    final int limit )
     {
         // FIXME: Un-comment this!!
         // SecurityUtils.getSubject()
         // .checkPermission( Permission.name( Permission.NAMESPACE, Permission.ADMIN ) );
 
-        return new Listing<Permission>( dataManager.getPermissions() );
+        return dataManager.getPermissionHolders( name, after, start, Math.min( limit, MAX_PAGE_SIZE ) );
     }
 
     @GET
     @Path( "{name}" )
-    @Produces( { MediaType.APPLICATION_JSON } )
-    public Permission getPermission( @PathParam( "name" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response getPermission( @PathParam( "name" )
     final String name )
     {
         // FIXME: Un-comment this!!
         // SecurityUtils.getSubject()
         // .checkPermission( Permission.name( Permission.NAMESPACE, Permission.ADMIN ) );
 
-        return dataManager.getPermission( name );
+        final Permission permission = bulkheads.read( new Lookup<Permission>()
+        {
+            @Override
+            public Permission lookup()
+            {
+                return dataManager.getPermission( name );
+            }
+        } );
+        if ( permission == null )
+        {
+            return Response.status( Status.NOT_FOUND ).build();
+        }
+
+        final EntityTag tag = EntityTags.of( permission );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( permission ).tag( tag ).build();
     }
 
     @PUT
@@ -71,7 +175,15 @@ public class PermissionResource
         ResponseBuilder builder;
         try
         {
-            dataManager.createPermission( name, true );
+            bulkheads.write( new Update<Permission>()
+            {
+                @Override
+                public Permission update()
+                    throws UserDataException
+                {
+                    return dataManager.createPermission( name, true );
+                }
+            } );
             builder = Response.created( uriInfo.getAbsolutePathBuilder().build( name ) );
         }
         catch ( final UserDataException e )
@@ -95,7 +207,16 @@ public class PermissionResource
         ResponseBuilder builder;
         try
         {
-            dataManager.deletePermission( name );
+            bulkheads.write( new Update<Void>()
+            {
+                @Override
+                public Void update()
+                    throws UserDataException
+                {
+                    dataManager.deletePermission( name );
+                    return null;
+                }
+            } );
             builder = Response.ok();
         }
         catch ( final UserDataException e )
@@ -1,19 +1,24 @@
 package org.commonjava.web.user.rest;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
@@ -23,10 +28,17 @@ import javax.xml.bind.JAXBElement;
 import org.commonjava.util.logging.Logger;
 import org.commonjava.web.common.model.Listing;
 import org.commonjava.web.common.model.MappingArray;
+import org.commonjava.web.user.data.StaleDataException;
 import org.commonjava.web.user.data.UserDataException;
 import org.commonjava.web.user.data.UserDataManager;
+import org.commonjava.web.user.io.CborWriter;
+import org.commonjava.web.user.io.Projected;
+import org.commonjava.web.user.io.Projection;
+import org.commonjava.web.user.model.Page;
 import org.commonjava.web.user.model.Permission;
 import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.rest.Bulkheads.Lookup;
+import org.commonjava.web.user.rest.Bulkheads.Update;
 
 @Path( "/roles" )
 @RequestScoped
@@ -34,24 +46,80 @@ import org.commonjava.web.user.model.Role;
 public class RoleResource
 {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * What GET /roles/{name} has always returned; pass <code>expand=</code> (empty) for the role alone.
+     */
+    private static final String DEFAULT_EXPAND = "permissions";
+
     private final Logger logger = new Logger( getClass() );
 
     @Inject
     private UserDataManager dataManager;
 
+    @Inject
+    private Bulkheads bulkheads;
+
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private Request request;
+
     @GET
     @Path( "list" )
-    @Produces( { MediaType.APPLICATION_JSON } )
-    public Listing<Role> listRoles()
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response listRoles()
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( Role.NAMESPACE, Permission.ADMIN ) );
+
+        final List<Role> roles = bulkheads.bulk( new Lookup<List<Role>>()
+        {
+            @Override
+            public List<Role> lookup()
+            {
+                return dataManager.getRoles();
+            }
+        } );
+        final EntityTag tag = EntityTags.ofRoles( roles );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( new Listing<Role>( roles ) ).tag( tag ).build();
+    }
+
+    @POST
+    @Path( "batch-get" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response batchGetRoles( final JAXBElement<MappingArray> element )
     {
         // FIXME: Un-comment this!!
         // SecurityUtils.getSubject()
         // .checkPermission( Permission.name( Role.NAMESPACE, Permission.ADMIN ) );
 
-        return new Listing<Role>( dataManager.getRoles() );
+        final Set<String> names = BatchGets.distinct( element.getValue() );
+        if ( names.size() > BatchGets.MAX_NAMES )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "At most " + BatchGets.MAX_NAMES
+                                                                     + " names per request" ).build();
+        }
+
+        final List<Role> roles = bulkheads.bulk( new Lookup<List<Role>>()
+        {
+            @Override
+            public List<Role> lookup()
+            {
+                return dataManager.getRoles( names );
+            }
+        } );
+
+        return Response.ok( BatchGets.ofRoles( names, roles ) ).build();
     }
 
     @POST
@@ -67,34 +135,63 @@ public class RoleResource
 
         ResponseBuilder builder;
 
-        final Role role = dataManager.getRole( name );
+        final Role role = bulkheads.read( new Lookup<Role>()
+        {
+            @Override
+            public Role lookup()
+            {
+                return dataManager.getRoleForUpdate( name );
+            }
+        } );
         if ( role == null )
         {
             return Response.status( Status.BAD_REQUEST ).header( "Reason", "Invalid role: " + name ).build();
         }
 
-        final Set<Permission> rolePermissions = new HashSet<Permission>();
-        for ( final String permName : permissionNames )
+        final ResponseBuilder failed = request.evaluatePreconditions( EntityTags.of( role ) );
+        if ( failed != null )
+        {
+            return failed.build();
+        }
+
+        final Set<String> names = BatchGets.distinct( permissionNames );
+        final List<Permission> found = bulkheads.read( new Lookup<List<Permission>>()
         {
-            final Permission perm = dataManager.getPermission( permName );
-            if ( perm == null )
+            @Override
+            public List<Permission> lookup()
             {
-                return Response.status( Status.BAD_REQUEST ).header( "Reason",
-                                                                     "Invalid permission: "
-                                                                         + permName ).build();
+                return dataManager.getPermissions( names );
             }
+        } );
 
-            rolePermissions.add( perm );
+        final List<String> missing = BatchGets.ofPermissions( names, found ).getMissing();
+        if ( !missing.isEmpty() )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "Invalid permission: " + missing.get( 0 ) )
+                           .build();
         }
 
-        role.setPermissions( rolePermissions );
+        role.setPermissions( new HashSet<Permission>( found ) );
 
         try
         {
-            dataManager.updateRole( role, true );
+            bulkheads.write( new Update<Role>()
+            {
+                @Override
+                public Role update()
+                    throws UserDataException
+                {
+                    return dataManager.updateRole( role, role.getVersion(), true );
+                }
+            } );
             builder =
                 Response.ok().contentLocation( uriInfo.getAbsolutePathBuilder().build( name ) );
         }
+        catch ( final StaleDataException e )
+        {
+            logger.info( "Rejected stale update of role: %s. Reason: %s", name, e.getMessage() );
+            builder = Response.status( Status.PRECONDITION_FAILED );
+        }
         catch ( final UserDataException e )
         {
             logger.error( "Failed to update role: %s with permissions: %s. Reason: %s", e, name,
@@ -105,17 +202,90 @@ public class RoleResource
         return builder.build();
     }
 
+    @GET
+    @Path( "{name}/users" )
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Page<String> getMembers( @PathParam( "name" )
+    final String name, @QueryParam( "after" )
+    final String after, @QueryParam( "start" )
+    @DefaultValue( "0" )
+    final int start, @QueryParam( "limit" )
+    @DefaultValue( "100" )
+    final int limit )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( Role.NAMESPACE, Permission.ADMIN ) );
+
+        return dataManager.getRoleMembers( name, after, start, Math.min( limit, MAX_PAGE_SIZE ) );
+    }
+
     @GET
     @Path( "{name}" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response getRole( @PathParam( "name" )
+    final String name, @QueryParam( "fields" )
+    final String fields, @QueryParam( "expand" )
+    @DefaultValue( DEFAULT_EXPAND )
+    final String expand )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( Role.NAMESPACE, Permission.ADMIN ) );
+
+        final Projection projection = Projection.of( fields, expand );
+        final Role role = bulkheads.read( new Lookup<Role>()
+        {
+            @Override
+            public Role lookup()
+            {
+                return dataManager.fetchRole( name, projection.expands( "permissions" ) );
+            }
+        } );
+        if ( role == null )
+        {
+            return Response.status( Status.NOT_FOUND ).build();
+        }
+
+        final EntityTag tag = EntityTags.of( role );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( new Projected<Role>( role, projection ) ).tag( tag ).build();
+    }
+
+    @GET
+    @Path( "{name}/permissions" )
     @Produces( { MediaType.APPLICATION_JSON } )
-    public Role getRole( @PathParam( "name" )
-    final String name )
+    public Response getPermissions( @PathParam( "name" )
+    final String name, @QueryParam( "start" )
+    @DefaultValue( "0" )
+    final int start, @QueryParam( "limit" )
+    @DefaultValue( "100" )
+    final int limit )
     {
         // FIXME: Un-comment this!!
         // SecurityUtils.getSubject()
         // .checkPermission( Permission.name( Role.NAMESPACE, Permission.ADMIN ) );
 
-        return dataManager.getRole( name );
+        final Page<String> page = bulkheads.read( new Lookup<Page<String>>()
+        {
+            @Override
+            public Page<String> lookup()
+            {
+                return dataManager.getRolePermissionNames( name, Math.max( start, 0 ),
+                                                           Math.max( 0, Math.min( limit, MAX_PAGE_SIZE ) ) );
+            }
+        } );
+        if ( page == null )
+        {
+            return Response.status( Status.NOT_FOUND ).build();
+        }
+
+        return Response.ok( page ).build();
     }
 
     @PUT
@@ -130,7 +300,15 @@ public class RoleResource
         ResponseBuilder builder;
         try
         {
-            dataManager.createRole( name, true );
+            bulkheads.write( new Update<Role>()
+            {
+                @Override
+                public Role update()
+                    throws UserDataException
+                {
+                    return dataManager.createRole( name, true );
+                }
+            } );
             builder = Response.created( uriInfo.getAbsolutePathBuilder().build( name ) );
         }
         catch ( final UserDataException e )
@@ -154,7 +332,16 @@ public class RoleResource
         ResponseBuilder builder;
         try
         {
-            dataManager.deleteRole( name );
+            bulkheads.write( new Update<Void>()
+            {
+                @Override
+                public Void update()
+                    throws UserDataException
+                {
+                    dataManager.deleteRole( name );
+                    return null;
+                }
+            } );
             builder = Response.ok();
         }
         catch ( final UserDataException e )
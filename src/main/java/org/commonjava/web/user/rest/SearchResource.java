@@ -0,0 +1,44 @@
+package org.commonjava.web.user.rest;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import org.commonjava.web.user.model.Page;
+import org.commonjava.web.user.search.SearchHit;
+import org.commonjava.web.user.search.SearchIndex;
+
+@Path( "/search" )
+@RequestScoped
+// @RequiresAuthentication
+public class SearchResource
+{
+
+    private static final int MAX_PAGE_SIZE = 200;
+
+    @Inject
+    private SearchIndex searchIndex;
+
+    @GET
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Page<SearchHit> search( @QueryParam( "q" )
+    final String query, @QueryParam( "type" )
+    final String type, @QueryParam( "start" )
+    @DefaultValue( "0" )
+    final int start, @QueryParam( "limit" )
+    @DefaultValue( "20" )
+    final int limit )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        return searchIndex.search( query, type, start, Math.min( limit, MAX_PAGE_SIZE ) );
+    }
+
+}
@@ -0,0 +1,78 @@
+package org.commonjava.web.user.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.commonjava.web.user.data.ShardMap;
+import org.commonjava.web.user.data.ShardRebalancer;
+
+/**
+ * Shard membership of the sharded backend, and the rebalance that moves users onto a newly added shard.
+ */
+@Path( "/shards" )
+@RequestScoped
+// @RequiresAuthentication
+public class ShardResource
+{
+
+    @Inject
+    private ShardMap shards;
+
+    @Inject
+    private ShardRebalancer rebalancer;
+
+    @GET
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Map<String, Object> getShards()
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final List<String> datasources = new ArrayList<String>( shards.size() );
+        for ( int shard = 0; shard < shards.size(); shard++ )
+        {
+            datasources.add( shards.getName( shard ) );
+        }
+
+        final Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put( "shards", datasources );
+        status.put( "settled", shards.getSettled() );
+        status.put( "rebalancing", shards.isRebalancing() );
+        status.put( "running", rebalancer.isRunning() );
+        status.put( "moved", rebalancer.getMovedCount() );
+        status.put( "failed", rebalancer.getFailedCount() );
+
+        return status;
+    }
+
+    @POST
+    @Path( "rebalance" )
+    public Response rebalance()
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        if ( rebalancer.start() )
+        {
+            return Response.status( Status.ACCEPTED ).build();
+        }
+
+        final String reason = rebalancer.isRunning() ? "A rebalance is already running" : "All users are settled";
+        return Response.status( Status.CONFLICT ).header( "Reason", reason ).build();
+    }
+
+}
@@ -0,0 +1,122 @@
+package org.commonjava.web.user.rest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.commonjava.web.user.data.AdaptiveLimiter;
+import org.commonjava.web.user.data.EffectivePermissionsCache;
+import org.commonjava.web.user.data.EntityCache;
+import org.commonjava.web.user.data.RefreshAheadCache;
+import org.commonjava.web.user.data.ReplicaRouter;
+import org.commonjava.web.user.data.SingleFlight;
+import org.commonjava.web.user.data.UserDataManager;
+import org.commonjava.web.user.shiro.OffHeapAuthorizationStore;
+
+/**
+ * Point-in-time counters from the load-management layers: single-flight lookups, lookup caches, the backend
+ * concurrency limiter, replica routing, and the resource bulkheads.
+ */
+@Path( "/stats" )
+@RequestScoped
+// @RequiresAuthentication
+public class StatsResource
+{
+
+    @Inject
+    private UserDataManager dataManager;
+
+    @Inject
+    private EntityCache entityCache;
+
+    @Inject
+    private EffectivePermissionsCache effectivePermissions;
+
+    @Inject
+    private OffHeapAuthorizationStore offHeap;
+
+    @Inject
+    private AdaptiveLimiter limiter;
+
+    @Inject
+    private ReplicaRouter replicas;
+
+    @Inject
+    private Bulkheads bulkheads;
+
+    @GET
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Map<String, Map<String, Number>> getStats()
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final Map<String, Map<String, Number>> stats = new LinkedHashMap<String, Map<String, Number>>();
+        for ( final SingleFlight<?> flight : dataManager.getLookupStats() )
+        {
+            final Map<String, Number> values = new LinkedHashMap<String, Number>();
+            values.put( "loads", flight.getLoadCount() );
+            values.put( "saved", flight.getJoinedCount() );
+            values.put( "inFlight", flight.getInFlightCount() );
+            stats.put( "lookup." + flight.getName(), values );
+        }
+
+        for ( final RefreshAheadCache<?> cache : entityCache.getCaches() )
+        {
+            stats.put( "cache." + cache.getName(), cacheStats( cache ) );
+        }
+        stats.put( "cache.authorization", cacheStats( effectivePermissions.getCache() ) );
+
+        if ( offHeap.isEnabled() )
+        {
+            final Map<String, Number> values = new LinkedHashMap<String, Number>();
+            values.put( "capacity", offHeap.getCapacity() );
+            values.put( "hits", offHeap.getHitCount() );
+            values.put( "misses", offHeap.getMissCount() );
+            stats.put( "authorization.offHeap", values );
+        }
+
+        final Map<String, Number> limits = new LinkedHashMap<String, Number>();
+        limits.put( "limit", limiter.getLimit() );
+        limits.put( "inFlight", limiter.getInFlight() );
+        limits.put( "shed", limiter.getShedCount() );
+        stats.put( "backend", limits );
+
+        if ( replicas.isEnabled() )
+        {
+            final Map<String, Number> values = new LinkedHashMap<String, Number>();
+            values.put( "replicaReads", replicas.getReplicaReadCount() );
+            values.put( "primaryReads", replicas.getPrimaryReadCount() );
+            stats.put( "backend.replicas", values );
+        }
+
+        for ( final Bulkhead bulkhead : bulkheads.getBulkheads() )
+        {
+            final Map<String, Number> values = new LinkedHashMap<String, Number>();
+            values.put( "active", bulkhead.getActiveCount() );
+            values.put( "queued", bulkhead.getQueueDepth() );
+            values.put( "rejected", bulkhead.getRejectedCount() );
+            stats.put( "bulkhead." + bulkhead.getName(), values );
+        }
+
+        return stats;
+    }
+
+    private Map<String, Number> cacheStats( final RefreshAheadCache<?> cache )
+    {
+        final Map<String, Number> values = new LinkedHashMap<String, Number>();
+        values.put( "size", cache.size() );
+        values.put( "refreshes", cache.getRefreshCount() );
+        values.put( "staleServed", cache.getStaleServedCount() );
+        values.put( "evictions", cache.getEvictionCount() );
+        return values;
+    }
+
+}
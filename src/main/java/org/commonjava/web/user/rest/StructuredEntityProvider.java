@@ -0,0 +1,53 @@
+package org.commonjava.web.user.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import org.commonjava.web.user.io.EntityWriters;
+import org.commonjava.web.user.io.StructuredWriter;
+
+/**
+ * Writes users, roles, permissions and listings of them through {@link EntityWriters}, in whichever encoding the
+ * subclass provides.
+ */
+abstract class StructuredEntityProvider
+    implements MessageBodyWriter<Object>
+{
+
+    protected abstract StructuredWriter newWriter( OutputStream out );
+
+    @Override
+    public boolean isWriteable( final Class<?> type, final Type genericType, final Annotation[] annotations,
+                                final MediaType mediaType )
+    {
+        return EntityWriters.isSupported( type );
+    }
+
+    @Override
+    public long getSize( final Object t, final Class<?> type, final Type genericType, final Annotation[] annotations,
+                         final MediaType mediaType )
+    {
+        return -1;
+    }
+
+    @Override
+    public void writeTo( final Object t, final Class<?> type, final Type genericType, final Annotation[] annotations,
+                         final MediaType mediaType, final MultivaluedMap<String, Object> httpHeaders,
+                         final OutputStream entityStream )
+        throws IOException
+    {
+        httpHeaders.add( HttpHeaders.VARY, HttpHeaders.ACCEPT );
+
+        final StructuredWriter writer = newWriter( entityStream );
+        EntityWriters.write( writer, t );
+        writer.flush();
+    }
+
+}
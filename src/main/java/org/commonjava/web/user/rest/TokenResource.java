@@ -0,0 +1,111 @@
+package org.commonjava.web.user.rest;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
+import org.commonjava.web.user.data.PasswordManager;
+import org.commonjava.web.user.data.UserDataManager;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.IssuedToken;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.TokenClaims;
+import org.commonjava.web.user.model.User;
+import org.commonjava.web.user.shiro.AccessTokenCodec;
+import org.commonjava.web.user.shiro.LoginThrottle;
+
+/**
+ * Exchanges a username (or email) and password for a signed, expiring access token carrying the user's roles and
+ * effective permissions. Present it as <code>Authorization: Bearer &lt;token&gt;</code>.
+ */
+@Path( "/token" )
+@RequestScoped
+public class TokenResource
+{
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private UserDataManager dataManager;
+
+    @Inject
+    private PasswordManager passwordManager;
+
+    @Inject
+    private LoginThrottle throttle;
+
+    @Inject
+    private AccessTokenCodec tokenCodec;
+
+    @Context
+    private HttpServletRequest servletRequest;
+
+    @POST
+    @Consumes( { MediaType.APPLICATION_FORM_URLENCODED } )
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Response issueToken( @FormParam( "username" )
+    final String login, @FormParam( "password" )
+    final String password )
+    {
+        if ( login == null || password == null )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "username and password are required" )
+                           .build();
+        }
+
+        final String key = Realms.key( Realms.current(), User.normalize( login ) );
+        final String source = servletRequest.getRemoteAddr();
+        if ( throttle.isBlocked( key, source ) )
+        {
+            return Response.status( TOO_MANY_REQUESTS ).header( "Retry-After", 60 ).build();
+        }
+
+        // credential checks run at login priority and bypass the request bulkheads, like ShiroRealm's.
+        final User user;
+        final EffectivePermissions effective;
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
+        {
+            user = dataManager.getUserByLogin( login );
+            if ( user == null || !passwordManager.verifyPassword( user.getPasswordDigest(), password ) )
+            {
+                throttle.recordFailure( key, source );
+                logger.info( "Refused access token for: %s from: %s", login, source );
+                return Response.status( Status.UNAUTHORIZED ).build();
+            }
+
+            throttle.recordSuccess( key );
+
+            effective = dataManager.getEffectivePermissions( user.getUsername() );
+        }
+        finally
+        {
+            Priority.restore( priority );
+        }
+
+        if ( effective == null )
+        {
+            // deleted since we looked it up.
+            return Response.status( Status.UNAUTHORIZED ).build();
+        }
+
+        final TokenClaims claims = tokenCodec.claims( effective, System.currentTimeMillis() / 1000 );
+
+        return Response.ok( new IssuedToken( tokenCodec.encode( claims ), claims.getExpires() ) )
+                       .header( "Cache-Control", "no-store" ).build();
+    }
+
+}
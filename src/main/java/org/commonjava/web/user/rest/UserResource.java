@@ -1,19 +1,24 @@
 package org.commonjava.web.user.rest;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
@@ -23,10 +28,19 @@ import javax.xml.bind.JAXBElement;
 import org.commonjava.util.logging.Logger;
 import org.commonjava.web.common.model.Listing;
 import org.commonjava.web.common.model.MappingArray;
+import org.commonjava.web.user.data.StaleDataException;
 import org.commonjava.web.user.data.UserDataException;
 import org.commonjava.web.user.data.UserDataManager;
+import org.commonjava.web.user.io.CborWriter;
+import org.commonjava.web.user.io.Projected;
+import org.commonjava.web.user.io.Projection;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Page;
 import org.commonjava.web.user.model.Role;
 import org.commonjava.web.user.model.User;
+import org.commonjava.web.user.model.UserSummary;
+import org.commonjava.web.user.rest.Bulkheads.Lookup;
+import org.commonjava.web.user.rest.Bulkheads.Update;
 
 @Path( "/users" )
 @RequestScoped
@@ -34,37 +48,200 @@ import org.commonjava.web.user.model.User;
 public class UserResource
 {
 
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * What GET /users/{name} has always returned; pass <code>expand=</code> (empty) for the user alone.
+     */
+    private static final String DEFAULT_EXPAND = "roles,roles.permissions";
+
     private final Logger logger = new Logger( getClass() );
 
     @Inject
     private UserDataManager dataManager;
 
+    @Inject
+    private Bulkheads bulkheads;
+
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private Request request;
+
     @GET
     @Path( "list" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response listUsers()
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final List<User> users = bulkheads.bulk( new Lookup<List<User>>()
+        {
+            @Override
+            public List<User> lookup()
+            {
+                return dataManager.getUsers();
+            }
+        } );
+        final EntityTag tag = EntityTags.ofUsers( users );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( new Listing<User>( users ) ).tag( tag ).build();
+    }
+
+    @POST
+    @Path( "batch-get" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response batchGetUsers( final JAXBElement<MappingArray> element )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final Set<String> names = BatchGets.distinct( element.getValue() );
+        if ( names.size() > BatchGets.MAX_NAMES )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "At most " + BatchGets.MAX_NAMES
+                                                                     + " names per request" ).build();
+        }
+
+        final List<User> users = bulkheads.bulk( new Lookup<List<User>>()
+        {
+            @Override
+            public List<User> lookup()
+            {
+                return dataManager.getUsers( names );
+            }
+        } );
+
+        return Response.ok( BatchGets.ofUsers( names, users ) ).build();
+    }
+
+    @GET
+    @Path( "search" )
     @Produces( { MediaType.APPLICATION_JSON } )
-    public Listing<User> listUsers()
+    public Listing<UserSummary> searchUsers( @QueryParam( "prefix" )
+    final String prefix, @QueryParam( "limit" )
+    @DefaultValue( "10" )
+    final int limit )
     {
         // FIXME: Un-comment this!!
         // SecurityUtils.getSubject()
         // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
 
-        return new Listing<User>( dataManager.getUsers() );
+        return new Listing<UserSummary>( dataManager.searchUsers( prefix, Math.min( limit, MAX_SEARCH_RESULTS ) ) );
     }
 
     @GET
     @Path( "{name}" )
+    @Produces( { MediaType.APPLICATION_JSON, CborWriter.MEDIA_TYPE } )
+    public Response getUser( @PathParam( "name" )
+    final String name, @QueryParam( "fields" )
+    final String fields, @QueryParam( "expand" )
+    @DefaultValue( DEFAULT_EXPAND )
+    final String expand )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final Projection projection = Projection.of( fields, expand );
+        final User user = bulkheads.read( new Lookup<User>()
+        {
+            @Override
+            public User lookup()
+            {
+                return dataManager.fetchUser( name, projection.expands( "roles" ),
+                                              projection.nested( "roles" ).expands( "permissions" ) );
+            }
+        } );
+        if ( user == null )
+        {
+            return Response.status( Status.NOT_FOUND ).build();
+        }
+
+        final EntityTag tag = EntityTags.of( user );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( new Projected<User>( user, projection ) ).tag( tag ).build();
+    }
+
+    @GET
+    @Path( "{name}/roles" )
+    @Produces( { MediaType.APPLICATION_JSON } )
+    public Response getRoles( @PathParam( "name" )
+    final String name, @QueryParam( "start" )
+    @DefaultValue( "0" )
+    final int start, @QueryParam( "limit" )
+    @DefaultValue( "100" )
+    final int limit )
+    {
+        // FIXME: Un-comment this!!
+        // SecurityUtils.getSubject()
+        // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
+
+        final Page<String> page = bulkheads.read( new Lookup<Page<String>>()
+        {
+            @Override
+            public Page<String> lookup()
+            {
+                return dataManager.getUserRoleNames( name, Math.max( start, 0 ),
+                                                     Math.max( 0, Math.min( limit, MAX_PAGE_SIZE ) ) );
+            }
+        } );
+        if ( page == null )
+        {
+            return Response.status( Status.NOT_FOUND ).build();
+        }
+
+        return Response.ok( page ).build();
+    }
+
+    @GET
+    @Path( "{name}/effective-permissions" )
     @Produces( { MediaType.APPLICATION_JSON } )
-    public User getUser( @PathParam( "name" )
+    public Response getEffectivePermissions( @PathParam( "name" )
     final String name )
     {
         // FIXME: Un-comment this!!
         // SecurityUtils.getSubject()
         // .checkPermission( Permission.name( User.NAMESPACE, Permission.ADMIN ) );
 
-        return dataManager.getUser( name );
+        final EffectivePermissions perms =
+            bulkheads.read( new Lookup<EffectivePermissions>()
+            {
+                @Override
+                public EffectivePermissions lookup()
+                {
+                    return dataManager.getEffectivePermissions( name );
+                }
+            } );
+        if ( perms == null )
+        {
+            return Response.status( Status.NOT_FOUND ).build();
+        }
+
+        final EntityTag tag = new EntityTag( perms.getVersion() );
+        final ResponseBuilder notModified = request.evaluatePreconditions( tag );
+        if ( notModified != null )
+        {
+            return notModified.build();
+        }
+
+        return Response.ok( perms ).tag( tag ).build();
     }
 
     @PUT
@@ -83,7 +260,15 @@ public class UserResource
         ResponseBuilder builder;
         try
         {
-            dataManager.createUser( user, true );
+            bulkheads.write( new Update<User>()
+            {
+                @Override
+                public User update()
+                    throws UserDataException
+                {
+                    return dataManager.createUser( user, true );
+                }
+            } );
             builder = Response.created( uriInfo.getAbsolutePathBuilder().build( name ) );
         }
         catch ( final UserDataException e )
@@ -108,33 +293,63 @@ public class UserResource
 
         ResponseBuilder builder;
 
-        final User user = dataManager.getUser( name );
+        final User user = bulkheads.read( new Lookup<User>()
+        {
+            @Override
+            public User lookup()
+            {
+                return dataManager.getUserForUpdate( name );
+            }
+        } );
         if ( user == null )
         {
             return Response.status( Status.BAD_REQUEST ).header( "Reason", "Invalid user: " + name ).build();
         }
 
-        final Set<Role> userRoles = new HashSet<Role>();
-        for ( final String roleName : roleNames )
+        final ResponseBuilder failed = request.evaluatePreconditions( EntityTags.of( user ) );
+        if ( failed != null )
         {
-            final Role role = dataManager.getRole( roleName );
-            if ( role == null )
+            return failed.build();
+        }
+
+        final Set<String> names = BatchGets.distinct( roleNames );
+        final List<Role> found = bulkheads.read( new Lookup<List<Role>>()
+        {
+            @Override
+            public List<Role> lookup()
             {
-                return Response.status( Status.BAD_REQUEST ).header( "Reason",
-                                                                     "Invalid role: " + roleName ).build();
+                return dataManager.getRoles( names );
             }
+        } );
 
-            userRoles.add( role );
+        final List<String> missing = BatchGets.ofRoles( names, found ).getMissing();
+        if ( !missing.isEmpty() )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "Invalid role: " + missing.get( 0 ) )
+                           .build();
         }
 
-        user.setRoles( userRoles );
+        user.setRoles( new HashSet<Role>( found ) );
 
         try
         {
-            dataManager.updateUser( user, true );
+            bulkheads.write( new Update<User>()
+            {
+                @Override
+                public User update()
+                    throws UserDataException
+                {
+                    return dataManager.updateUser( user, user.getVersion(), true );
+                }
+            } );
             builder =
                 Response.ok().contentLocation( uriInfo.getAbsolutePathBuilder().build( name ) );
         }
+        catch ( final StaleDataException e )
+        {
+            logger.info( "Rejected stale update of user: %s. Reason: %s", name, e.getMessage() );
+            builder = Response.status( Status.PRECONDITION_FAILED );
+        }
         catch ( final UserDataException e )
         {
             logger.error( "Failed to update user: %s with roles: %s. Reason: %s", e, name,
@@ -158,13 +373,45 @@ public class UserResource
         final User user = element.getValue();
         user.setUsername( name );
 
+        final User existing = bulkheads.read( new Lookup<User>()
+        {
+            @Override
+            public User lookup()
+            {
+                return dataManager.getUserForUpdate( name );
+            }
+        } );
+        if ( existing == null )
+        {
+            return Response.status( Status.BAD_REQUEST ).header( "Reason", "Invalid user: " + name ).build();
+        }
+
+        final ResponseBuilder failed = request.evaluatePreconditions( EntityTags.of( existing ) );
+        if ( failed != null )
+        {
+            return failed.build();
+        }
+
         ResponseBuilder builder;
         try
         {
-            dataManager.updateUser( user, true );
+            bulkheads.write( new Update<User>()
+            {
+                @Override
+                public User update()
+                    throws UserDataException
+                {
+                    return dataManager.updateUser( user, existing.getVersion(), true );
+                }
+            } );
             builder =
                 Response.ok().contentLocation( uriInfo.getAbsolutePathBuilder().build( name ) );
         }
+        catch ( final StaleDataException e )
+        {
+            logger.info( "Rejected stale update of user: %s. Reason: %s", name, e.getMessage() );
+            builder = Response.status( Status.PRECONDITION_FAILED );
+        }
         catch ( final UserDataException e )
         {
             logger.error( "Failed to create user: %s. Reason: %s", e, name, e.getMessage() );
@@ -186,7 +433,16 @@ public class UserResource
         ResponseBuilder builder;
         try
         {
-            dataManager.deleteUser( name );
+            bulkheads.write( new Update<Void>()
+            {
+                @Override
+                public Void update()
+                    throws UserDataException
+                {
+                    dataManager.deleteUser( name );
+                    return null;
+                }
+            } );
             builder = Response.ok();
         }
         catch ( final UserDataException e )
@@ -197,4 +453,5 @@ public class UserResource
 
         return builder.build();
     }
+
 }
@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Term-to-document posting lists with per-term weights. Documents are replaced wholesale on update, using the
+ * document's own term map to retract its old postings. Scoring is a weighted TF-IDF sum, scaled by the fraction
+ * of query tokens the document matched.
+ */
+final class InvertedIndex
+{
+
+    private static final float FRAGMENT_WEIGHT = 0.4f;
+
+    private final Map<String, Map<String, Float>> postings = new HashMap<String, Map<String, Float>>();
+
+    private final Map<String, Document> documents = new HashMap<String, Document>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    void index( final Document doc )
+    {
+        lock.writeLock()
+            .lock();
+        try
+        {
+            removeDocument( doc.id );
+
+            documents.put( doc.id, doc );
+            for ( final Map.Entry<String, Float> term : doc.terms.entrySet() )
+            {
+                Map<String, Float> posting = postings.get( term.getKey() );
+                if ( posting == null )
+                {
+                    posting = new HashMap<String, Float>();
+                    postings.put( term.getKey(), posting );
+                }
+
+                posting.put( doc.id, term.getValue() );
+            }
+        }
+        finally
+        {
+            lock.writeLock()
+                .unlock();
+        }
+    }
+
+    void remove( final String id )
+    {
+        lock.writeLock()
+            .lock();
+        try
+        {
+            removeDocument( id );
+        }
+        finally
+        {
+            lock.writeLock()
+                .unlock();
+        }
+    }
+
+    /**
+     * Score every document containing at least one of the query tokens, optionally restricted to one document
+     * type, and return the hits in descending score order.
+     */
+    List<SearchHit> query( final Set<String> tokens, final String type )
+    {
+        if ( tokens.isEmpty() )
+        {
+            return Collections.emptyList();
+        }
+
+        final Map<String, float[]> scores = new HashMap<String, float[]>();
+
+        lock.readLock()
+            .lock();
+        try
+        {
+            final int docCount = documents.size();
+            for ( final String token : tokens )
+            {
+                final Map<String, Float> posting = postings.get( token );
+                if ( posting == null )
+                {
+                    continue;
+                }
+
+                final float idf = (float) Math.log( 1 + (double) docCount / posting.size() );
+                for ( final Map.Entry<String, Float> entry : posting.entrySet() )
+                {
+                    final Document doc = documents.get( entry.getKey() );
+                    if ( type != null && !type.equals( doc.type ) )
+                    {
+                        continue;
+                    }
+
+                    float[] score = scores.get( doc.id );
+                    if ( score == null )
+                    {
+                        score = new float[2];
+                        scores.put( doc.id, score );
+                    }
+
+                    score[0] += entry.getValue() * idf;
+                    score[1]++;
+                }
+            }
+
+            final List<SearchHit> hits = new ArrayList<SearchHit>( scores.size() );
+            for ( final Map.Entry<String, float[]> entry : scores.entrySet() )
+            {
+                final Document doc = documents.get( entry.getKey() );
+                final float[] score = entry.getValue();
+
+                hits.add( new SearchHit( doc.type, doc.name, doc.label, score[0] * score[1] / tokens.size() ) );
+            }
+
+            Collections.sort( hits, HIT_ORDER );
+            return hits;
+        }
+        finally
+        {
+            lock.readLock()
+                .unlock();
+        }
+    }
+
+    int size()
+    {
+        lock.readLock()
+            .lock();
+        try
+        {
+            return documents.size();
+        }
+        finally
+        {
+            lock.readLock()
+                .unlock();
+        }
+    }
+
+    private void removeDocument( final String id )
+    {
+        final Document old = documents.remove( id );
+        if ( old == null )
+        {
+            return;
+        }
+
+        for ( final String term : old.terms.keySet() )
+        {
+            final Map<String, Float> posting = postings.get( term );
+            if ( posting != null )
+            {
+                posting.remove( id );
+                if ( posting.isEmpty() )
+                {
+                    postings.remove( term );
+                }
+            }
+        }
+    }
+
+    private static final Comparator<SearchHit> HIT_ORDER = new Comparator<SearchHit>()
+    {
+        @Override
+        public int compare( final SearchHit first, final SearchHit second )
+        {
+            final int comp = Float.compare( second.getScore(), first.getScore() );
+            if ( comp != 0 )
+            {
+                return comp;
+            }
+
+            return first.getName()
+                        .compareTo( second.getName() );
+        }
+    };
+
+    /**
+     * An indexed entity, identified by type and name, with the weighted terms extracted from its fields.
+     */
+    static final class Document
+    {
+        private final String id;
+
+        private final String type;
+
+        private final String name;
+
+        private final String label;
+
+        private final Map<String, Float> terms = new HashMap<String, Float>();
+
+        Document( final String type, final String name, final String label )
+        {
+            this.id = type + ":" + name;
+            this.type = type;
+            this.name = name;
+            this.label = label;
+        }
+
+        String getId()
+        {
+            return id;
+        }
+
+        Document field( final String value, final float weight )
+        {
+            for ( final String token : Tokenizer.tokenize( value ) )
+            {
+                addTerm( token, weight );
+                for ( final String fragment : Tokenizer.fragments( token ) )
+                {
+                    addTerm( fragment, weight * FRAGMENT_WEIGHT );
+                }
+            }
+
+            return this;
+        }
+
+        private void addTerm( final String term, final float weight )
+        {
+            final Float existing = terms.get( term );
+            if ( existing == null || existing < weight )
+            {
+                terms.put( term, weight );
+            }
+        }
+    }
+
+}
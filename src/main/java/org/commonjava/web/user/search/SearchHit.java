@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.search;
+
+/**
+ * A single ranked match from the {@link SearchIndex}.
+ */
+public final class SearchHit
+{
+
+    private final String type;
+
+    private final String name;
+
+    private final String label;
+
+    private final float score;
+
+    public SearchHit( final String type, final String name, final String label, final float score )
+    {
+        this.type = type;
+        this.name = name;
+        this.label = label;
+        this.score = score;
+    }
+
+    public String getType()
+    {
+        return type;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getLabel()
+    {
+        return label;
+    }
+
+    public float getScore()
+    {
+        return score;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format( "SearchHit [%s:%s, score=%s]", type, name, score );
+    }
+
+}
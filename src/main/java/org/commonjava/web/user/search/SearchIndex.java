@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.search;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.event.Observes;
+import javax.inject.Singleton;
+
+import org.commonjava.web.user.data.Deleted;
+import org.commonjava.web.user.data.Saved;
+import org.commonjava.web.user.model.Page;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * In-process full-text index over users, roles and permissions. It is kept current by observing the
+ * {@link Saved} and {@link Deleted} events fired by the data backend, so queries never reach the database. Each
+ * realm gets its own index, so term statistics and results never mix tenants.
+ */
+@Singleton
+public class SearchIndex
+{
+
+    public static final String USER_TYPE = "user";
+
+    public static final String ROLE_TYPE = "role";
+
+    public static final String PERMISSION_TYPE = "permission";
+
+    private final ConcurrentMap<String, InvertedIndex> indexes = new ConcurrentHashMap<String, InvertedIndex>();
+
+    public void onUserSaved( @Observes @Saved final User user )
+    {
+        index( user.getRealm() ).index( document( user ) );
+    }
+
+    public void onUserDeleted( @Observes @Deleted final User user )
+    {
+        index( user.getRealm() ).remove( document( user ).getId() );
+    }
+
+    public void onRoleSaved( @Observes @Saved final Role role )
+    {
+        index( role.getRealm() ).index( document( role ) );
+    }
+
+    public void onRoleDeleted( @Observes @Deleted final Role role )
+    {
+        index( role.getRealm() ).remove( document( role ).getId() );
+    }
+
+    public void onPermissionSaved( @Observes @Saved final Permission permission )
+    {
+        index( permission.getRealm() ).index( document( permission ) );
+    }
+
+    public void onPermissionDeleted( @Observes @Deleted final Permission permission )
+    {
+        index( permission.getRealm() ).remove( document( permission ).getId() );
+    }
+
+    /**
+     * Replace the index of the given realm; the entities are expected to belong to it. The new index is built aside
+     * and swapped in whole, so searches meanwhile see the old one rather than a partial one.
+     */
+    public void rebuild( final String realm, final Collection<User> users, final Collection<Role> roles,
+                         final Collection<Permission> permissions )
+    {
+        final InvertedIndex index = new InvertedIndex();
+        for ( final User user : users )
+        {
+            index.index( document( user ) );
+        }
+
+        for ( final Role role : roles )
+        {
+            index.index( document( role ) );
+        }
+
+        for ( final Permission permission : permissions )
+        {
+            index.index( document( permission ) );
+        }
+
+        indexes.put( realm, index );
+    }
+
+    /**
+     * Run a ranked query, optionally restricted to one of {@link #USER_TYPE}, {@link #ROLE_TYPE} or
+     * {@link #PERMISSION_TYPE}, against the current realm and return the requested page of hits.
+     */
+    public Page<SearchHit> search( final String query, final String type, final int start, final int limit )
+    {
+        final InvertedIndex index = indexes.get( Realms.current() );
+        if ( index == null )
+        {
+            return new Page<SearchHit>( start, 0, Collections.<SearchHit> emptyList() );
+        }
+
+        final List<SearchHit> hits = index.query( Tokenizer.tokenize( query ), type );
+
+        final int from = Math.max( 0, Math.min( start, hits.size() ) );
+        final int to = Math.max( from, Math.min( from + limit, hits.size() ) );
+        if ( from == to )
+        {
+            return new Page<SearchHit>( start, hits.size(), Collections.<SearchHit> emptyList() );
+        }
+
+        return new Page<SearchHit>( start, hits.size(), hits.subList( from, to ) );
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for ( final InvertedIndex index : indexes.values() )
+        {
+            size += index.size();
+        }
+
+        return size;
+    }
+
+    private InvertedIndex index( final String realm )
+    {
+        InvertedIndex index = indexes.get( realm );
+        if ( index == null )
+        {
+            final InvertedIndex created = new InvertedIndex();
+            index = indexes.putIfAbsent( realm, created );
+            if ( index == null )
+            {
+                index = created;
+            }
+        }
+
+        return index;
+    }
+
+    private static InvertedIndex.Document document( final User user )
+    {
+        final InvertedIndex.Document doc =
+            new InvertedIndex.Document( USER_TYPE, user.getUsername(), user.getFirstName() + " "
+                + user.getLastName() );
+
+        doc.field( user.getUsername(), 3f )
+           .field( user.getFirstName(), 2f )
+           .field( user.getLastName(), 2f )
+           .field( user.getEmail(), 1f );
+
+        if ( user.getRoles() != null )
+        {
+            for ( final Role role : user.getRoles() )
+            {
+                doc.field( role.getName(), 0.5f );
+            }
+        }
+
+        return doc;
+    }
+
+    private static InvertedIndex.Document document( final Role role )
+    {
+        final InvertedIndex.Document doc = new InvertedIndex.Document( ROLE_TYPE, role.getName(), role.getName() );
+        doc.field( role.getName(), 3f );
+
+        if ( role.getPermissions() != null )
+        {
+            for ( final Permission permission : role.getPermissions() )
+            {
+                doc.field( permission.getName(), 0.5f );
+            }
+        }
+
+        return doc;
+    }
+
+    private static InvertedIndex.Document document( final Permission permission )
+    {
+        final InvertedIndex.Document doc =
+            new InvertedIndex.Document( PERMISSION_TYPE, permission.getName(), permission.getName() );
+
+        return doc.field( permission.getName(), 3f );
+    }
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.search;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits field values into lower-case tokens on any character that is not a letter or digit. Email addresses also
+ * yield their full domain as a single token, so <code>example.com</code> matches every user at that domain.
+ */
+public final class Tokenizer
+{
+
+    public static final int MIN_FRAGMENT_LENGTH = 2;
+
+    private Tokenizer()
+    {
+    }
+
+    public static Set<String> tokenize( final String value )
+    {
+        final Set<String> tokens = new LinkedHashSet<String>();
+        if ( value == null )
+        {
+            return tokens;
+        }
+
+        final String lower = value.toLowerCase( Locale.ENGLISH );
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < lower.length(); i++ )
+        {
+            final char c = lower.charAt( i );
+            if ( Character.isLetterOrDigit( c ) )
+            {
+                sb.append( c );
+            }
+            else if ( sb.length() > 0 )
+            {
+                tokens.add( sb.toString() );
+                sb.setLength( 0 );
+            }
+        }
+
+        if ( sb.length() > 0 )
+        {
+            tokens.add( sb.toString() );
+        }
+
+        final int at = lower.lastIndexOf( '@' );
+        if ( at > -1 && at < lower.length() - 1 )
+        {
+            tokens.add( lower.substring( at + 1 )
+                             .trim() );
+        }
+
+        return tokens;
+    }
+
+    /**
+     * Leading fragments of a token (<code>vel</code>, <code>vela</code>, ...) that are indexed alongside the token
+     * itself so partial words still match, without falling back to substring scans.
+     */
+    public static Set<String> fragments( final String token )
+    {
+        final Set<String> fragments = new LinkedHashSet<String>();
+        for ( int len = MIN_FRAGMENT_LENGTH; len < token.length(); len++ )
+        {
+            fragments.add( token.substring( 0, len ) );
+        }
+
+        return fragments;
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.commonjava.web.user.shiro;
+
+import org.apache.shiro.authc.AuthenticationToken;
+
+/**
+ * A signed access token presented in place of a username and password; see {@link AccessTokenCodec}.
+ */
+public class AccessToken
+    implements AuthenticationToken
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    private final String token;
+
+    public AccessToken( final String token )
+    {
+        this.token = token;
+    }
+
+    /**
+     * @return the token carried by an <code>Authorization: Bearer ...</code> header value, or null if the header is
+     *         missing or uses another scheme
+     */
+    public static AccessToken fromAuthorizationHeader( final String header )
+    {
+        if ( header == null || !header.regionMatches( true, 0, BEARER_PREFIX, 0, BEARER_PREFIX.length() ) )
+        {
+            return null;
+        }
+
+        return new AccessToken( header.substring( BEARER_PREFIX.length() ).trim() );
+    }
+
+    @Override
+    public Object getPrincipal()
+    {
+        return token;
+    }
+
+    @Override
+    public Object getCredentials()
+    {
+        return token;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AccessToken";
+    }
+
+}
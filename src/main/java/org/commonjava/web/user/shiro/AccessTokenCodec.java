@@ -0,0 +1,198 @@
+package org.commonjava.web.user.shiro;
+
+import static org.commonjava.web.user.shiro.CompactStrings.UTF8;
+import static org.commonjava.web.user.shiro.CompactStrings.readFrontCoded;
+import static org.commonjava.web.user.shiro.CompactStrings.readString;
+import static org.commonjava.web.user.shiro.CompactStrings.readVarint;
+import static org.commonjava.web.user.shiro.CompactStrings.writeFrontCoded;
+import static org.commonjava.web.user.shiro.CompactStrings.writeString;
+import static org.commonjava.web.user.shiro.CompactStrings.writeStrings;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.shiro.codec.Base64;
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.TokenClaims;
+
+/**
+ * Issues and verifies signed access tokens.
+ * <p>
+ * A token is <code>base64(payload) "." base64(HMAC-SHA256(payload))</code>. The payload is binary: a version byte,
+ * issued and expiry times (seconds, 8 bytes each), the realm, the username, the role names, and the sorted
+ * permission names. Permissions are front-coded: each one is written as the number of leading characters it shares
+ * with the previous one, followed by the rest of it. Permission names share long namespace prefixes, so this keeps tokens small.
+ * Strings are a varint UTF-8 byte length followed by the bytes, and counts are varints. Any service holding the
+ * secret can verify a token and authorize its holder without calling back here.
+ * </p>
+ */
+@Singleton
+public class AccessTokenCodec
+{
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private static final byte VERSION = 2;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    private SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    @PostConstruct
+    public void initialize()
+    {
+        final byte[] secret;
+        if ( config.getTokenSecret() != null && config.getTokenSecret().trim().length() > 0 )
+        {
+            secret = config.getTokenSecret().trim().getBytes( UTF8 );
+        }
+        else
+        {
+            logger.info( "No token.secret configured; access tokens will only be valid on this node until restart." );
+            secret = new byte[32];
+            new SecureRandom().nextBytes( secret );
+        }
+
+        key = new SecretKeySpec( secret, ALGORITHM );
+    }
+
+    public TokenClaims claims( final EffectivePermissions effective, final long nowSeconds )
+    {
+        return new TokenClaims( Realms.current(), effective.getUsername(), effective.getRoles(),
+                                effective.getPermissions(), nowSeconds, nowSeconds + config.getTokenTtlSeconds() );
+    }
+
+    public String encode( final TokenClaims claims )
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream( 256 );
+        out.write( VERSION );
+        writeLong( out, claims.getIssued() );
+        writeLong( out, claims.getExpires() );
+        writeString( out, claims.getRealm() );
+        writeString( out, claims.getUsername() );
+        writeStrings( out, claims.getRoles() );
+        writeFrontCoded( out, claims.getPermissions() );
+
+        final byte[] payload = out.toByteArray();
+        return Base64.encodeToString( payload ) + "." + Base64.encodeToString( sign( payload ) );
+    }
+
+    /**
+     * @return the claims carried by the token, or null if it is malformed, its signature does not match, or it has
+     *         expired
+     */
+    public TokenClaims decode( final String token, final long nowSeconds )
+    {
+        final int dot = token == null ? -1 : token.indexOf( '.' );
+        if ( dot < 1 )
+        {
+            return null;
+        }
+
+        final byte[] payload;
+        final byte[] signature;
+        try
+        {
+            payload = Base64.decode( token.substring( 0, dot ) );
+            signature = Base64.decode( token.substring( dot + 1 ) );
+        }
+        catch ( final RuntimeException e )
+        {
+            return null;
+        }
+
+        if ( !MessageDigest.isEqual( signature, sign( payload ) ) )
+        {
+            return null;
+        }
+
+        final TokenClaims claims;
+        try
+        {
+            final ByteBuffer in = ByteBuffer.wrap( payload );
+            if ( in.get() != VERSION )
+            {
+                return null;
+            }
+
+            final long issued = in.getLong();
+            final long expires = in.getLong();
+            final String realm = readString( in );
+            final String username = readString( in );
+
+            final int roleCount = readVarint( in );
+            final List<String> roles = new ArrayList<String>( roleCount );
+            for ( int i = 0; i < roleCount; i++ )
+            {
+                roles.add( readString( in ) );
+            }
+
+            final int permCount = readVarint( in );
+            final List<String> permissions = new ArrayList<String>( permCount );
+            String previous = "";
+            for ( int i = 0; i < permCount; i++ )
+            {
+                previous = readFrontCoded( in, previous );
+                permissions.add( previous );
+            }
+
+            claims = new TokenClaims( realm, username, roles, permissions, issued, expires );
+        }
+        catch ( final RuntimeException e )
+        {
+            // signed by us but unreadable; only possible across incompatible versions.
+            return null;
+        }
+
+        return claims.isExpired( nowSeconds ) ? null : claims;
+    }
+
+    private byte[] sign( final byte[] payload )
+    {
+        Mac mac = macs.get();
+        if ( mac == null )
+        {
+            try
+            {
+                mac = Mac.getInstance( ALGORITHM );
+                mac.init( key );
+            }
+            catch ( final GeneralSecurityException e )
+            {
+                throw new IllegalStateException( "Cannot initialize " + ALGORITHM + ": " + e.getMessage(), e );
+            }
+
+            macs.set( mac );
+        }
+
+        return mac.doFinal( payload );
+    }
+
+    private static void writeLong( final ByteArrayOutputStream out, final long value )
+    {
+        for ( int shift = 56; shift >= 0; shift -= 8 )
+        {
+            out.write( (int) ( value >>> shift ) );
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package org.commonjava.web.user.shiro;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Binary encoding shared by access tokens and the off-heap authorization store: varint counts and lengths, UTF-8
+ * strings prefixed with their byte length, and front-coded sorted string lists, where each entry is written as the
+ * number of leading characters it shares with the previous one followed by the rest of it.
+ */
+final class CompactStrings
+{
+
+    static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    private CompactStrings()
+    {
+    }
+
+    static void writeVarint( final ByteArrayOutputStream out, final int value )
+    {
+        int v = value;
+        while ( ( v & ~0x7F ) != 0 )
+        {
+            out.write( ( v & 0x7F ) | 0x80 );
+            v >>>= 7;
+        }
+
+        out.write( v );
+    }
+
+    static void writeString( final ByteArrayOutputStream out, final String value )
+    {
+        final byte[] bytes = value.getBytes( UTF8 );
+        writeVarint( out, bytes.length );
+        out.write( bytes, 0, bytes.length );
+    }
+
+    static void writeStrings( final ByteArrayOutputStream out, final List<String> values )
+    {
+        writeVarint( out, values.size() );
+        for ( final String value : values )
+        {
+            writeString( out, value );
+        }
+    }
+
+    static void writeFrontCoded( final ByteArrayOutputStream out, final List<String> sorted )
+    {
+        writeVarint( out, sorted.size() );
+        String previous = "";
+        for ( final String value : sorted )
+        {
+            final int shared = sharedPrefix( previous, value );
+            writeVarint( out, shared );
+            writeString( out, value.substring( shared ) );
+            previous = value;
+        }
+    }
+
+    static int readVarint( final ByteBuffer in )
+    {
+        int value = 0;
+        for ( int shift = 0; shift < 32; shift += 7 )
+        {
+            final byte b = in.get();
+            value |= ( b & 0x7F ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException( "Malformed varint" );
+    }
+
+    static String readString( final ByteBuffer in )
+    {
+        final int length = readVarint( in );
+        final byte[] bytes = new byte[length];
+        in.get( bytes );
+        return new String( bytes, UTF8 );
+    }
+
+    static void skipString( final ByteBuffer in )
+    {
+        final int length = readVarint( in );
+        in.position( in.position() + length );
+    }
+
+    /**
+     * Read the next entry of a front-coded list, given the entry before it ("" for the first).
+     */
+    static String readFrontCoded( final ByteBuffer in, final String previous )
+    {
+        final int shared = readVarint( in );
+        return previous.substring( 0, shared ) + readString( in );
+    }
+
+    private static int sharedPrefix( final String a, final String b )
+    {
+        final int max = Math.min( a.length(), b.length() );
+        int i = 0;
+        while ( i < max && a.charAt( i ) == b.charAt( i ) )
+        {
+            i++;
+        }
+
+        // don't split a surrogate pair across the shared prefix and the suffix.
+        if ( i > 0 && i < b.length() && Character.isHighSurrogate( b.charAt( i - 1 ) ) )
+        {
+            i--;
+        }
+
+        return i;
+    }
+
+}
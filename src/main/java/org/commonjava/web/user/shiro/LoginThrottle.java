@@ -0,0 +1,204 @@
+package org.commonjava.web.user.shiro;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.inject.Singleton;
+
+/**
+ * Counts failed logins per username (keyed by {@link org.commonjava.web.user.model.Realms#key(String, String)} of the
+ * normalized login) and per source host, and refuses further attempts for a key once it has failed too often within
+ * the last {@link #WINDOW_MILLIS}.
+ * <p>
+ * Each key's window slides in {@link #BUCKETS} buckets, counted with compare-and-set, so recording and checking
+ * attempts takes no lock and different keys never contend. Counts are exact per key: one key's failures never count
+ * against another, so spraying guesses across many usernames can only block the source doing it. A successful login
+ * clears its username's count.
+ * </p>
+ * <p>
+ * Keys whose window has emptied are swept out every {@link #BUCKET_MILLIS}. Each table holds at most
+ * {@link #MAX_TRACKED_KEYS} keys; while one is full of live keys, failures of keys it doesn't hold yet go uncounted
+ * there, though the other table still counts them.
+ * </p>
+ * <p>
+ * A null username or source is not counted. Callers pass a null source only for attempts made outside any web
+ * request, which then have the per-username limit alone.
+ * </p>
+ */
+@Singleton
+public class LoginThrottle
+{
+
+    /**
+     * Failures allowed per username within the window before further attempts are refused.
+     */
+    public static final int MAX_USER_FAILURES = 10;
+
+    /**
+     * Failures allowed per source host within the window; higher, since many users may share a NAT or proxy.
+     */
+    public static final int MAX_SOURCE_FAILURES = 100;
+
+    public static final long WINDOW_MILLIS = 5 * 60 * 1000;
+
+    public static final int BUCKETS = 10;
+
+    public static final long BUCKET_MILLIS = WINDOW_MILLIS / BUCKETS;
+
+    public static final int MAX_TRACKED_KEYS = 100 * 1000;
+
+    private final Failures users = new Failures();
+
+    private final Failures sources = new Failures();
+
+    public boolean isBlocked( final String username, final String source )
+    {
+        final long bucket = bucket( System.currentTimeMillis() );
+        return ( username != null && users.count( username, bucket ) >= MAX_USER_FAILURES )
+            || ( source != null && sources.count( source, bucket ) >= MAX_SOURCE_FAILURES );
+    }
+
+    public void recordFailure( final String username, final String source )
+    {
+        final long bucket = bucket( System.currentTimeMillis() );
+        if ( username != null )
+        {
+            users.increment( username, bucket );
+        }
+
+        if ( source != null )
+        {
+            sources.increment( source, bucket );
+        }
+    }
+
+    /**
+     * Forget the failures of a username that has just logged in successfully. Its source's count stands.
+     */
+    public void recordSuccess( final String username )
+    {
+        if ( username != null )
+        {
+            users.clear( username );
+        }
+    }
+
+    private static long bucket( final long millis )
+    {
+        return millis / BUCKET_MILLIS;
+    }
+
+    private static final class Failures
+    {
+        private final ConcurrentMap<String, Window> windows = new ConcurrentHashMap<String, Window>();
+
+        private final AtomicLong sweptBucket = new AtomicLong();
+
+        int count( final String key, final long bucket )
+        {
+            final Window window = windows.get( key );
+            return window == null ? 0 : window.count( bucket );
+        }
+
+        void increment( final String key, final long bucket )
+        {
+            sweep( bucket );
+
+            Window window = windows.get( key );
+            if ( window == null )
+            {
+                if ( windows.size() >= MAX_TRACKED_KEYS )
+                {
+                    return;
+                }
+
+                final Window created = new Window();
+                window = windows.putIfAbsent( key, created );
+                if ( window == null )
+                {
+                    window = created;
+                }
+            }
+
+            window.increment( bucket );
+        }
+
+        void clear( final String key )
+        {
+            windows.remove( key );
+        }
+
+        /**
+         * Drop the keys with no failures left in their window, once per bucket; one caller does the sweep.
+         */
+        private void sweep( final long bucket )
+        {
+            final long swept = sweptBucket.get();
+            if ( swept >= bucket || !sweptBucket.compareAndSet( swept, bucket ) )
+            {
+                return;
+            }
+
+            for ( final Iterator<Window> it = windows.values()
+                                                    .iterator(); it.hasNext(); )
+            {
+                if ( it.next()
+                       .count( bucket ) == 0 )
+                {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A ring of per-bucket counts. Each slot packs the bucket it counts (high bits) with its count (low
+     * {@link #COUNT_BITS} bits), so a slot left over from an earlier lap of the ring is recognized and restarted.
+     */
+    private static final class Window
+    {
+        private static final int COUNT_BITS = 24;
+
+        private static final long COUNT_MASK = ( 1L << COUNT_BITS ) - 1;
+
+        private final AtomicLongArray slots = new AtomicLongArray( BUCKETS );
+
+        void increment( final long bucket )
+        {
+            final int slot = (int) ( bucket % BUCKETS );
+            while ( true )
+            {
+                final long current = slots.get( slot );
+                final long count = current >>> COUNT_BITS == bucket ? current & COUNT_MASK : 0;
+                if ( count == COUNT_MASK )
+                {
+                    return;
+                }
+
+                if ( slots.compareAndSet( slot, current, ( bucket << COUNT_BITS ) | ( count + 1 ) ) )
+                {
+                    return;
+                }
+            }
+        }
+
+        int count( final long bucket )
+        {
+            long total = 0;
+            for ( int i = 0; i < BUCKETS; i++ )
+            {
+                final long current = slots.get( i );
+                if ( bucket - ( current >>> COUNT_BITS ) < BUCKETS )
+                {
+                    total += current & COUNT_MASK;
+                }
+            }
+
+            return (int) Math.min( total, Integer.MAX_VALUE );
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.commonjava.web.user.shiro;
+
+import java.util.Collection;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+
+/**
+ * Stand-in {@link AuthorizationInfo} for a user whose record lives in the {@link OffHeapAuthorizationStore}. It holds
+ * only the realm and username: {@link ShiroRealm} answers role and permission checks against the stored bytes
+ * directly, and the full sets are decoded only if something asks for them.
+ */
+final class OffHeapAuthorizationInfo
+    implements AuthorizationInfo
+{
+
+    private static final long serialVersionUID = 1L;
+
+    private final String realmName;
+
+    private final String username;
+
+    private final transient ShiroRealm realm;
+
+    OffHeapAuthorizationInfo( final String realmName, final String username, final ShiroRealm realm )
+    {
+        this.realmName = realmName;
+        this.username = username;
+        this.realm = realm;
+    }
+
+    String getRealmName()
+    {
+        return realmName;
+    }
+
+    String getUsername()
+    {
+        return username;
+    }
+
+    @Override
+    public Collection<String> getRoles()
+    {
+        return realm.decodeOffHeap( realmName, username )
+                    .getRoles();
+    }
+
+    @Override
+    public Collection<String> getStringPermissions()
+    {
+        return null;
+    }
+
+    @Override
+    public Collection<Permission> getObjectPermissions()
+    {
+        return realm.decodeOffHeap( realmName, username )
+                    .getObjectPermissions();
+    }
+
+}
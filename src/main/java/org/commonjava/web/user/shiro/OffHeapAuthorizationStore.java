@@ -0,0 +1,579 @@
+package org.commonjava.web.user.shiro;
+
+import static org.commonjava.web.user.shiro.CompactStrings.readFrontCoded;
+import static org.commonjava.web.user.shiro.CompactStrings.readString;
+import static org.commonjava.web.user.shiro.CompactStrings.readVarint;
+import static org.commonjava.web.user.shiro.CompactStrings.skipString;
+import static org.commonjava.web.user.shiro.CompactStrings.writeFrontCoded;
+import static org.commonjava.web.user.shiro.CompactStrings.writeString;
+import static org.commonjava.web.user.shiro.CompactStrings.writeVarint;
+import static org.commonjava.web.user.shiro.CompactStrings.writeStrings;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.commonjava.util.logging.Logger;
+import org.commonjava.web.user.conf.UserManagerConfiguration;
+import org.commonjava.web.user.data.Deleted;
+import org.commonjava.web.user.data.Saved;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+/**
+ * Per-user authorization records kept outside the Java heap, for deployments with too many accounts to cache
+ * {@link EffectivePermissions} objects without long GC pauses. Enabled by <code>authorization.store=off-heap</code>.
+ * <p>
+ * Records (realm-qualified username, realm epoch, role names, front-coded permission names; see
+ * {@link CompactStrings}) are appended to a
+ * fixed-size direct buffer used as a ring: when the write position reaches the end it wraps, and whatever it
+ * overwrites is evicted, oldest first. The index is a second direct buffer holding an open-addressed hash table of
+ * <code>(64-bit key hash, location)</code> pairs, where a location is the record offset plus the lap of the ring
+ * it was written in. A location is only trusted while the writer has not come round to it again, so eviction needs
+ * no bookkeeping, and slots pointing at evicted records are reused by later inserts.
+ * </p>
+ * <p>
+ * Each realm has an epoch, stored in every record written for it. Role and permission changes bump their realm's
+ * epoch, which makes all of that realm's records stale at once without touching other realms.
+ * </p>
+ * <p>
+ * Permission and role checks scan the stored bytes in place. Nothing read from the store outlives the call that
+ * read it.
+ * </p>
+ */
+@Singleton
+public class OffHeapAuthorizationStore
+{
+
+    public static final String OFF_HEAP = "off-heap";
+
+    private static final int SLOT_BYTES = 16;
+
+    /**
+     * Expected average record size, used to size the index at roughly two slots per record that fits.
+     */
+    private static final int AVERAGE_RECORD_BYTES = 256;
+
+    private static final int MAX_PROBES = 32;
+
+    private static final long TOMBSTONE = -1;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private UserManagerConfiguration config;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicInteger> epochs = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private boolean enabled;
+
+    private ByteBuffer data;
+
+    private ByteBuffer index;
+
+    private int slotMask;
+
+    private int writeOffset;
+
+    private int lap;
+
+    @PostConstruct
+    public void initialize()
+    {
+        enabled = OFF_HEAP.equalsIgnoreCase( config.getAuthorizationStore() );
+        if ( !enabled )
+        {
+            return;
+        }
+
+        final int capacity = config.getAuthorizationStoreMegabytes() * 1024 * 1024;
+        int slots = Integer.highestOneBit( Math.max( 1024, capacity / AVERAGE_RECORD_BYTES * 2 ) );
+        if ( slots > Integer.MAX_VALUE / SLOT_BYTES )
+        {
+            slots = Integer.highestOneBit( Integer.MAX_VALUE / SLOT_BYTES );
+        }
+
+        data = ByteBuffer.allocateDirect( capacity );
+        index = ByteBuffer.allocateDirect( slots * SLOT_BYTES );
+        slotMask = slots - 1;
+
+        logger.info( "Off-heap authorization store: %s MB of records, %s index slots.",
+                     config.getAuthorizationStoreMegabytes(), slots );
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Capture before loading a record; pass to {@link #put(String, EffectivePermissions, long)} so a load that raced
+     * with an invalidation doesn't store what it read.
+     */
+    public long generation()
+    {
+        return generation.get();
+    }
+
+    public void put( final String realm, final EffectivePermissions effective, final long expectedGeneration )
+    {
+        final String key = Realms.key( realm, effective.getUsername() );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream( AVERAGE_RECORD_BYTES );
+        writeString( out, key );
+        writeVarint( out, epoch( realm ).get() );
+        writeStrings( out, effective.getRoles() );
+        writeFrontCoded( out, effective.getPermissions() );
+        final byte[] record = out.toByteArray();
+
+        if ( record.length > data.capacity() / 4 )
+        {
+            logger.info( "Authorization record for: %s is %s bytes; too large to store off-heap.", key,
+                         record.length );
+            return;
+        }
+
+        final long hash = hash( key );
+
+        lock.writeLock()
+            .lock();
+        try
+        {
+            if ( generation.get() != expectedGeneration )
+            {
+                return;
+            }
+
+            if ( writeOffset + record.length > data.capacity() )
+            {
+                writeOffset = 0;
+                lap++;
+            }
+
+            final int offset = writeOffset;
+            final ByteBuffer target = data.duplicate();
+            target.position( offset );
+            target.put( record );
+            writeOffset += record.length;
+
+            final int slot = findSlotForInsert( hash );
+            if ( slot > -1 )
+            {
+                index.putLong( slot * SLOT_BYTES, hash );
+                index.putLong( slot * SLOT_BYTES + 8, location( lap, offset ) );
+            }
+        }
+        finally
+        {
+            lock.writeLock()
+                .unlock();
+        }
+    }
+
+    /**
+     * @return whether any stored permission of the user implies <code>permission</code>, or null if the user has no
+     *         record here
+     */
+    public Boolean implies( final String realm, final String username, final Permission permission )
+    {
+        lock.readLock()
+            .lock();
+        try
+        {
+            final ByteBuffer in = open( realm, username );
+            if ( in == null )
+            {
+                return null;
+            }
+
+            skipRoles( in );
+            final int count = readVarint( in );
+            String previous = "";
+            for ( int i = 0; i < count; i++ )
+            {
+                previous = readFrontCoded( in, previous );
+                if ( new org.commonjava.web.user.model.Permission( previous ).implies( permission ) )
+                {
+                    return Boolean.TRUE;
+                }
+            }
+
+            return Boolean.FALSE;
+        }
+        finally
+        {
+            lock.readLock()
+                .unlock();
+        }
+    }
+
+    /**
+     * @return whether the user holds the role, or null if the user has no record here
+     */
+    public Boolean hasRole( final String realm, final String username, final String role )
+    {
+        lock.readLock()
+            .lock();
+        try
+        {
+            final ByteBuffer in = open( realm, username );
+            if ( in == null )
+            {
+                return null;
+            }
+
+            final int count = readVarint( in );
+            for ( int i = 0; i < count; i++ )
+            {
+                if ( readString( in ).equals( role ) )
+                {
+                    return Boolean.TRUE;
+                }
+            }
+
+            return Boolean.FALSE;
+        }
+        finally
+        {
+            lock.readLock()
+                .unlock();
+        }
+    }
+
+    /**
+     * Decode the whole record into a plain {@link AuthorizationInfo}, for callers that need the full role and
+     * permission sets rather than a single check.
+     *
+     * @return the info, or null if the user has no record here
+     */
+    public AuthorizationInfo decode( final String realm, final String username )
+    {
+        lock.readLock()
+            .lock();
+        try
+        {
+            final ByteBuffer in = open( realm, username );
+            if ( in == null )
+            {
+                return null;
+            }
+
+            final Set<String> roles = new HashSet<String>();
+            final int roleCount = readVarint( in );
+            for ( int i = 0; i < roleCount; i++ )
+            {
+                roles.add( readString( in ) );
+            }
+
+            final Set<Permission> perms = new HashSet<Permission>();
+            final int permCount = readVarint( in );
+            String previous = "";
+            for ( int i = 0; i < permCount; i++ )
+            {
+                previous = readFrontCoded( in, previous );
+                perms.add( new org.commonjava.web.user.model.Permission( previous ) );
+            }
+
+            final SimpleAuthorizationInfo info = new SimpleAuthorizationInfo( roles );
+            info.setObjectPermissions( perms );
+            return info;
+        }
+        finally
+        {
+            lock.readLock()
+                .unlock();
+        }
+    }
+
+    public void invalidate( final String realm, final String username )
+    {
+        if ( !enabled )
+        {
+            return;
+        }
+
+        final long hash = hash( Realms.key( realm, username ) );
+        lock.writeLock()
+            .lock();
+        try
+        {
+            generation.incrementAndGet();
+            int slot = (int) hash & slotMask;
+            for ( int probe = 0; probe < MAX_PROBES; probe++ )
+            {
+                final long slotHash = index.getLong( slot * SLOT_BYTES );
+                if ( slotHash == 0 )
+                {
+                    return;
+                }
+
+                if ( slotHash == hash )
+                {
+                    index.putLong( slot * SLOT_BYTES + 8, TOMBSTONE );
+                }
+
+                slot = ( slot + 1 ) & slotMask;
+            }
+        }
+        finally
+        {
+            lock.writeLock()
+                .unlock();
+        }
+    }
+
+    /**
+     * Drop every record. Moving two laps ahead makes every stored location stale at once, so the index doesn't
+     * need clearing.
+     */
+    public void clear()
+    {
+        if ( !enabled )
+        {
+            return;
+        }
+
+        lock.writeLock()
+            .lock();
+        try
+        {
+            generation.incrementAndGet();
+            lap += 2;
+            writeOffset = 0;
+        }
+        finally
+        {
+            lock.writeLock()
+                .unlock();
+        }
+    }
+
+    /**
+     * Drop every record of one realm, by moving it to a new epoch.
+     */
+    public void clear( final String realm )
+    {
+        if ( !enabled )
+        {
+            return;
+        }
+
+        lock.writeLock()
+            .lock();
+        try
+        {
+            generation.incrementAndGet();
+            epoch( realm ).incrementAndGet();
+        }
+        finally
+        {
+            lock.writeLock()
+                .unlock();
+        }
+    }
+
+    public void onUserSaved( @Observes @Saved final User user )
+    {
+        invalidate( user.getRealm(), user.getUsername() );
+    }
+
+    public void onUserDeleted( @Observes @Deleted final User user )
+    {
+        invalidate( user.getRealm(), user.getUsername() );
+    }
+
+    /**
+     * Finding the holders of a role would mean scanning every record, so role changes (which are rare) just drop
+     * the realm's records.
+     */
+    public void onRoleSaved( @Observes @Saved final Role role )
+    {
+        clear( role.getRealm() );
+    }
+
+    public void onRoleDeleted( @Observes @Deleted final Role role )
+    {
+        clear( role.getRealm() );
+    }
+
+    public void onPermissionDeleted( @Observes @Deleted final org.commonjava.web.user.model.Permission permission )
+    {
+        clear( permission.getRealm() );
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getCapacity()
+    {
+        return enabled ? data.capacity() : 0;
+    }
+
+    /**
+     * Locate the user's record in the realm's current epoch; call with the read lock held.
+     *
+     * @return a buffer positioned just after the key and epoch, or null
+     */
+    private ByteBuffer open( final String realm, final String username )
+    {
+        final String key = Realms.key( realm, username );
+        final long hash = hash( key );
+        int slot = (int) hash & slotMask;
+        for ( int probe = 0; probe < MAX_PROBES; probe++ )
+        {
+            final long slotHash = index.getLong( slot * SLOT_BYTES );
+            if ( slotHash == 0 )
+            {
+                break;
+            }
+
+            if ( slotHash == hash )
+            {
+                final long location = index.getLong( slot * SLOT_BYTES + 8 );
+                if ( isLive( location ) )
+                {
+                    final ByteBuffer in = data.duplicate();
+                    in.position( (int) location );
+                    if ( readString( in ).equals( key ) && readVarint( in ) == epoch( realm ).get() )
+                    {
+                        hits.incrementAndGet();
+                        return in;
+                    }
+                }
+            }
+
+            slot = ( slot + 1 ) & slotMask;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Reuse a slot already holding this hash, otherwise the first empty, tombstoned or stale one; call with the write
+     * lock held.
+     *
+     * @return the slot, or -1 if the probe sequence is full of live entries
+     */
+    private int findSlotForInsert( final long hash )
+    {
+        int free = -1;
+        int slot = (int) hash & slotMask;
+        for ( int probe = 0; probe < MAX_PROBES; probe++ )
+        {
+            final long slotHash = index.getLong( slot * SLOT_BYTES );
+            if ( slotHash == hash )
+            {
+                return slot;
+            }
+
+            if ( slotHash == 0 )
+            {
+                return free > -1 ? free : slot;
+            }
+
+            if ( free < 0 && !isLive( index.getLong( slot * SLOT_BYTES + 8 ) ) )
+            {
+                free = slot;
+            }
+
+            slot = ( slot + 1 ) & slotMask;
+        }
+
+        return free;
+    }
+
+    /**
+     * A record is intact if it was written in the current lap, or in the previous lap at an offset the writer has
+     * not yet reached again.
+     */
+    private boolean isLive( final long location )
+    {
+        if ( location == TOMBSTONE )
+        {
+            return false;
+        }
+
+        final int recordLap = (int) ( location >>> 32 );
+        final int offset = (int) location;
+        return ( recordLap == lap && offset < writeOffset ) || ( recordLap == lap - 1 && offset >= writeOffset );
+    }
+
+    private static long location( final int lap, final int offset )
+    {
+        return ( (long) lap << 32 ) | ( offset & 0xFFFFFFFFL );
+    }
+
+    private AtomicInteger epoch( final String realm )
+    {
+        AtomicInteger epoch = epochs.get( realm );
+        if ( epoch == null )
+        {
+            final AtomicInteger created = new AtomicInteger();
+            epoch = epochs.putIfAbsent( realm, created );
+            if ( epoch == null )
+            {
+                epoch = created;
+            }
+        }
+
+        return epoch;
+    }
+
+    private static void skipRoles( final ByteBuffer in )
+    {
+        final int count = readVarint( in );
+        for ( int i = 0; i < count; i++ )
+        {
+            skipString( in );
+        }
+    }
+
+    private static long hash( final String key )
+    {
+        long hash = FNV_OFFSET;
+        for ( int i = 0; i < key.length(); i++ )
+        {
+            hash = ( hash ^ key.charAt( i ) ) * FNV_PRIME;
+        }
+
+        // zero marks an empty slot.
+        return hash == 0 ? 1 : hash;
+    }
+
+}
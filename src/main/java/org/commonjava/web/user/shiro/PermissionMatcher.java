@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.shiro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Permission;
+
+/**
+ * Answers permission checks against one user's {@link EffectivePermissions}, for callers asking many questions about
+ * the same user. A permission is granted if the user holds it by name, or holds a wildcard permission that
+ * {@link Permission#implies(org.apache.shiro.authz.Permission) implies} it (the rule the membership index uses for
+ * permission holders). Exact names are found by binary search over the sorted names; only the wildcards are scanned.
+ */
+public final class PermissionMatcher
+{
+
+    private final List<String> permissions;
+
+    private final List<Permission> wildcards = new ArrayList<Permission>();
+
+    public PermissionMatcher( final EffectivePermissions effective )
+    {
+        this.permissions = effective.getPermissions();
+        for ( final String name : permissions )
+        {
+            if ( name.endsWith( Permission.WILDCARD ) )
+            {
+                wildcards.add( new Permission( name ) );
+            }
+        }
+    }
+
+    public boolean isPermitted( final String permission )
+    {
+        if ( Collections.binarySearch( permissions, permission ) >= 0 )
+        {
+            return true;
+        }
+
+        if ( !wildcards.isEmpty() )
+        {
+            final Permission target = new Permission( permission );
+            for ( final Permission wildcard : wildcards )
+            {
+                if ( wildcard.implies( target ) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+}
@@ -9,6 +9,7 @@ import javax.inject.Inject;
 import org.apache.shiro.authz.Permission;
 import org.apache.shiro.authz.permission.PermissionResolver;
 import org.apache.shiro.authz.permission.RolePermissionResolver;
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
 import org.commonjava.web.user.data.UserDataManager;
 import org.commonjava.web.user.model.Role;
 
@@ -22,7 +23,15 @@ public class ShiroPermissionResolver
     @Override
     public Permission resolvePermission( final String permissionName )
     {
-        return dataManager.getPermission( permissionName );
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
+        {
+            return dataManager.getPermission( permissionName );
+        }
+        finally
+        {
+            Priority.restore( priority );
+        }
     }
 
     @Override
@@ -30,7 +39,17 @@ public class ShiroPermissionResolver
     {
         final Set<Permission> perms = new HashSet<Permission>();
 
-        final Role role = dataManager.getRole( roleName );
+        final Role role;
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
+        {
+            role = dataManager.getRole( roleName );
+        }
+        finally
+        {
+            Priority.restore( priority );
+        }
+
         if ( role.getPermissions() != null )
         {
             for ( final org.commonjava.web.user.model.Permission perm : role.getPermissions() )
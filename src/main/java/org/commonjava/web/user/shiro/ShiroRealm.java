@@ -1,23 +1,46 @@
 package org.commonjava.web.user.shiro;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
+import javax.servlet.ServletRequest;
 
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.UnavailableSecurityManagerException;
 import org.apache.shiro.authc.AuthenticationException;
 import org.apache.shiro.authc.AuthenticationInfo;
 import org.apache.shiro.authc.AuthenticationToken;
-import org.apache.shiro.authc.SimpleAccount;
+import org.apache.shiro.authc.ExcessiveAttemptsException;
+import org.apache.shiro.authc.IncorrectCredentialsException;
+import org.apache.shiro.authc.SimpleAuthenticationInfo;
+import org.apache.shiro.authc.UnknownAccountException;
 import org.apache.shiro.authc.UsernamePasswordToken;
 import org.apache.shiro.authz.AuthorizationInfo;
 import org.apache.shiro.authz.Permission;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
 import org.apache.shiro.realm.AuthorizingRealm;
 import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import org.apache.shiro.web.subject.WebSubject;
+import org.commonjava.web.user.data.AdaptiveLimiter.Priority;
+import org.commonjava.web.user.data.EffectivePermissionsCache;
+import org.commonjava.web.user.data.ReadYourWrites;
 import org.commonjava.web.user.data.UserDataManager;
-import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.EffectivePermissions;
+import org.commonjava.web.user.model.Realms;
+import org.commonjava.web.user.model.TokenClaims;
 import org.commonjava.web.user.model.User;
 
+/**
+ * Authenticates and authorizes against the user data of one tenant realm ({@link Realms}). The tenant is recorded as
+ * the realm name of the principals it hands out, so authorization, which may run outside the request that logged the
+ * subject in, looks up the right realm's data.
+ */
 public class ShiroRealm
     extends AuthorizingRealm
 {
@@ -25,34 +48,208 @@ public class ShiroRealm
     @Inject
     private UserDataManager dataManager;
 
+    @Inject
+    private LoginThrottle throttle;
+
+    @Inject
+    private AccessTokenCodec tokenCodec;
+
+    @Inject
+    private OffHeapAuthorizationStore offHeap;
+
+    public ShiroRealm()
+    {
+        // accept AccessToken as well as UsernamePasswordToken.
+        setAuthenticationTokenClass( AuthenticationToken.class );
+    }
+
     @Override
     protected AuthorizationInfo doGetAuthorizationInfo( final PrincipalCollection principals )
     {
+        // subjects that logged in with an access token are authorized from its claims, without a lookup.
+        final TokenClaims claims = principals.oneByType( TokenClaims.class );
+        if ( claims != null )
+        {
+            return toAuthorizationInfo( claims.getRoles(), claims.getPermissions() );
+        }
+
+        final String realm = realmOf( principals );
         final Object principal = principals.getPrimaryPrincipal();
-        final User user = dataManager.getUser( principal.toString() );
+        if ( offHeap.isEnabled() )
+        {
+            return new OffHeapAuthorizationInfo( realm, principal.toString(), this );
+        }
 
-        final Set<String> roleNames = new HashSet<String>();
-        final Set<Permission> perms = new HashSet<Permission>();
-        if ( user.getRoles() != null )
+        final EffectivePermissions effective;
+        final String previous = Realms.enter( realm );
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
         {
-            for ( final Role role : user.getRoles() )
-            {
-                roleNames.add( role.getName() );
+            effective = dataManager.getEffectivePermissions( principal.toString() );
+        }
+        finally
+        {
+            Priority.restore( priority );
+            Realms.restore( previous );
+        }
+
+        if ( effective == null )
+        {
+            return null;
+        }
+
+        return toAuthorizationInfo( effective.getRoles(), effective.getPermissions() );
+    }
+
+    @Override
+    protected boolean isPermitted( final Permission permission, final AuthorizationInfo info )
+    {
+        if ( !( info instanceof OffHeapAuthorizationInfo ) )
+        {
+            return super.isPermitted( permission, info );
+        }
+
+        final OffHeapAuthorizationInfo offHeapInfo = (OffHeapAuthorizationInfo) info;
+        final Boolean stored =
+            offHeap.implies( offHeapInfo.getRealmName(), offHeapInfo.getUsername(), permission );
+        if ( stored != null )
+        {
+            return stored;
+        }
 
-                for ( final Permission permission : role.getPermissions() )
+        final EffectivePermissions effective = loadOffHeap( offHeapInfo.getRealmName(), offHeapInfo.getUsername() );
+        if ( effective != null )
+        {
+            for ( final String name : effective.getPermissions() )
+            {
+                if ( new org.commonjava.web.user.model.Permission( name ).implies( permission ) )
                 {
-                    perms.add( permission );
+                    return true;
                 }
             }
         }
 
-        return new SimpleAccount( principals, user.getPasswordDigest(), roleNames, perms );
+        return false;
+    }
+
+    @Override
+    protected boolean hasRole( final String roleIdentifier, final AuthorizationInfo info )
+    {
+        if ( !( info instanceof OffHeapAuthorizationInfo ) )
+        {
+            return super.hasRole( roleIdentifier, info );
+        }
+
+        final OffHeapAuthorizationInfo offHeapInfo = (OffHeapAuthorizationInfo) info;
+        final Boolean stored =
+            offHeap.hasRole( offHeapInfo.getRealmName(), offHeapInfo.getUsername(), roleIdentifier );
+        if ( stored != null )
+        {
+            return stored;
+        }
+
+        final EffectivePermissions effective = loadOffHeap( offHeapInfo.getRealmName(), offHeapInfo.getUsername() );
+        return effective != null && effective.getRoles()
+                                             .contains( roleIdentifier );
+    }
+
+    AuthorizationInfo decodeOffHeap( final String realm, final String username )
+    {
+        final AuthorizationInfo stored = offHeap.decode( realm, username );
+        if ( stored != null )
+        {
+            return stored;
+        }
+
+        final EffectivePermissions effective = loadOffHeap( realm, username );
+        if ( effective == null )
+        {
+            return new SimpleAuthorizationInfo();
+        }
+
+        return toAuthorizationInfo( effective.getRoles(), effective.getPermissions() );
+    }
+
+    /**
+     * Resolve the user's authorization from the primary database and store it off-heap. The result is returned so
+     * the caller can answer from it even if it could not be stored; it should not be kept.
+     */
+    private EffectivePermissions loadOffHeap( final String realm, final String username )
+    {
+        final long generation = offHeap.generation();
+        final EffectivePermissions effective;
+        final String previous = Realms.enter( realm );
+        final AtomicLong seen = ReadYourWrites.enterPrimary();
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
+        {
+            effective = EffectivePermissionsCache.compute( dataManager.getUser( username ) );
+        }
+        finally
+        {
+            Priority.restore( priority );
+            ReadYourWrites.restore( seen );
+            Realms.restore( previous );
+        }
+
+        if ( effective != null )
+        {
+            offHeap.put( realm, effective, generation );
+        }
+
+        return effective;
+    }
+
+    /**
+     * The tenant realm the principals were authenticated in.
+     */
+    private static String realmOf( final PrincipalCollection principals )
+    {
+        final Set<String> names = principals.getRealmNames();
+        return names == null || names.isEmpty() ? Realms.current() : names.iterator()
+                                                                          .next();
+    }
+
+    private AuthorizationInfo toAuthorizationInfo( final Collection<String> roles, final Collection<String> permissions )
+    {
+        final Set<Permission> perms = new HashSet<Permission>();
+        for ( final String name : permissions )
+        {
+            perms.add( new org.commonjava.web.user.model.Permission( name ) );
+        }
+
+        final SimpleAuthorizationInfo info = new SimpleAuthorizationInfo( new HashSet<String>( roles ) );
+        info.setObjectPermissions( perms );
+
+        return info;
     }
 
     @Override
     protected AuthenticationInfo doGetAuthenticationInfo( final AuthenticationToken token )
         throws AuthenticationException
     {
+        if ( token instanceof AccessToken )
+        {
+            final TokenClaims claims =
+                tokenCodec.decode( (String) token.getCredentials(), System.currentTimeMillis() / 1000 );
+            if ( claims == null )
+            {
+                throw new IncorrectCredentialsException( "Invalid or expired access token." );
+            }
+
+            if ( !claims.getRealm()
+                        .equals( Realms.current() ) )
+            {
+                throw new IncorrectCredentialsException( "Access token was not issued for realm: " + Realms.current() );
+            }
+
+            final PrincipalCollection principals =
+                new SimplePrincipalCollection( Arrays.<Object> asList( claims.getUsername(), claims ),
+                                               claims.getRealm() );
+
+            return new SimpleAuthenticationInfo( principals, token.getCredentials() );
+        }
+
         if ( !( token instanceof UsernamePasswordToken ) )
         {
             throw new AuthenticationException( "Cannot use authentication token of type: "
@@ -60,9 +257,93 @@ public class ShiroRealm
         }
 
         final UsernamePasswordToken tok = (UsernamePasswordToken) token;
-        final User user = dataManager.getUser( tok.getUsername() );
+        final String login = tok.getUsername();
+        final String key = login == null ? null : Realms.key( Realms.current(), User.normalize( login ) );
+
+        // refuse before touching the database or hashing anything.
+        if ( throttle.isBlocked( key, sourceOf( tok ) ) )
+        {
+            throw new ExcessiveAttemptsException( "Too many failed login attempts for: " + login
+                + ". Try again later." );
+        }
+
+        final User user;
+        final Priority priority = Priority.enter( Priority.AUTH );
+        try
+        {
+            user = dataManager.getUserByLogin( login );
+        }
+        finally
+        {
+            Priority.restore( priority );
+        }
+
+        if ( user == null )
+        {
+            throttle.recordFailure( key, sourceOf( tok ) );
+            throw new UnknownAccountException( "No account found for: " + login );
+        }
 
         return User.getAuthenticationInfo( user );
     }
 
+    @Override
+    protected void assertCredentialsMatch( final AuthenticationToken token, final AuthenticationInfo info )
+        throws AuthenticationException
+    {
+        if ( token instanceof AccessToken )
+        {
+            // the signature was verified when the token was decoded.
+            return;
+        }
+
+        final UsernamePasswordToken tok = token instanceof UsernamePasswordToken ? (UsernamePasswordToken) token : null;
+        final String login = tok == null ? null : tok.getUsername();
+        final String key = login == null ? null : Realms.key( Realms.current(), User.normalize( login ) );
+        try
+        {
+            super.assertCredentialsMatch( token, info );
+        }
+        catch ( final AuthenticationException e )
+        {
+            if ( tok != null )
+            {
+                throttle.recordFailure( key, sourceOf( tok ) );
+            }
+
+            throw e;
+        }
+
+        throttle.recordSuccess( key );
+    }
+
+    /**
+     * Where a login attempt came from, for the per-source throttle: the token's host or, when whoever built the token
+     * left it unset, the remote address of the web request being served. Null only for attempts made outside a web
+     * request, which are then throttled per username alone.
+     */
+    private static String sourceOf( final UsernamePasswordToken tok )
+    {
+        if ( tok.getHost() != null )
+        {
+            return tok.getHost();
+        }
+
+        try
+        {
+            final Subject subject = SecurityUtils.getSubject();
+            if ( subject instanceof WebSubject )
+            {
+                final ServletRequest request = ( (WebSubject) subject ).getServletRequest();
+                return request == null ? null : request.getRemoteAddr();
+            }
+        }
+        catch ( final UnavailableSecurityManagerException e )
+        {
+            // not inside a Shiro-filtered request.
+        }
+
+        return null;
+    }
+
 }
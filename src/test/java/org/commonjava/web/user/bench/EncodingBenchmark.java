@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.commonjava.web.common.model.Listing;
+import org.commonjava.web.user.io.CborWriter;
+import org.commonjava.web.user.io.EntityWriters;
+import org.commonjava.web.user.io.JsonWriter;
+import org.commonjava.web.user.io.Projection;
+import org.commonjava.web.user.io.StructuredWriter;
+import org.commonjava.web.user.model.Permission;
+import org.commonjava.web.user.model.Role;
+import org.commonjava.web.user.model.User;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Compares the JSON and CBOR encodings of a <code>/users/list</code> body and a <code>/roles/{name}</code> body:
+ * payload size, the time our writers take to encode them, and the time a Jackson client takes to decode them.
+ * 
+ * <pre>
+ * java EncodingBenchmark 500 5 10 2000
+ * </pre>
+ * 
+ * The arguments are the number of users in the listing, roles per user, permissions per role, and the measured
+ * iterations of each operation (the same number again is run first as warm-up and not counted).
+ */
+public final class EncodingBenchmark
+{
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private static final ObjectMapper CBOR = new ObjectMapper( new CBORFactory() );
+
+    private EncodingBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        final int users = args.length > 0 ? Integer.parseInt( args[0] ) : 500;
+        final int rolesPerUser = args.length > 1 ? Integer.parseInt( args[1] ) : 5;
+        final int permsPerRole = args.length > 2 ? Integer.parseInt( args[2] ) : 10;
+        final int iterations = args.length > 3 ? Integer.parseInt( args[3] ) : 2000;
+
+        final List<Role> roles = new ArrayList<Role>();
+        for ( int r = 0; r < rolesPerUser * 4; r++ )
+        {
+            final Role role = new Role( "role-" + r );
+            for ( int p = 0; p < permsPerRole; p++ )
+            {
+                role.addPermission( new Permission( "resource" + r, "sub" + p, "view" ) );
+            }
+            roles.add( role );
+        }
+
+        final List<User> items = new ArrayList<User>();
+        for ( int u = 0; u < users; u++ )
+        {
+            final User user =
+                new User( "user" + u, "user" + u + "@example.com", "First" + u, "Last" + u, "digest-" + u );
+            for ( int r = 0; r < rolesPerUser; r++ )
+            {
+                user.addRole( roles.get( ( u + r ) % roles.size() ) );
+            }
+            items.add( user );
+        }
+
+        System.out.printf( "%d users x %d roles x %d permissions, %d iterations%n%n", users, rolesPerUser,
+                           permsPerRole, iterations );
+        System.out.printf( "%-14s %-6s %10s %12s %12s%n", "body", "format", "bytes", "encode us", "decode us" );
+
+        run( "/users/list", new Listing<User>( items ), iterations );
+        run( "/roles/{name}", roles.get( 0 ), iterations );
+    }
+
+    private static void run( final String body, final Object value, final int iterations )
+        throws IOException
+    {
+        for ( final boolean cbor : new boolean[] { false, true } )
+        {
+            final ObjectMapper mapper = cbor ? CBOR : JSON;
+            final byte[] encoded = encode( value, cbor );
+
+            // warm up, then measure.
+            time( value, cbor, mapper, encoded, iterations );
+            final long[] nanos = time( value, cbor, mapper, encoded, iterations );
+
+            System.out.printf( "%-14s %-6s %10d %12.1f %12.1f%n", body, cbor ? "cbor" : "json", encoded.length,
+                               nanos[0] / 1000.0 / iterations, nanos[1] / 1000.0 / iterations );
+        }
+    }
+
+    private static long[] time( final Object value, final boolean cbor, final ObjectMapper mapper,
+                                final byte[] encoded, final int iterations )
+        throws IOException
+    {
+        long size = 0;
+        long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+        {
+            size += encode( value, cbor ).length;
+        }
+        final long encode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+        {
+            size += mapper.readTree( encoded ).size();
+        }
+        final long decode = System.nanoTime() - start;
+
+        // keeps the work from being optimized away.
+        if ( size == 0 )
+        {
+            System.out.println();
+        }
+
+        return new long[] { encode, decode };
+    }
+
+    private static byte[] encode( final Object value, final boolean cbor )
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final StructuredWriter w = cbor ? new CborWriter( out ) : new JsonWriter( out );
+        EntityWriters.write( w, value, Projection.ALL );
+        w.flush();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures REST throughput at high concurrency, to compare <code>execution.mode = platform</code> against
+ * <code>virtual</code>. Start the application in one mode, run this against it, then restart in the other mode and
+ * run it again with the same arguments:
+ * 
+ * <pre>
+ * java RequestThroughputBenchmark http://localhost:8080/user-manager/api/users/admin 2000 60 10
+ * </pre>
+ * 
+ * The arguments are the URL to GET, the number of concurrent clients, the measured seconds, and the warm-up seconds
+ * (not counted). Only 2xx responses count as completed; anything else counts as an error.
+ */
+public final class RequestThroughputBenchmark
+{
+
+    private static final int MAX_SAMPLES = 1000 * 1000;
+
+    private RequestThroughputBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        if ( args.length < 3 )
+        {
+            System.err.println( "Usage: RequestThroughputBenchmark <url> <clients> <seconds> [warmup-seconds]" );
+            System.exit( 1 );
+        }
+
+        final URL url = new URL( args[0] );
+        final int clients = Integer.parseInt( args[1] );
+        final long seconds = Long.parseLong( args[2] );
+        final long warmup = args.length > 3 ? Long.parseLong( args[3] ) : 10;
+
+        final long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos( warmup );
+        final long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos( seconds );
+
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong sampleCount = new AtomicLong();
+        final long[] samples = new long[MAX_SAMPLES];
+
+        final ExecutorService pool = Executors.newFixedThreadPool( clients );
+        final CountDownLatch done = new CountDownLatch( clients );
+        for ( int i = 0; i < clients; i++ )
+        {
+            pool.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        long now;
+                        while ( ( now = System.nanoTime() ) < measureUntil )
+                        {
+                            final boolean ok = get( url );
+                            final long end = System.nanoTime();
+                            if ( now < measureFrom )
+                            {
+                                continue;
+                            }
+
+                            if ( !ok )
+                            {
+                                errors.incrementAndGet();
+                                continue;
+                            }
+
+                            completed.incrementAndGet();
+                            final long slot = sampleCount.getAndIncrement();
+                            if ( slot < MAX_SAMPLES )
+                            {
+                                samples[(int) slot] = end - now;
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            } );
+        }
+
+        done.await();
+        pool.shutdown();
+
+        final int n = (int) Math.min( sampleCount.get(), MAX_SAMPLES );
+        Arrays.sort( samples, 0, n );
+
+        System.out.printf( "clients: %d, measured: %ds%n", clients, seconds );
+        System.out.printf( "completed: %d (%.1f req/s), errors: %d%n", completed.get(), completed.get()
+            / (double) seconds, errors.get() );
+        if ( n > 0 )
+        {
+            System.out.printf( "latency ms: p50 %.1f, p99 %.1f, max %.1f%n", millis( samples, n, 0.50 ),
+                               millis( samples, n, 0.99 ), samples[n - 1] / 1e6 );
+        }
+    }
+
+    private static boolean get( final URL url )
+    {
+        HttpURLConnection conn = null;
+        try
+        {
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestProperty( "Accept", "application/json" );
+
+            final int status = conn.getResponseCode();
+            final InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            if ( in != null )
+            {
+                final byte[] buf = new byte[8192];
+                while ( in.read( buf ) > -1 )
+                {
+                    // drain, so the connection can be reused.
+                }
+                in.close();
+            }
+
+            return status / 100 == 2;
+        }
+        catch ( final IOException e )
+        {
+            if ( conn != null )
+            {
+                conn.disconnect();
+            }
+
+            return false;
+        }
+    }
+
+    private static double millis( final long[] sorted, final int n, final double quantile )
+    {
+        return sorted[Math.min( n - 1, (int) ( n * quantile ) )] / 1e6;
+    }
+
+}
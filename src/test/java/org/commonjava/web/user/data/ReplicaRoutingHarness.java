@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (C) 2011 John Casey.
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.commonjava.web.user.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.commonjava.web.user.conf.DefaultUserManagerConfig;
+import org.commonjava.web.user.model.ChangeRecord;
+import org.commonjava.web.user.model.ChangeSequence;
+import org.commonjava.web.user.model.Realms;
+
+/**
+ * Exercises {@link ReplicaRouter} against two embedded H2 databases standing in for the primary and a replica.
+ * Replication is simulated by copying the change log and its counter across. Checks that a client's reads go to the
+ * primary until the replica has applied the client's own write, while other clients keep reading from the replica:
+ * 
+ * <pre>
+ * java ReplicaRoutingHarness
+ * </pre>
+ * 
+ * Needs H2 and Hibernate's entity manager on the classpath (both are test dependencies). Exits non-zero on the first
+ * failed check.
+ */
+public final class ReplicaRoutingHarness
+{
+
+    private static final String PRIMARY = "jdbc:h2:mem:primary;DB_CLOSE_DELAY=-1";
+
+    private static final String REPLICA = "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1";
+
+    private static final UserQueries QUERIES = new UserQueries();
+
+    private ReplicaRoutingHarness()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        final EntityManagerFactory primary = factory( PRIMARY );
+        final EntityManagerFactory replica = factory( REPLICA );
+
+        final DefaultUserManagerConfig config = new DefaultUserManagerConfig();
+        config.setReadReplicas( REPLICA );
+
+        final ReplicaRouter router = new ReplicaRouter( config );
+        router.initialize();
+        try
+        {
+            final AtomicLong writer = new AtomicLong();
+            final AtomicLong reader = new AtomicLong();
+
+            AtomicLong previous = ReadYourWrites.enter( writer );
+            try
+            {
+                final long sequence = write( primary, "alice" );
+                check( writer.get() == sequence, "the write raised the writer's required sequence to " + sequence );
+                check( !readsFromReplica( router ), "the writer reads from the primary before the replica catches up" );
+            }
+            finally
+            {
+                ReadYourWrites.restore( previous );
+            }
+
+            previous = ReadYourWrites.enter( reader );
+            try
+            {
+                check( readsFromReplica( router ), "a client that hasn't written reads from the lagging replica" );
+            }
+            finally
+            {
+                ReadYourWrites.restore( previous );
+            }
+
+            replicate( primary, replica );
+
+            // past the router's recheck interval, so it reads the replica's progress again.
+            Thread.sleep( 200 );
+
+            previous = ReadYourWrites.enter( writer );
+            try
+            {
+                check( readsFromReplica( router ), "the writer reads from the replica once it has the write" );
+            }
+            finally
+            {
+                ReadYourWrites.restore( previous );
+            }
+
+            previous = ReadYourWrites.enterPrimary();
+            try
+            {
+                check( !readsFromReplica( router ), "a thread sent to the primary never reads from a replica" );
+            }
+            finally
+            {
+                ReadYourWrites.restore( previous );
+            }
+
+            check( router.getReplicaReadCount() == 2 && router.getPrimaryReadCount() == 2,
+                   "the router counted 2 replica reads and 2 primary reads" );
+        }
+        finally
+        {
+            router.close();
+            replica.close();
+            primary.close();
+        }
+
+        System.out.println( "All checks passed." );
+    }
+
+    private static EntityManagerFactory factory( final String url )
+    {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put( "javax.persistence.nonJtaDataSource", "" );
+        properties.put( "javax.persistence.jdbc.url", url );
+        properties.put( "hibernate.hbm2ddl.auto", "create" );
+
+        return Persistence.createEntityManagerFactory( ReplicaRouter.REPLICA_UNIT, properties );
+    }
+
+    private static long write( final EntityManagerFactory primary, final String username )
+    {
+        final EntityManager em = primary.createEntityManager();
+        try
+        {
+            em.getTransaction()
+              .begin();
+            final long sequence =
+                QUERIES.logChange( em, new ChangeRecord( Realms.current(), ChangeRecord.USER, username,
+                                                         ChangeRecord.Action.SAVE ), 0 );
+            em.getTransaction()
+              .commit();
+
+            ReadYourWrites.wrote( sequence );
+            return sequence;
+        }
+        finally
+        {
+            em.close();
+        }
+    }
+
+    /**
+     * Copies the primary's change log and counter to the replica, as replication would.
+     */
+    private static void replicate( final EntityManagerFactory primary, final EntityManagerFactory replica )
+    {
+        final EntityManager source = primary.createEntityManager();
+        final EntityManager target = replica.createEntityManager();
+        try
+        {
+            final List<ChangeRecord> changes =
+                source.createQuery( "SELECT c FROM ChangeRecord c", ChangeRecord.class )
+                      .getResultList();
+
+            target.getTransaction()
+                  .begin();
+            for ( final ChangeRecord change : changes )
+            {
+                target.merge( change );
+            }
+            target.merge( source.find( ChangeSequence.class, ChangeSequence.ID ) );
+            target.getTransaction()
+                  .commit();
+        }
+        finally
+        {
+            target.close();
+            source.close();
+        }
+    }
+
+    private static boolean readsFromReplica( final ReplicaRouter router )
+    {
+        final EntityManager em = router.open();
+        if ( em == null )
+        {
+            return false;
+        }
+
+        em.close();
+        return true;
+    }
+
+    private static void check( final boolean passed, final String description )
+    {
+        if ( !passed )
+        {
+            System.out.println( "FAILED: " + description );
+            System.exit( 1 );
+        }
+
+        System.out.println( "ok: " + description );
+    }
+
+}